@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -33,6 +34,15 @@ public class FlatFragment extends ImageFragment {
         Log.d(TAG, "onViewCreated");
         setHasOptionsMenu(true);
         imageView = (SubsamplingScaleImageView) view.findViewById(R.id.image_view);
+
+        // Gestures of the activity, like swipes, are detected alongside zooming and panning.
+        imageView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                getMainActivity().getGestureDetector().onTouchEvent(event);
+                return false;
+            }
+        });
         updateBitmap(getMainActivity().getBitmap());
     }
 
@@ -63,4 +73,10 @@ public class FlatFragment extends ImageFragment {
         }
         imageView.setImage(ImageSource.cachedBitmap(bitmap));
     }
+
+    @Override
+    public boolean isSwipeEnabled() {
+        // Swipes pan the image, once it is zoomed in.
+        return imageView != null && (!imageView.isReady() || imageView.getScale() <= imageView.getMinScale());
+    }
 }
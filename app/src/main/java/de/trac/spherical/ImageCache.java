@@ -0,0 +1,40 @@
+package de.trac.spherical;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import de.trac.spherical.rendering.BitmapPool;
+
+/**
+ * Keeps decoded images of the gallery, which are not shown, so that swiping back to them or to
+ * a prefetched one shows it at once. The cache is bounded by the bytes of the bitmaps, the least
+ * recently used images are released to the pool first.
+ *
+ * Images taken out by {@link #remove(Object)} belong to the caller, they are not released.
+ * Must be used by the UI thread.
+ */
+class ImageCache extends LruCache<Uri, LoadedImage> {
+
+    private final BitmapPool pool;
+
+    /**
+     * @param maxSize maximum number of bytes of all cached bitmaps.
+     * @param pool pool evicted bitmaps are released to.
+     */
+    ImageCache(int maxSize, BitmapPool pool) {
+        super(maxSize);
+        this.pool = pool;
+    }
+
+    @Override
+    protected int sizeOf(Uri uri, LoadedImage image) {
+        return (int) Math.min(Integer.MAX_VALUE, image.getByteCount());
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Uri uri, LoadedImage oldImage, LoadedImage newImage) {
+        if (evicted || (newImage != null && newImage != oldImage)) {
+            oldImage.release(pool);
+        }
+    }
+}
@@ -10,4 +10,9 @@ import android.support.v4.app.Fragment;
 public abstract class ImageFragment extends Fragment {
 
     public abstract void updateBitmap(Bitmap bitmap);
+
+    /**
+     * @return true, if horizontal swipes may move to another image, instead of moving this one.
+     */
+    public abstract boolean isSwipeEnabled();
 }
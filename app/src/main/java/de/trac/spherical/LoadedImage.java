@@ -0,0 +1,72 @@
+package de.trac.spherical;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+import de.trac.spherical.rendering.BitmapPool;
+import de.trac.spherical.rendering.TilePyramid;
+import de.trac.spherical.rendering.TileSource;
+
+/**
+ * An image of the gallery, decoded and ready to be shown, or its preview.
+ */
+class LoadedImage {
+
+    final Uri uri;
+    final String type;
+
+    Bitmap bitmap;
+    PhotoSphereMetadata metadata;
+
+    // Detail levels of large photo spheres, null for other images.
+    TilePyramid pyramid;
+    TileSource tileSource;
+
+    /**
+     * @param uri image.
+     * @param type MIME type the image has been sent with.
+     */
+    LoadedImage(Uri uri, String type) {
+        this.uri = uri;
+        this.type = type;
+    }
+
+    /**
+     * @return true, if the image is to be shown as photo sphere.
+     */
+    boolean isSphere() {
+        return MainActivity.MIME_PHOTO_SPHERE.equals(type) || metadata != null;
+    }
+
+    /**
+     * @return number of bytes of the bitmap.
+     */
+    long getByteCount() {
+        if (bitmap == null) {
+            return 0;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /**
+     * Hands the bitmap back to the pool and recycles the tile source. The image can not be shown
+     * afterwards.
+     * @param pool pool the bitmap has been retained by.
+     */
+    void release(BitmapPool pool) {
+        if (bitmap != null) {
+            pool.release(bitmap);
+            bitmap = null;
+        }
+        if (tileSource != null) {
+            tileSource.recycle();
+            tileSource = null;
+        }
+        pyramid = null;
+    }
+}
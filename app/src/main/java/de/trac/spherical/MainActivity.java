@@ -1,6 +1,8 @@
 package de.trac.spherical;
 
 import android.Manifest;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -9,6 +11,8 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
@@ -29,11 +33,39 @@ import android.view.WindowManager;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import de.trac.spherical.parser.ByteBufferInputStream;
+import de.trac.spherical.parser.DecodedImage;
+import de.trac.spherical.parser.HttpRangeInputStream;
+import de.trac.spherical.parser.ParallelJpegDecoder;
 import de.trac.spherical.parser.PhotoSphereMetadata;
 import de.trac.spherical.parser.PhotoSphereParser;
+import de.trac.spherical.parser.PreviewDecoder;
+import de.trac.spherical.parser.ReplayInputStream;
+import de.trac.spherical.parser.TileCache;
+import de.trac.spherical.rendering.BitmapPool;
+import de.trac.spherical.rendering.DecodePlanner;
 import de.trac.spherical.rendering.PhotoSphereSurfaceView;
+import de.trac.spherical.rendering.TilePyramid;
+import de.trac.spherical.rendering.TileSource;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -42,6 +74,22 @@ public class MainActivity extends AppCompatActivity {
     public static final String MIME_PHOTO_SPHERE = "application/vnd.google.panorama360+jpg";
     private static final int PERMISSION_REQUEST_READ_EXTERNAL_STORAGE = 387;
 
+    // Photo spheres wider than this are shown as a pyramid of tiles, level 0 fitting this width.
+    private static final int PYRAMID_COARSE_WIDTH = 2048;
+    private static final int PYRAMID_TILE_SIZE = 512;
+
+    // Decoded tiles of recently opened photo spheres kept on disk.
+    private static final long TILE_CACHE_SIZE = 256L * 1024 * 1024;
+
+    // Bitmaps no longer shown are kept for reuse, up to this fraction of the heap.
+    private static final int BITMAP_POOL_HEAP_FRACTION = 2;
+
+    // Decoded images of the gallery, which are not shown, are kept up to this fraction of the heap.
+    private static final int IMAGE_CACHE_HEAP_FRACTION = 4;
+
+    // Images up to this far from the shown one are decoded in the background.
+    private static final int PREFETCH_DISTANCE = 1;
+
     private FragmentManager fm;
 
     //UI
@@ -58,6 +106,28 @@ public class MainActivity extends AppCompatActivity {
     private Intent cachedIntent;
     private Bitmap bitmap;
     private PhotoSphereMetadata metadata;
+    private TilePyramid tilePyramid;
+    private TileSource tileSource;
+
+    //Gallery
+    private List<Uri> imageUris = Collections.emptyList();
+    private String imageType;
+    private volatile int imageIndex = 0;
+    // Decoded image shown, null while its preview is shown or it is being loaded.
+    private LoadedImage shownImage;
+    private AsyncTask<Uri, LoadedImage, LoadedImage> loadTask;
+    private ImageCache imageCache;
+    private final Set<Uri> prefetchingUris = new HashSet<>();
+    private ExecutorService prefetchExecutor;
+    private boolean destroyed = false;
+
+    //Decoding
+    private ExecutorService decodeExecutor;
+    private ParallelJpegDecoder parallelDecoder;
+    private TileCache tileCache;
+    private boolean tileCacheOpened = false;
+    private BitmapPool bitmapPool;
+    private DecodePlanner decodePlanner;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -67,6 +137,11 @@ public class MainActivity extends AppCompatActivity {
 
         fm = getSupportFragmentManager();
 
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        long heap = activityManager.getMemoryClass() * 1024L * 1024L;
+        bitmapPool = new BitmapPool(heap / BITMAP_POOL_HEAP_FRACTION);
+        imageCache = new ImageCache((int) Math.min(Integer.MAX_VALUE, heap / IMAGE_CACHE_HEAP_FRACTION), bitmapPool);
+
         handleIntent(getIntent());
     }
 
@@ -102,6 +177,15 @@ public class MainActivity extends AppCompatActivity {
                 return true;
             }
 
+            @Override
+            public boolean onFling(MotionEvent start, MotionEvent end, float velocityX, float velocityY) {
+                // Horizontal swipes move through the gallery, unless they move the image itself.
+                if (Math.abs(velocityX) < Math.abs(velocityY) || currentlyShownImageFragment == null
+                        || !currentlyShownImageFragment.isSwipeEnabled()) {
+                    return false;
+                }
+                return showImage(imageIndex + (velocityX < 0 ? 1 : -1));
+            }
         });
     }
 
@@ -111,8 +195,9 @@ public class MainActivity extends AppCompatActivity {
      */
     private void handleIntent(Intent intent) {
         switch (intent.getAction()) {
-            //Image was sent into the app
+            //Images were sent into the app
             case Intent.ACTION_SEND:
+            case Intent.ACTION_SEND_MULTIPLE:
                 showProgressFragment();
                 checkPermissionAndHandleSentImage(intent);
                 break;
@@ -160,6 +245,7 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Distinguish type of sent bitmap. Images with the MIME type of a photosphere will be directly
      * displayed, while images with MIME type bitmap/* are being manually tested using {@link PhotoSphereParser}.
+     * Several images sent at once are shown as a gallery, which is browsed by swiping.
      * @param intent incoming intent.
      */
     void handleSentImageIntent(Intent intent) {
@@ -167,51 +253,660 @@ public class MainActivity extends AppCompatActivity {
             throw new AssertionError("Intent is null!");
         }
 
-        final String type = intent.getType();
+        String type = intent.getType();
         if (type == null) {
             Toast.makeText(this, "TODO: Figure out what to do :D", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        final Uri imageUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
-        if (imageUri == null) {
+        List<Uri> uris = new ArrayList<>();
+        if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            ArrayList<Uri> streams = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (streams != null) {
+                for (Uri uri : streams) {
+                    if (uri != null) {
+                        uris.add(uri);
+                    }
+                }
+            }
+        } else {
+            Uri imageUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            if (imageUri != null) {
+                uris.add(imageUri);
+            }
+        }
+        if (uris.isEmpty()) {
             Toast.makeText(this, R.string.toast_file_not_found, Toast.LENGTH_SHORT).show();
             return;
         }
 
-        // process image asynchronous.
-        new AsyncTask<Uri, Void, Void>() {
+        imageUris = uris;
+        imageType = type;
+        showImage(0);
+    }
+
+    /**
+     * Show an image of the gallery. The shown image is cached, the new one is taken from the
+     * cache, from a running prefetch or loaded with a preview. Its neighbours are prefetched, once
+     * it has been decoded.
+     * @param index position of the image in the gallery.
+     * @return false, if there is no image at the position.
+     */
+    private boolean showImage(int index) {
+        if (index < 0 || index >= imageUris.size()) {
+            return false;
+        }
+        imageIndex = index;
+        Uri uri = imageUris.get(index);
+
+        // A running load stops before the full decode. If that has started already, the image
+        // is cached once it has been decoded.
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+        if (shownImage != null) {
+            if (shownImage.tileSource != null) {
+                shownImage.tileSource.releaseIdleDecoders();
+            }
+            imageCache.put(shownImage.uri, shownImage);
+            shownImage = null;
+        }
+
+        LoadedImage image = imageCache.remove(uri);
+        if (image != null) {
+            showLoadedImage(image);
+        } else if (prefetchingUris.contains(uri)) {
+            // Shown as soon as the prefetch is done.
+            showProgressFragment();
+        } else {
+            loadImage(uri);
+        }
+        return true;
+    }
+
+    /**
+     * Load an image asynchronous, showing its preview first. Loads run one after the other, so
+     * that swiping quickly does not decode several images at once beyond the memory budget.
+     * A load cancelled by a swipe stops before the full decode, if it has not started yet.
+     * @param uri image to load.
+     */
+    private void loadImage(Uri uri) {
+        final String type = imageType;
+        loadTask = new AsyncTask<Uri, LoadedImage, LoadedImage>() {
+
             @Override
-            protected Void doInBackground(Uri... params) {
-                Uri uri = params[0];
+            protected LoadedImage doInBackground(Uri... params) {
+                final AsyncTask<?, ?, ?> task = this;
+                return decodeImage(params[0], type, new PreviewListener() {
+                    @Override
+                    public void onPreview(LoadedImage preview) {
+                        publishProgress(preview);
+                    }
 
-                try {
-                    bitmap = BitmapFactory.decodeStream(getContentResolver().openInputStream(uri));
-                    metadata = PhotoSphereParser.parse(getContentResolver().openInputStream(uri));
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    @Override
+                    public boolean isCancelled() {
+                        return task.isCancelled();
+                    }
+                });
+            }
+
+            @Override
+            protected void onProgressUpdate(LoadedImage... preview) {
+                display(preview[0]);
+            }
+
+            @Override
+            protected void onPostExecute(LoadedImage image) {
+                loadTask = null;
+                if (destroyed) {
+                    image.release(bitmapPool);
+                } else if (image.bitmap != null) {
+                    showLoadedImage(image);
+                } else {
+                    image.release(bitmapPool);
+                    Toast.makeText(MainActivity.this, R.string.toast_io_error, Toast.LENGTH_SHORT).show();
+                    if (currentlyShownImageFragment == null) {
+                        displayImage(type);
+                    }
                 }
+            }
 
-                return null;
+            @Override
+            protected void onCancelled(LoadedImage image) {
+                // Swiped away meanwhile, the image is kept for swiping back.
+                if (image == null) {
+                    return;
+                }
+                if (!destroyed && image.bitmap != null) {
+                    imageCache.put(image.uri, image);
+                } else {
+                    image.release(bitmapPool);
+                }
             }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, uri);
+    }
+
+    /**
+     * Decode the images next to the shown one in the background, one at a time.
+     */
+    private void prefetchNeighbours() {
+        for (int distance = 1; distance <= PREFETCH_DISTANCE; distance++) {
+            // The next image first, it is the one more likely swiped to.
+            prefetch(imageIndex + distance);
+            prefetch(imageIndex - distance);
+        }
+    }
 
+    private void prefetch(final int index) {
+        if (index < 0 || index >= imageUris.size()) {
+            return;
+        }
+        final Uri uri = imageUris.get(index);
+        final String type = imageType;
+        if (prefetchingUris.contains(uri) || imageCache.get(uri) != null
+                || (shownImage != null && shownImage.uri.equals(uri))) {
+            return;
+        }
+        prefetchingUris.add(uri);
+        getPrefetchExecutor().execute(new Runnable() {
             @Override
-            protected void onPostExecute(Void result) {
-                switch (type) {
-                    case MIME_PHOTO_SPHERE:
-                        displayPhotoSphere();
-                        break;
-
-                    default:
-                        if (metadata != null) {
-                            displayPhotoSphere();
+            public void run() {
+                // Skipped, if the gallery has been swiped elsewhere meanwhile.
+                LoadedImage image = null;
+                if (Math.abs(index - imageIndex) <= PREFETCH_DISTANCE) {
+                    image = decodeImage(uri, type, null);
+                }
+                final LoadedImage result = image;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPrefetched(uri, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cache a prefetched image, or show it, if it has been swiped to while it was decoded.
+     * If it has been swiped to, but the prefetch failed or has been skipped, it is loaded
+     * once more, which shows an error if it fails again.
+     * @param uri prefetched image.
+     * @param image decoded image, or null if the prefetch has been skipped.
+     */
+    private void onPrefetched(Uri uri, LoadedImage image) {
+        prefetchingUris.remove(uri);
+        boolean waiting = !destroyed && shownImage == null && loadTask == null
+                && uri.equals(imageUris.get(imageIndex));
+        if (image == null || destroyed || image.bitmap == null) {
+            if (image != null) {
+                image.release(bitmapPool);
+            }
+            if (waiting) {
+                loadImage(uri);
+            }
+        } else if (waiting) {
+            showLoadedImage(image);
+        } else {
+            imageCache.put(uri, image);
+        }
+    }
+
+    /**
+     * Create the thread prefetching images on first use. It runs at background priority, behind
+     * the image being shown.
+     * @return the executor.
+     */
+    private ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "Prefetch");
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Decode an image with its metadata and, for large photo spheres, its detail levels.
+     * The bitmap is retained in the pool, until the image is released. Runs on a background thread.
+     * @param uri image to decode.
+     * @param type MIME type the image has been sent with.
+     * @param previewListener receives a preview while the image is decoded and cancels the full
+     *                        decode, or null to decode no preview.
+     * @return the image, without bitmap if it could not be decoded.
+     */
+    private LoadedImage decodeImage(final Uri uri, String type, PreviewListener previewListener) {
+        LoadedImage image = new LoadedImage(uri, type);
+        PhotoSphereParser parser = new PhotoSphereParser();
+        parser.setReadThumbnail(previewListener != null);
+
+        // Open the image only once. Local files are mapped, parsed, previewed and then decoded
+        // from the same mapping. For other images, the header read by the parser is recorded and
+        // replayed to the decoder, so no byte is read from storage twice.
+        final ByteBuffer buffer = mapImage(uri);
+        InputStream inputStream = null;
+        try {
+            InputStream imageStream = null;
+            if (buffer != null) {
+                try {
+                    image.metadata = parser.read(buffer, false);
+                } catch (IOException e) {
+                    // Broken metadata, the image is still shown as flat image.
+                    Log.w(TAG, "Could not read metadata of " + uri, e);
+                }
+            } else {
+                ReplayInputStream replayStream = new ReplayInputStream(openImageStream(uri));
+                inputStream = replayStream;
+                try {
+                    image.metadata = parser.read(replayStream, false);
+                } catch (IOException e) {
+                    // Broken metadata, the image is still shown as flat image. All bytes read
+                    // so far have been recorded, so the decoder starts over at the beginning.
+                    Log.w(TAG, "Could not read metadata of " + uri, e);
+                }
+                replayStream.rewind();
+                imageStream = replayStream;
+            }
+
+            if (previewListener != null) {
+                // Show the EXIF thumbnail, while the full image is being decoded.
+                Bitmap preview = null;
+                final byte[] thumbnail = parser.getThumbnail();
+                if (thumbnail != null) {
+                    preview = decodeStream(new ByteArrayInputStream(thumbnail), false, new TileSource.Opener() {
+                        @Override
+                        public InputStream open() {
+                            return new ByteArrayInputStream(thumbnail);
+                        }
+                    });
+                }
+
+                // Without a thumbnail, decode a preview at 1/8 scale from the DC coefficients.
+                // Mapped files are read straight from the mapping. Streams are recorded once
+                // more for the full decode, so only progressive files are previewed, whose
+                // DC coefficients come first. Baseline streams would be recorded as a whole.
+                if (preview == null) {
+                    ReplayInputStream previewStream = null;
+                    try {
+                        DecodedImage decoded;
+                        if (buffer != null) {
+                            decoded = PreviewDecoder.decode(buffer);
                         } else {
-                            displayFlatImage();
+                            previewStream = new ReplayInputStream(imageStream);
+                            decoded = PreviewDecoder.decode(previewStream, true);
                         }
-                        break;
+                        if (decoded != null) {
+                            preview = bitmapPool.createBitmap(decoded.getWidth(), decoded.getHeight(),
+                                    Bitmap.Config.ARGB_8888);
+                            preview.setPixels(decoded.getPixels(), 0, decoded.getWidth(), 0, 0,
+                                    decoded.getWidth(), decoded.getHeight());
+                        }
+                    } catch (IOException e) {
+                        // Leave it to the platform decoder to deal with the file.
+                        Log.w(TAG, "Could not decode preview of " + uri, e);
+                    }
+                    if (previewStream != null) {
+                        previewStream.rewind();
+                        imageStream = previewStream;
+                    }
+                }
+
+                if (preview != null) {
+                    LoadedImage previewImage = new LoadedImage(uri, type);
+                    previewImage.bitmap = preview;
+                    previewImage.metadata = image.metadata;
+                    previewListener.onPreview(previewImage);
                 }
             }
-        }.execute(imageUri);
+
+            if (isCancelled(previewListener)) {
+                return image;
+            }
+            if (buffer != null) {
+                // Files with restart intervals are decoded on all cores.
+                image.bitmap = decodeInParallel(image, buffer);
+                inputStream = new ByteBufferInputStream(buffer);
+                imageStream = inputStream;
+            }
+            if (image.bitmap == null) {
+                if (image.metadata != null) {
+                    image.bitmap = decodePyramid(image, imageStream);
+                } else {
+                    // Remote images are only downloaded once more, if the pooled bitmap is refused.
+                    image.bitmap = decodeStream(imageStream, image.isSphere(), new TileSource.Opener() {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return buffer != null ? new ByteBufferInputStream(buffer) : openImageStream(uri);
+                        }
+                    });
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load " + uri, e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close " + uri, e);
+                }
+            }
+        }
+
+        if (image.bitmap != null) {
+            bitmapPool.retain(image.bitmap);
+        }
+        return image;
+    }
+
+    /**
+     * Decode level 0 of the pyramid. The tile source is kept, if the image is planned to
+     * be shown as pyramid, otherwise the whole image is decoded within the memory budget.
+     * @param image image to decode, its file is reopened for more decoders.
+     * @param imageStream stream of the image.
+     * @return bitmap of level 0 or of the whole image.
+     */
+    private Bitmap decodePyramid(LoadedImage image, InputStream imageStream) throws IOException {
+        TileSource tiles = TileSource.newInstance(imageStream, getTileCache(), bitmapPool,
+                getOpener(image.uri), Runtime.getRuntime().availableProcessors());
+        // Photo sphere metadata is only read from JPEG files.
+        DecodePlanner.Plan plan = getDecodePlanner().plan(tiles.getWidth(), tiles.getHeight(),
+                "image/jpeg", true);
+        Log.d(TAG, "Decoding " + tiles.getWidth() + "x" + tiles.getHeight() + " as " + plan);
+        if (plan.getStrategy() != DecodePlanner.STRATEGY_PYRAMID) {
+            Bitmap bitmap = tiles.decodeImage(plan.getSampleSize(), plan.getConfig());
+            tiles.recycle();
+            return bitmap;
+        }
+
+        TilePyramid levels = new TilePyramid(tiles.getWidth(), tiles.getHeight(),
+                PYRAMID_TILE_SIZE, PYRAMID_COARSE_WIDTH);
+        image.pyramid = levels;
+        image.tileSource = tiles;
+        return tiles.decodeLevel(levels, 0);
+    }
+
+    /**
+     * Show a decoded image of the gallery and prefetch its neighbours.
+     * @param image the image, owned by the activity while it is shown.
+     */
+    private void showLoadedImage(LoadedImage image) {
+        shownImage = image;
+        display(image);
+        prefetchNeighbours();
+    }
+
+    /**
+     * Display an image or a preview, with the detail levels of the image, if there are any.
+     * @param image image or preview.
+     */
+    private void display(LoadedImage image) {
+        bitmap = image.bitmap;
+        metadata = image.metadata;
+        tilePyramid = image.pyramid;
+        tileSource = image.tileSource;
+        displayImage(image.type);
+    }
+
+    /**
+     * Open an image, either through the content resolver or, for http and https URIs, with
+     * range requests. The header of remote files is fetched first, so the metadata and the
+     * preview are available before the rest of the file is downloaded.
+     * @param uri image to open.
+     * @return buffered stream of the image.
+     */
+    private InputStream openImageStream(Uri uri) throws IOException {
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            // Buffered by the stream itself.
+            return new HttpRangeInputStream(new URL(uri.toString()));
+        }
+        InputStream inputStream = getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+        return new BufferedInputStream(inputStream);
+    }
+
+    /**
+     * Create an opener, which reopens an image for another tile decoder.
+     * @param uri image to open.
+     * @return the opener, or null for remote images, which are not downloaded once more.
+     */
+    private TileSource.Opener getOpener(final Uri uri) {
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            return null;
+        }
+        return new TileSource.Opener() {
+            @Override
+            public InputStream open() throws IOException {
+                return openImageStream(uri);
+            }
+        };
+    }
+
+    /**
+     * Map a local image into memory. The mapping stays valid after the file has been closed.
+     * @param uri image to map.
+     * @return the mapped file, or null if the image is no local file.
+     */
+    private ByteBuffer mapImage(Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        FileInputStream inputStream = null;
+        try {
+            descriptor = getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            FileChannel channel = inputStream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            // Not a file, e.g. a stream from the network. It is read as a stream instead.
+            Log.d(TAG, "Could not map " + uri, e);
+            return null;
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                } else if (descriptor != null) {
+                    descriptor.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Decode a mapped image on all cores, if it has restart intervals and is planned to be
+     * shown at full resolution. Runs on a background thread.
+     * @param image image to decode, with its metadata already parsed.
+     * @param buffer the mapped file.
+     * @return bitmap or null, if the image has to be decoded by the platform decoder.
+     */
+    private Bitmap decodeInParallel(final LoadedImage image, ByteBuffer buffer) {
+        final Bitmap[] result = new Bitmap[1];
+        try {
+            boolean decoded = getParallelDecoder().decode(buffer, new ParallelJpegDecoder.Target() {
+                @Override
+                public boolean accept(int width, int height) {
+                    // The parallel decoder can not sample, so larger images are left to the platform.
+                    // Asked before the file is scanned, so these are not read twice.
+                    DecodePlanner.Plan plan = getDecodePlanner().plan(width, height, "image/jpeg",
+                            image.isSphere());
+                    return plan.isFullResolution();
+                }
+
+                @Override
+                public void start(int width, int height) {
+                    result[0] = bitmapPool.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                }
+
+                @Override
+                public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+                    // The workers write disjoint bands of the bitmap.
+                    result[0].setPixels(pixels, offset, stride, x, y, width, height);
+                }
+            });
+            return decoded ? result[0] : null;
+        } catch (IOException e) {
+            // The platform decoder will take care of it.
+            Log.d(TAG, "Could not decode " + image.uri + " in parallel", e);
+            if (result[0] != null) {
+                bitmapPool.put(result[0]);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image as planned for its size, into a pooled bitmap if there is one. The header
+     * is decoded first to learn the size, its bytes are recorded and replayed for the full decode.
+     * Runs on a background thread.
+     * @param inputStream stream of the image.
+     * @param sphere true, if the image is shown as photo sphere.
+     * @param opener opens the image once more, if the decoder refuses the pooled bitmap.
+     * @return bitmap or null, if the image could not be decoded.
+     */
+    private Bitmap decodeStream(InputStream inputStream, boolean sphere, TileSource.Opener opener) {
+        ReplayInputStream replayStream = new ReplayInputStream(inputStream);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(replayStream, null, options);
+        replayStream.rewind();
+        options.inJustDecodeBounds = false;
+
+        // Sampled and converted as planned, so that the bitmap stays within the memory budget.
+        DecodePlanner.Plan plan = getDecodePlanner().plan(options, sphere);
+        if (plan != null) {
+            Log.d(TAG, "Decoding " + options.outWidth + "x" + options.outHeight + " as " + plan);
+            plan.apply(options);
+
+            // Before KitKat, only JPEG and PNG images at full size can be decoded into existing bitmaps.
+            boolean reusable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    || (plan.getSampleSize() == 1
+                    && ("image/jpeg".equals(options.outMimeType) || "image/png".equals(options.outMimeType)));
+            if (reusable) {
+                bitmapPool.reuse(options, plan.getWidth(), plan.getHeight());
+            }
+        }
+        try {
+            return BitmapFactory.decodeStream(replayStream, null, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                Log.w(TAG, "Could not decode image", e);
+                return null;
+            }
+            // The decoder refused the bitmap. The stream is consumed, so decode the image
+            // from the start into a new one.
+            Log.d(TAG, "Could not reuse bitmap", e);
+            options.inBitmap = null;
+        }
+        InputStream retryStream = null;
+        try {
+            retryStream = opener.open();
+            return BitmapFactory.decodeStream(retryStream, null, options);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not reopen image", e);
+            return null;
+        } finally {
+            if (retryStream != null) {
+                try {
+                    retryStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close image", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the decode planner on first use. Runs on a background thread, since the texture
+     * limit is queried from a GL context.
+     * @return the planner.
+     */
+    private synchronized DecodePlanner getDecodePlanner() {
+        if (decodePlanner == null) {
+            decodePlanner = DecodePlanner.forDevice(this, PYRAMID_COARSE_WIDTH);
+        }
+        return decodePlanner;
+    }
+
+    private synchronized ParallelJpegDecoder getParallelDecoder() {
+        if (parallelDecoder == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            decodeExecutor = Executors.newFixedThreadPool(threads);
+            parallelDecoder = new ParallelJpegDecoder(decodeExecutor, threads);
+        }
+        return parallelDecoder;
+    }
+
+    /**
+     * Open the cache of decoded tiles on first use. Runs on a background thread.
+     * @return the cache, or null if it is not available.
+     */
+    private synchronized TileCache getTileCache() {
+        if (!tileCacheOpened) {
+            tileCacheOpened = true;
+            try {
+                tileCache = new TileCache(new File(getCacheDir(), "tiles"), TILE_CACHE_SIZE);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open tile cache", e);
+            }
+        }
+        return tileCache;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdownNow();
+        }
+        imageCache.evictAll();
+        if (shownImage != null) {
+            shownImage.release(bitmapPool);
+            shownImage = null;
+        }
+        bitmapPool.clear();
+    }
+
+    /**
+     * Display the current bitmap either as photo sphere or as flat image, depending on its MIME type
+     * and metadata. If the right fragment is already shown, only its bitmap is replaced, so the
+     * full image takes the place of the preview without rebuilding the view.
+     * @param type MIME type of the image.
+     */
+    private void displayImage(String type) {
+        boolean sphere = MIME_PHOTO_SPHERE.equals(type) || metadata != null;
+        ImageFragment fragment = sphere ? sphereFragment : flatFragment;
+        if (currentlyShownImageFragment == fragment) {
+            fragment.updateBitmap(getBitmap());
+        } else if (sphere) {
+            displayPhotoSphere();
+        } else {
+            displayFlatImage();
+        }
     }
 
     /**
@@ -272,7 +967,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void displayPhotoSphere() {
         showSphereFragment();
-        currentlyShownImageFragment.updateBitmap(bitmap);
+        currentlyShownImageFragment.updateBitmap(getBitmap());
     }
 
     /**
@@ -280,7 +975,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void displayFlatImage() {
         showFlatImageFragment();
-        currentlyShownImageFragment.updateBitmap(bitmap);
+        currentlyShownImageFragment.updateBitmap(getBitmap());
     }
 
     /**
@@ -301,7 +996,44 @@ public class MainActivity extends AppCompatActivity {
         return gestureDetector;
     }
 
+    /**
+     * Returns the current bitmap to be shown. It is taken back from the pool, in case the sphere
+     * view has returned it after upload, so that no decode overwrites it while it is shown.
+     * @return the bitmap, or null if there is none yet.
+     */
     public Bitmap getBitmap() {
+        bitmapPool.remove(bitmap);
         return bitmap;
     }
+
+    /**
+     * @return the pool of bitmaps, which are no longer shown.
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public TilePyramid getTilePyramid() {
+        return tilePyramid;
+    }
+
+    public TileSource getTileSource() {
+        return tileSource;
+    }
+
+    private static boolean isCancelled(PreviewListener previewListener) {
+        return previewListener != null && previewListener.isCancelled();
+    }
+
+    /**
+     * Receives the preview of an image, while the image is decoded.
+     */
+    private interface PreviewListener {
+        void onPreview(LoadedImage preview);
+
+        /**
+         * @return true, if the image is no longer needed and is not to be decoded in full.
+         */
+        boolean isCancelled();
+    }
 }
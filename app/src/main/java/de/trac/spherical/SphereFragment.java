@@ -40,6 +40,7 @@ public class SphereFragment extends ImageFragment implements View.OnTouchListene
         fragmentRoot.addView(surfaceView);
 
         surfaceView.setOnTouchListener(this);
+        surfaceView.setBitmapPool(getMainActivity().getBitmapPool());
         updateBitmap(getMainActivity().getBitmap());
     }
 
@@ -74,6 +75,13 @@ public class SphereFragment extends ImageFragment implements View.OnTouchListene
             return;
         }
         surfaceView.setBitmap(bitmap);
+        surfaceView.setTileSource(getMainActivity().getTilePyramid(), getMainActivity().getTileSource());
+    }
+
+    @Override
+    public boolean isSwipeEnabled() {
+        // Touch input rotates the sphere.
+        return surfaceView != null && !surfaceView.getUseTouchInput();
     }
 
     public void toggleUseTouchInput() {
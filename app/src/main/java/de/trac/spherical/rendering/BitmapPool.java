@@ -0,0 +1,251 @@
+package de.trac.spherical.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps bitmaps which are no longer shown, so that the next decode can reuse their memory through
+ * {@link BitmapFactory.Options#inBitmap} instead of allocating a new one and leaving the old one
+ * to the garbage collector.
+ *
+ * Bitmaps are kept in buckets by the power of two of their size. Before KitKat, decoders only
+ * reuse bitmaps of exactly the decoded size, afterwards any bitmap of the same bucket is large
+ * enough, once it has been reconfigured. Once the pool exceeds its size, the least recently
+ * returned bitmaps are dropped, as they are to make room for a bitmap which has to be allocated
+ * anew. Dropped bitmaps are not recycled, since the caller may still show them.
+ *
+ * All methods are thread safe.
+ */
+public class BitmapPool {
+
+    private final long maxSize;
+
+    // Bitmaps by bucket, the most recently returned last.
+    private final Map<Integer, List<Bitmap>> buckets = new HashMap<>();
+
+    // All pooled bitmaps with their sizes, the least recently returned first.
+    private final LinkedHashMap<Bitmap, Long> bitmaps = new LinkedHashMap<>();
+    private long size = 0;
+
+    // Bitmaps kept out of the pool by their owner.
+    private final Set<Bitmap> retainedBitmaps = new HashSet<>();
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * @param maxSize maximum number of bytes of all pooled bitmaps
+     */
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes a bitmap of the given size out of the pool. Its pixels are undefined.
+     * @return the bitmap, mutable, or null if there is none which fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long bytes = (long) width * height * getBytesPerPixel(config);
+        List<Bitmap> bucket = buckets.get(getBucket(bytes));
+        if (bucket != null) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bucket.get(i);
+                if (fits(bitmap, width, height, config, bytes)) {
+                    bucket.remove(i);
+                    size -= bitmaps.remove(bitmap);
+                    // Before KitKat, only bitmaps of the same size fit.
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                        bitmap.reconfigure(width, height, config);
+                    }
+                    hitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        // A new bitmap is going to be allocated, make room for it.
+        missCount++;
+        trim(maxSize - bytes);
+        return null;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size, from the pool or newly allocated.
+     * Its pixels are undefined.
+     */
+    public Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Lets a decode reuse a pooled bitmap of the given size, if there is one.
+     * @param options options of the decode, with inPreferredConfig set
+     * @param width width of the decoded bitmap, after sampling
+     * @param height height of the decoded bitmap, after sampling
+     */
+    public void reuse(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        options.inBitmap = get(width, height, options.inPreferredConfig);
+    }
+
+    /**
+     * Adds a bitmap which is no longer shown. Immutable, recycled and already pooled bitmaps are
+     * ignored. The caller must not change the bitmap anymore, unless it is taken back by
+     * {@link #remove(Bitmap)}.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null
+                || bitmaps.containsKey(bitmap) || retainedBitmaps.contains(bitmap)) {
+            return;
+        }
+        long bytes = getByteCount(bitmap);
+        if (bytes > maxSize) {
+            return;
+        }
+        Integer bucket = getBucket(bytes);
+        List<Bitmap> list = buckets.get(bucket);
+        if (list == null) {
+            list = new ArrayList<>();
+            buckets.put(bucket, list);
+        }
+        list.add(bitmap);
+        bitmaps.put(bitmap, bytes);
+        size += bytes;
+        trim(maxSize);
+    }
+
+    /**
+     * Takes a bitmap back, e.g. to show it once more, so that no decode will overwrite it.
+     * @return true, if the bitmap has been pooled
+     */
+    public synchronized boolean remove(Bitmap bitmap) {
+        Long bytes = bitmaps.remove(bitmap);
+        if (bytes == null) {
+            return false;
+        }
+        buckets.get(getBucket(bytes)).remove(bitmap);
+        size -= bytes;
+        return true;
+    }
+
+    /**
+     * Keeps a bitmap out of the pool, e.g. while it is cached to be shown again, so that it is
+     * ignored by {@link #put(Bitmap)} until it is released.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        remove(bitmap);
+        retainedBitmaps.add(bitmap);
+    }
+
+    /**
+     * Adds a retained bitmap, which is no longer needed by its owner.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (retainedBitmaps.remove(bitmap)) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Drops all bitmaps and forgets the retained ones.
+     */
+    public synchronized void clear() {
+        buckets.clear();
+        bitmaps.clear();
+        retainedBitmaps.clear();
+        size = 0;
+    }
+
+    /**
+     * @return number of bytes of all pooled bitmaps
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of pooled bitmaps
+     */
+    public synchronized int getBitmapCount() {
+        return bitmaps.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return share of requests served from the pool, 0 if there has been none
+     */
+    public synchronized float getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (float) hitCount / requests;
+    }
+
+    private void trim(long limit) {
+        Iterator<Map.Entry<Bitmap, Long>> iterator = bitmaps.entrySet().iterator();
+        while (size > limit && iterator.hasNext()) {
+            Map.Entry<Bitmap, Long> entry = iterator.next();
+            buckets.get(getBucket(entry.getValue())).remove(entry.getKey());
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static boolean fits(Bitmap bitmap, int width, int height, Bitmap.Config config, long bytes) {
+        if (bitmap.isRecycled()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount() >= bytes;
+        }
+        return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+    }
+
+    private static int getBucket(long bytes) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(bytes - 1, 0));
+    }
+
+    private static long getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
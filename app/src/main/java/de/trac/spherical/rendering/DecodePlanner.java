@@ -0,0 +1,301 @@
+package de.trac.spherical.rendering;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import static android.opengl.GLES20.GL_MAX_TEXTURE_SIZE;
+import static android.opengl.GLES20.glGetIntegerv;
+
+/**
+ * Decides how an image is decoded, so that it loads within an explicit memory budget instead of
+ * whenever the device happens to have enough.
+ *
+ * The plan is made from the size of the image, read with inJustDecodeBounds, and from the device:
+ * the heap class bounds the memory of the decoded bitmap, the GL texture limit decides whether it
+ * fits a single texture, and the pixels of the screen bound the resolution which can be seen on
+ * the sphere at all. Photo spheres, which can be decoded by region, are shown as a
+ * {@link TilePyramid} once they are wider than its coarse level.
+ */
+public class DecodePlanner {
+
+    private static final String TAG = "DecodePlanner";
+
+    // The image is uploaded as a single texture.
+    public static final int STRATEGY_SINGLE = 0;
+    // The image is split into several textures by the renderer.
+    public static final int STRATEGY_TILED = 1;
+    // Only the coarse level is decoded, details are decoded by region on demand.
+    public static final int STRATEGY_PYRAMID = 2;
+
+    // Fraction of the heap a decoded image may take.
+    private static final int HEAP_FRACTION = 4;
+
+    // Texture size every GLES2 device supports in practice, if the limit can not be queried.
+    private static final int DEFAULT_MAX_TEXTURE_SIZE = 2048;
+
+    // EGL constants missing in EGL10.
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    private static int queriedMaxTextureSize = 0;
+
+    private final long memoryBudget;
+    private final int maxTextureSize;
+    private final int screenSize;
+    private final int pyramidWidth;
+
+    /**
+     * @param memoryBudget maximum number of bytes of a decoded image
+     * @param maxTextureSize GL_MAX_TEXTURE_SIZE of the device
+     * @param screenSize larger side of the screen in pixels
+     * @param pyramidWidth width of the coarse level of a tile pyramid
+     */
+    public DecodePlanner(long memoryBudget, int maxTextureSize, int screenSize, int pyramidWidth) {
+        if (memoryBudget <= 0 || maxTextureSize <= 0 || screenSize <= 0 || pyramidWidth <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.memoryBudget = memoryBudget;
+        this.maxTextureSize = maxTextureSize;
+        this.screenSize = screenSize;
+        this.pyramidWidth = pyramidWidth;
+    }
+
+    /**
+     * Creates a planner for the limits of this device. The texture limit is queried from an
+     * offscreen GL context, so this should not be called by the UI thread.
+     * @param pyramidWidth width of the coarse level of a tile pyramid
+     * @return the planner
+     */
+    public static DecodePlanner forDevice(Context context, int pyramidWidth) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heap = activityManager.getMemoryClass() * 1024L * 1024L;
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        int screenSize = Math.max(metrics.widthPixels, metrics.heightPixels);
+        return new DecodePlanner(heap / HEAP_FRACTION, getDeviceMaxTextureSize(), Math.max(screenSize, 1), pyramidWidth);
+    }
+
+    /**
+     * Plans the decode of an image.
+     * @param bounds options of a decode with inJustDecodeBounds
+     * @param sphere true, if the image is shown as photo sphere
+     * @return the plan, or null if the bounds could not be read
+     */
+    public Plan plan(BitmapFactory.Options bounds, boolean sphere) {
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        return plan(bounds.outWidth, bounds.outHeight, bounds.outMimeType, sphere);
+    }
+
+    /**
+     * Plans the decode of an image.
+     * @param mimeType type of the image, may be null
+     * @param sphere true, if the image is shown as photo sphere
+     * @return the plan
+     */
+    public Plan plan(int width, int height, String mimeType, boolean sphere) {
+        boolean jpeg = "image/jpeg".equals(mimeType);
+        boolean regionDecodable = jpeg || "image/png".equals(mimeType) || "image/webp".equals(mimeType);
+        if (sphere && regionDecodable && width > pyramidWidth) {
+            int sampleSize = 1;
+            while (width / sampleSize > pyramidWidth) {
+                sampleSize *= 2;
+            }
+            return new Plan(STRATEGY_PYRAMID, sampleSize, Bitmap.Config.ARGB_8888, width, height);
+        }
+
+        // The sphere is split into textures, but more pixels than the screen can show at the
+        // default field of view are wasted. Flat images are drawn as a single texture.
+        int maxWidth;
+        int maxHeight;
+        if (sphere) {
+            maxWidth = (int) Math.min(Integer.MAX_VALUE, (long) screenSize * 360 / (long) PhotoSphereRenderer.FIELD_OF_VIEW);
+            maxHeight = Integer.MAX_VALUE;
+        } else {
+            maxWidth = maxTextureSize;
+            maxHeight = maxTextureSize;
+        }
+
+        // Resolution is preferred over color depth, so RGB_565 is only chosen if it saves sampling.
+        // Images with alpha keep it.
+        int sampleSize = getSampleSize(width, height, maxWidth, maxHeight, 4);
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        if (jpeg) {
+            int sampleSize565 = getSampleSize(width, height, maxWidth, maxHeight, 2);
+            if (sampleSize565 < sampleSize) {
+                sampleSize = sampleSize565;
+                config = Bitmap.Config.RGB_565;
+            }
+        }
+
+        int sampledWidth = divideRoundingUp(width, sampleSize);
+        int sampledHeight = divideRoundingUp(height, sampleSize);
+        int strategy = sampledWidth <= maxTextureSize && sampledHeight <= maxTextureSize
+                ? STRATEGY_SINGLE : STRATEGY_TILED;
+        return new Plan(strategy, sampleSize, config, width, height);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getMaxTextureSize() {
+        return maxTextureSize;
+    }
+
+    private int getSampleSize(int width, int height, int maxWidth, int maxHeight, int bytesPerPixel) {
+        int sampleSize = 1;
+        while (sampleSize < Math.max(width, height) && (divideRoundingUp(width, sampleSize) > maxWidth
+                || divideRoundingUp(height, sampleSize) > maxHeight
+                || (long) bytesPerPixel * divideRoundingUp(width, sampleSize) * divideRoundingUp(height, sampleSize) > memoryBudget)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Queries GL_MAX_TEXTURE_SIZE from an offscreen context once.
+     * @return the limit, or a default, if no context could be created
+     */
+    private static synchronized int getDeviceMaxTextureSize() {
+        if (queriedMaxTextureSize == 0) {
+            queriedMaxTextureSize = queryMaxTextureSize();
+        }
+        return queriedMaxTextureSize;
+    }
+
+    private static int queryMaxTextureSize() {
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        EGLDisplay display = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        if (display == EGL10.EGL_NO_DISPLAY || !egl.eglInitialize(display, null)) {
+            Log.w(TAG, "Could not initialize EGL");
+            return DEFAULT_MAX_TEXTURE_SIZE;
+        }
+
+        // The display is shared with the surface views, so it is not terminated.
+        int[] configAttributes = {
+                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL10.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!egl.eglChooseConfig(display, configAttributes, configs, 1, configCount) || configCount[0] == 0) {
+            Log.w(TAG, "No EGL config for an offscreen surface");
+            return DEFAULT_MAX_TEXTURE_SIZE;
+        }
+
+        EGLContext context = egl.eglCreateContext(display, configs[0], EGL10.EGL_NO_CONTEXT,
+                new int[] {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            Log.w(TAG, "Could not create an EGL context");
+            return DEFAULT_MAX_TEXTURE_SIZE;
+        }
+        EGLSurface surface = egl.eglCreatePbufferSurface(display, configs[0],
+                new int[] {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+        int maxTextureSize = DEFAULT_MAX_TEXTURE_SIZE;
+        if (surface != null && surface != EGL10.EGL_NO_SURFACE) {
+            if (egl.eglMakeCurrent(display, surface, surface, context)) {
+                int[] size = new int[1];
+                glGetIntegerv(GL_MAX_TEXTURE_SIZE, size, 0);
+                if (size[0] > 0) {
+                    maxTextureSize = size[0];
+                }
+                egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            }
+            egl.eglDestroySurface(display, surface);
+        }
+        egl.eglDestroyContext(display, context);
+        return maxTextureSize;
+    }
+
+    /**
+     * How an image is to be decoded.
+     */
+    public static class Plan {
+
+        private final int strategy;
+        private final int sampleSize;
+        private final Bitmap.Config config;
+        private final int width;
+        private final int height;
+
+        Plan(int strategy, int sampleSize, Bitmap.Config config, int imageWidth, int imageHeight) {
+            this.strategy = strategy;
+            this.sampleSize = sampleSize;
+            this.config = config;
+            this.width = divideRoundingUp(imageWidth, sampleSize);
+            this.height = divideRoundingUp(imageHeight, sampleSize);
+        }
+
+        /**
+         * @return one of the strategies, e.g. {@link #STRATEGY_SINGLE}
+         */
+        public int getStrategy() {
+            return strategy;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public Bitmap.Config getConfig() {
+            return config;
+        }
+
+        /**
+         * @return width of the decoded bitmap, of the coarse level for a pyramid
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return height of the decoded bitmap, of the coarse level for a pyramid
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return number of bytes of the decoded bitmap
+         */
+        public long getByteCount() {
+            return (config == Bitmap.Config.RGB_565 ? 2L : 4L) * width * height;
+        }
+
+        /**
+         * @return true, if the image is decoded at full resolution in ARGB_8888 as a whole
+         */
+        public boolean isFullResolution() {
+            return strategy != STRATEGY_PYRAMID && sampleSize == 1 && config == Bitmap.Config.ARGB_8888;
+        }
+
+        /**
+         * Sets sample size and pixel config of a decode.
+         */
+        public void apply(BitmapFactory.Options options) {
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " " + config + ", sample size " + sampleSize + ", strategy " + strategy;
+        }
+    }
+}
@@ -151,6 +151,87 @@ public class PhotoSphereGeometry {
         indexBuffer.position(0);
     }
 
+    /**
+     * Initializes the native buffers with a patch of a sphere, which is covered by the rectangle
+     * [u0, u1] x [v0, v1] of an equirectangular image. The texture coordinates are remapped to
+     * [0, 1] x [0, 1], so that the patch can be drawn with a texture holding just that rectangle.
+     * The patch is mapped like the full sphere, so neighbouring patches fit seamlessly.
+     * @param radius the sphere's radius
+     * @param polyCountX the number of polygons of the patch in x direction
+     * @param polyCountY the number of polygons of the patch in y direction
+     */
+    private PhotoSphereGeometry(float radius, int polyCountX, int polyCountY,
+                                float u0, float v0, float u1, float v1) {
+
+        final int polyCountXPitch = polyCountX + 1;
+        final int vertexCount = polyCountXPitch * (polyCountY + 1);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(vertexCount*3*4);
+        buffer.order(ByteOrder.nativeOrder());
+        vertexBuffer = buffer.asFloatBuffer();
+
+        buffer = ByteBuffer.allocateDirect(vertexCount*2*4);
+        buffer.order(ByteOrder.nativeOrder());
+        textureCoordinatesBuffer = buffer.asFloatBuffer();
+
+        buffer = ByteBuffer.allocateDirect(polyCountX*polyCountY*6*2);
+        buffer.order(ByteOrder.nativeOrder());
+        indexBuffer = buffer.asShortBuffer();
+
+        // Same winding as the full sphere.
+        for (int y = 0, level = 0; y < polyCountY; y++, level += polyCountXPitch) {
+            for (int x = 0; x < polyCountX; x++) {
+                final int curr = level + x;
+                indexBuffer.put((short)(curr + polyCountXPitch));
+                indexBuffer.put((short)(curr));
+                indexBuffer.put((short)(curr + 1));
+
+                indexBuffer.put((short)(curr + polyCountXPitch));
+                indexBuffer.put((short)(curr + 1));
+                indexBuffer.put((short)(curr + 1 + polyCountXPitch));
+            }
+        }
+
+        for (int y = 0; y <= polyCountY; y++) {
+            final float tv = (float) y / polyCountY;
+            final double ay = Math.PI * (v0 + (v1 - v0) * tv);
+            final double sinay = Math.sin(ay);
+            for (int x = 0; x <= polyCountX; x++) {
+                final float tu = (float) x / polyCountX;
+                final double axz = 2.0 * Math.PI * (u0 + (u1 - u0) * tu);
+                vertexBuffer.put((float) (radius * Math.cos(axz) * sinay));
+                vertexBuffer.put((float) (radius * Math.cos(ay)));
+                vertexBuffer.put((float) (radius * Math.sin(axz) * sinay));
+                textureCoordinatesBuffer.put(tu);
+                textureCoordinatesBuffer.put(tv);
+            }
+        }
+
+        vertexBuffer.position(0);
+        textureCoordinatesBuffer.position(0);
+        indexBuffer.position(0);
+    }
+
+    /**
+     * Creates one patch of a sphere for each tile of an equirectangular image split into a grid.
+     * @param radius the sphere's radius
+     * @param polyCountX the number of polygons around the whole sphere in x direction
+     * @param polyCountY the number of polygons around the whole sphere in y direction
+     * @param bounds bounds of each tile {u0, v0, u1, v1} in texture coordinates of the whole image
+     * @return one patch per tile, in the order of the bounds
+     */
+    public static PhotoSphereGeometry[] createTiles(float radius, int polyCountX, int polyCountY, float[][] bounds) {
+        PhotoSphereGeometry[] tiles = new PhotoSphereGeometry[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            float[] b = bounds[i];
+            // Keep the polygon density of the full sphere, at least one polygon per tile.
+            int countX = Math.max(1, Math.round(polyCountX * (b[2] - b[0])));
+            int countY = Math.max(1, Math.round(polyCountY * (b[3] - b[1])));
+            tiles[i] = new PhotoSphereGeometry(radius, countX, countY, b[0], b[1], b[2], b[3]);
+        }
+        return tiles;
+    }
+
     public FloatBuffer getVertexBuffer() {
         return vertexBuffer;
     }
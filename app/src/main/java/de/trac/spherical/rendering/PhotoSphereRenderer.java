@@ -8,27 +8,51 @@ import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import de.trac.spherical.parser.Etc1Encoder;
+import de.trac.spherical.parser.MipmapGenerator;
+import de.trac.spherical.parser.TileCache;
+
+import static android.opengl.GLES11Ext.GL_ETC1_RGB8_OES;
 import static android.opengl.GLES20.GL_COLOR_BUFFER_BIT;
 import static android.opengl.GLES20.GL_COMPILE_STATUS;
 import static android.opengl.GLES20.GL_CULL_FACE;
+import static android.opengl.GLES20.GL_CLAMP_TO_EDGE;
 import static android.opengl.GLES20.GL_CW;
 import static android.opengl.GLES20.GL_DEPTH_BUFFER_BIT;
 import static android.opengl.GLES20.GL_DEPTH_TEST;
+import static android.opengl.GLES20.GL_EXTENSIONS;
 import static android.opengl.GLES20.GL_FLOAT;
 import static android.opengl.GLES20.GL_FRAGMENT_SHADER;
 import static android.opengl.GLES20.GL_LINEAR;
+import static android.opengl.GLES20.GL_LINEAR_MIPMAP_LINEAR;
 import static android.opengl.GLES20.GL_LINK_STATUS;
-import static android.opengl.GLES20.GL_NEAREST;
+import static android.opengl.GLES20.GL_MAX_TEXTURE_SIZE;
+import static android.opengl.GLES20.GL_RGB;
+import static android.opengl.GLES20.GL_RGBA;
 import static android.opengl.GLES20.GL_TEXTURE0;
 import static android.opengl.GLES20.GL_TEXTURE_2D;
 import static android.opengl.GLES20.GL_TEXTURE_MAG_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
 import static android.opengl.GLES20.GL_TRIANGLES;
 import static android.opengl.GLES20.GL_TRUE;
+import static android.opengl.GLES20.GL_UNPACK_ALIGNMENT;
+import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
 import static android.opengl.GLES20.GL_UNSIGNED_SHORT;
+import static android.opengl.GLES20.GL_UNSIGNED_SHORT_5_6_5;
 import static android.opengl.GLES20.GL_VERTEX_SHADER;
 import static android.opengl.GLES20.glActiveTexture;
 import static android.opengl.GLES20.glAttachShader;
@@ -36,10 +60,12 @@ import static android.opengl.GLES20.glBindTexture;
 import static android.opengl.GLES20.glClear;
 import static android.opengl.GLES20.glClearColor;
 import static android.opengl.GLES20.glCompileShader;
+import static android.opengl.GLES20.glCompressedTexImage2D;
 import static android.opengl.GLES20.glCreateProgram;
 import static android.opengl.GLES20.glCreateShader;
 import static android.opengl.GLES20.glDeleteProgram;
 import static android.opengl.GLES20.glDeleteShader;
+import static android.opengl.GLES20.glDeleteTextures;
 import static android.opengl.GLES20.glDisableVertexAttribArray;
 import static android.opengl.GLES20.glDrawElements;
 import static android.opengl.GLES20.glEnable;
@@ -47,13 +73,17 @@ import static android.opengl.GLES20.glEnableVertexAttribArray;
 import static android.opengl.GLES20.glFrontFace;
 import static android.opengl.GLES20.glGenTextures;
 import static android.opengl.GLES20.glGetAttribLocation;
+import static android.opengl.GLES20.glGetIntegerv;
 import static android.opengl.GLES20.glGetProgramInfoLog;
 import static android.opengl.GLES20.glGetProgramiv;
 import static android.opengl.GLES20.glGetShaderInfoLog;
 import static android.opengl.GLES20.glGetShaderiv;
+import static android.opengl.GLES20.glGetString;
 import static android.opengl.GLES20.glGetUniformLocation;
 import static android.opengl.GLES20.glLinkProgram;
+import static android.opengl.GLES20.glPixelStorei;
 import static android.opengl.GLES20.glShaderSource;
+import static android.opengl.GLES20.glTexImage2D;
 import static android.opengl.GLES20.glTexParameteri;
 import static android.opengl.GLES20.glUniform1i;
 import static android.opengl.GLES20.glUniformMatrix4fv;
@@ -63,6 +93,8 @@ import static android.opengl.GLES20.glViewport;
 
 public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
 
+    private static final String TAG = "PhotoSphereRenderer";
+
     /**
      * Default vertex shader.
      *
@@ -99,6 +131,18 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
     public static final int SPHERE_POLY_COUNT_Y = 32;
     public static final float SPHERE_RADIUS = 10.0f;
 
+    // Vertical field of view in degrees.
+    public static final float FIELD_OF_VIEW = 45.0f;
+
+    // Default limit of the memory used by textures.
+    public static final long DEFAULT_TEXTURE_BUDGET = 64L * 1024 * 1024;
+
+    // Rows of pixels read from a bitmap at a time for compression.
+    private static final int COMPRESSION_BAND_HEIGHT = 256;
+
+    // Rows of the first mipmap level built at a time, from about twice as many rows of the bitmap.
+    private static final int MIPMAP_BAND_HEIGHT = 128;
+
     // Store a photoSphereGeometry geometry as framework for the photo texture.
     private PhotoSphereGeometry photoSphereGeometry = null;
 
@@ -111,6 +155,9 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
     // Store view matrix.
     private float viewMatrix [] = new float [16];
 
+    // Store the model view matrix.
+    private float modelViewMatrix [] = new float [16];
+
     // Store the model view projection matrix.
     private float mvpMatrix [] = new float [16];
 
@@ -126,12 +173,45 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
     private int mvpLocation;
     private int texLocation;
 
-    // Store texture.
-    private final int textureID [] = new int[1];
+    // Store all textures, evicting those not visible for long when running out of budget.
+    private final TextureResidency textureResidency = new TextureResidency(DEFAULT_TEXTURE_BUDGET);
+
+    // Store number of textures of the sphere, a single one or one per tile if the image
+    // exceeds the maximum texture size.
+    private int sphereTileCount = 0;
+
+    // Store detail levels of large images.
+    private PyramidLayer pyramidLayer = null;
+
+    // Store tiles to be drawn this frame.
+    private final List<Tile> visibleTiles = new ArrayList<>();
+
+    // Store requested detail levels for lazy loading.
+    private TilePyramid requestedPyramid = null;
+    private TileSource requestedTileSource = null;
+    private boolean tileSourceRequested = false;
+
+    // Store maximum texture size of the device.
+    private int maxTextureSize;
+
+    // Store whether textures are to be compressed to ETC1, and whether the device supports it.
+    private volatile boolean textureCompression = false;
+    private boolean etc1Supported = false;
+    private Etc1Encoder textureEncoder = null;
+
+    // Store whether textures of any size can be mipmapped, otherwise only power of two ones.
+    private boolean npotMipmapSupported = false;
+    private MipmapGenerator mipmapGenerator = null;
+
+    // Store threads compressing textures and building mipmaps.
+    private ThreadPoolExecutor workers = null;
 
     // Store bitmap for lazy loading.
     private Bitmap bitmap = null;
 
+    // Store pool the bitmap is returned to after upload, may be null.
+    private volatile BitmapPool bitmapPool = null;
+
     // Store input handler instance to determine transformation.
     private PhotoSphereSurfaceView surfaceView;
 
@@ -153,37 +233,50 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
      * @param unused unused
      */
     public void onDrawFrame(GL10 unused) {
+        textureResidency.nextFrame();
 
         // Upload texture, if necessary.
         if(bitmap != null) {
-            glBindTexture(GL_TEXTURE_2D, textureID[0]);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-            GLUtils.texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
-            glBindTexture(GL_TEXTURE_2D, 0);
+            uploadTiles(bitmap);
 
-            // Release bitmap for garbage collection.
+            // Hand the bitmap back, so that the next image can be decoded into it.
+            BitmapPool pool = bitmapPool;
+            if (pool != null) {
+                pool.put(bitmap);
+            }
             bitmap = null;
         }
+        updatePyramidLayer();
 
         // Update transformation matrix.
-        Matrix.multiplyMM(mvpMatrix, 0, surfaceView.getRotationMatrix(), 0, modelMatrix, 0);
-        Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, mvpMatrix, 0);
+        Matrix.multiplyMM(modelViewMatrix, 0, surfaceView.getRotationMatrix(), 0, modelMatrix, 0);
+        Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+
+        // Collect the sphere and the visible detail tiles on top, which have been loaded.
+        visibleTiles.clear();
+        for (int i = 0; i < sphereTileCount; i++) {
+            Tile tile = textureResidency.get(TextureResidency.key(0, i, 0));
+            if (tile != null) {
+                visibleTiles.add(tile);
+            }
+        }
+        if (pyramidLayer != null && view != null) {
+            pyramidLayer.update(modelViewMatrix, projectionMatrix, view[3], visibleTiles);
+        }
 
         // Draw the frame.
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
         glUseProgram(programID);
 
         glEnableVertexAttribArray(positionLocation);
-        glVertexAttribPointer(positionLocation, 3, GL_FLOAT, false, 3*4, photoSphereGeometry.getVertexBuffer());
-
         glEnableVertexAttribArray(textureCoordinatesLocation);
-        glVertexAttribPointer(textureCoordinatesLocation, 2, GL_FLOAT, false, 2*4, photoSphereGeometry.getTextureCoordinatesBuffer());
-
         glUniformMatrix4fv(mvpLocation, 1, false, mvpMatrix, 0);
         glUniform1i(texLocation, 0);
-        glBindTexture(GL_TEXTURE_2D, textureID[0]);
-        glDrawElements(GL_TRIANGLES, photoSphereGeometry.getIndexBuffer().capacity(), GL_UNSIGNED_SHORT, photoSphereGeometry.getIndexBuffer());
+
+        // Draw tile by tile, each with its own part of the sphere.
+        for (Tile tile : visibleTiles) {
+            drawTile(tile);
+        }
         glBindTexture(GL_TEXTURE_2D, 0);
 
         glDisableVertexAttribArray(textureCoordinatesLocation);
@@ -192,6 +285,18 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
         glUseProgram(0);
     }
 
+    /**
+     * Draws a single tile with the current program.
+     * @param tile tile to be drawn
+     */
+    private void drawTile(Tile tile) {
+        PhotoSphereGeometry geometry = tile.geometry;
+        glVertexAttribPointer(positionLocation, 3, GL_FLOAT, false, 3*4, geometry.getVertexBuffer());
+        glVertexAttribPointer(textureCoordinatesLocation, 2, GL_FLOAT, false, 2*4, geometry.getTextureCoordinatesBuffer());
+        glBindTexture(GL_TEXTURE_2D, tile.textureID);
+        glDrawElements(GL_TRIANGLES, geometry.getIndexBuffer().capacity(), GL_UNSIGNED_SHORT, geometry.getIndexBuffer());
+    }
+
     /**
      * Callback called if surface changed.
      *
@@ -203,7 +308,7 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
         view = new int[]{0, 0, width, height};
         glViewport(0, 0, width, height);
         float ratio = (float) width / height;
-        Matrix.perspectiveM(projectionMatrix, 0, 45.0f, ratio, 0.25f, 128.0f);
+        Matrix.perspectiveM(projectionMatrix, 0, FIELD_OF_VIEW, ratio, 0.25f, 128.0f);
     }
 
     /**
@@ -227,8 +332,18 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
         // Build shader program.
         programID = buildProgram(DEFAULT_VERTEX_SHADER, DEFAULT_FRAGMENT_SHADER);
 
-        // Generate texture.
-        glGenTextures(1, textureID, 0);
+        // Query texture size limit. Textures of a previous context are gone.
+        int[] size = new int[1];
+        glGetIntegerv(GL_MAX_TEXTURE_SIZE, size, 0);
+        maxTextureSize = size[0];
+        String extensions = glGetString(GL_EXTENSIONS);
+        etc1Supported = extensions != null && extensions.contains("GL_OES_compressed_ETC1_RGB8_texture");
+        npotMipmapSupported = extensions != null && extensions.contains("GL_OES_texture_npot");
+        textureResidency.forget();
+        sphereTileCount = 0;
+        if (pyramidLayer != null) {
+            pyramidLayer.reset();
+        }
 
         // Initialize matrices.
         Matrix.setRotateM(modelMatrix, 0, 90, 1.0f, 0.0f, 0.0f);
@@ -244,6 +359,407 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
         this.bitmap = bitmap;
     }
 
+    /**
+     * Sets the pool uploaded bitmaps are returned to. Without a pool, they are left to the
+     * garbage collector.
+     * @param bitmapPool pool of bitmaps, or null
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Requests the renderer to draw the detail levels of the image on top of the uploaded bitmap,
+     * which has to be level 0 of the pyramid. May not be done immediately.
+     * @param pyramid levels of the image, null to draw the bitmap only
+     * @param tileSource decoder of the tiles, owned by the caller
+     */
+    public synchronized void requestTileSource(TilePyramid pyramid, TileSource tileSource) {
+        this.requestedPyramid = pyramid;
+        this.requestedTileSource = tileSource;
+        this.tileSourceRequested = true;
+    }
+
+    /**
+     * Replaces the pyramid layer, if another tile source has been requested.
+     */
+    private synchronized void updatePyramidLayer() {
+        if (!tileSourceRequested) {
+            return;
+        }
+        tileSourceRequested = false;
+
+        TileSource current = pyramidLayer != null ? pyramidLayer.getSource() : null;
+        if (current == requestedTileSource) {
+            return;
+        }
+        if (pyramidLayer != null) {
+            pyramidLayer.release();
+            pyramidLayer = null;
+        }
+        if (requestedPyramid != null && requestedTileSource != null) {
+            pyramidLayer = new PyramidLayer(requestedPyramid, requestedTileSource, textureResidency,
+                    getTextureEncoder());
+        }
+    }
+
+    /**
+     * Enables compression of textures to ETC1, which takes an eighth of the memory of RGBA8888 at
+     * some loss of quality. Applies to textures uploaded from now on, if the device supports it.
+     * @param textureCompression true, to compress textures
+     */
+    public void setTextureCompression(boolean textureCompression) {
+        this.textureCompression = textureCompression;
+    }
+
+    /**
+     * Returns the encoder for compressed textures. Must be called by the GL thread.
+     * @return the encoder, or null if textures are uploaded uncompressed
+     */
+    private Etc1Encoder getTextureEncoder() {
+        if (!textureCompression || !etc1Supported) {
+            return null;
+        }
+        if (textureEncoder == null) {
+            textureEncoder = new Etc1Encoder(getWorkers(), getWorkers().getMaximumPoolSize());
+        }
+        return textureEncoder;
+    }
+
+    /**
+     * Returns the generator of mipmaps. Must be called by the GL thread.
+     * @return the generator
+     */
+    private MipmapGenerator getMipmapGenerator() {
+        if (mipmapGenerator == null) {
+            mipmapGenerator = new MipmapGenerator(getWorkers(), getWorkers().getMaximumPoolSize());
+        }
+        return mipmapGenerator;
+    }
+
+    /**
+     * Returns the threads preparing textures, one per core. Must be called by the GL thread.
+     * @return the executor
+     */
+    private ThreadPoolExecutor getWorkers() {
+        if (workers == null) {
+            // Threads end when idle, the renderer has no end of life to shut them down.
+            int threads = Runtime.getRuntime().availableProcessors();
+            workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    /**
+     * Uploads the bitmap as a single texture, if the device supports its size. Otherwise it is split
+     * into a grid of tiles, each uploaded as a texture of its own and drawn on its own patch of
+     * the sphere, so that panoramas of any size are rendered at native resolution.
+     * @param bitmap equirectangular image
+     */
+    private void uploadTiles(Bitmap bitmap) {
+        deleteTiles();
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int columns = (width + maxTextureSize - 1) / maxTextureSize;
+        int rows = (height + maxTextureSize - 1) / maxTextureSize;
+        if (columns == 1 && rows == 1) {
+            addSphereTile(createSphereTile(bitmap, 0, 0, width, height, photoSphereGeometry));
+            return;
+        }
+
+        int tileWidth = (width + columns - 1) / columns;
+        int tileHeight = (height + rows - 1) / rows;
+        float[][] bounds = new float[columns * rows][];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * tileWidth;
+                int y = row * tileHeight;
+                bounds[row * columns + column] = new float[] {
+                        (float) x / width,
+                        (float) y / height,
+                        (float) Math.min(x + tileWidth, width) / width,
+                        (float) Math.min(y + tileHeight, height) / height
+                };
+            }
+        }
+
+        PhotoSphereGeometry[] geometries = PhotoSphereGeometry.createTiles(SPHERE_RADIUS,
+                SPHERE_POLY_COUNT_X, SPHERE_POLY_COUNT_Y, bounds);
+        for (int i = 0; i < geometries.length; i++) {
+            int x = (i % columns) * tileWidth;
+            int y = (i / columns) * tileHeight;
+            addSphereTile(createSphereTile(bitmap, x, y, Math.min(tileWidth, width - x),
+                    Math.min(tileHeight, height - y), geometries[i]));
+        }
+    }
+
+    /**
+     * Uploads a part of the bitmap with its mipmaps, compressed if enabled.
+     * @return tile
+     */
+    private Tile createSphereTile(Bitmap bitmap, int x, int y, int width, int height, PhotoSphereGeometry geometry) {
+        Etc1Encoder encoder = getTextureEncoder();
+        Tile tile = null;
+        if (encoder != null) {
+            try {
+                // Read straight from the bitmap, band by band, without copying the tile.
+                ByteBuffer data = compress(encoder, bitmap, x, y, width, height);
+                tile = createTile(TileCache.FORMAT_ETC1, width, height, data, geometry);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not compress texture, uploading it uncompressed", e);
+                encoder = null;
+            }
+        }
+        if (tile == null) {
+            if (x == 0 && y == 0 && width == bitmap.getWidth() && height == bitmap.getHeight()) {
+                tile = createTile(bitmap, geometry);
+            } else {
+                // Only one tile is copied at a time.
+                Bitmap part = Bitmap.createBitmap(bitmap, x, y, width, height);
+                tile = createTile(part, geometry);
+                part.recycle();
+            }
+        }
+
+        // GLES2 supports mipmaps of other than power of two textures by extension only.
+        if ((width == 1 && height == 1)
+                || (!npotMipmapSupported && (!isPowerOfTwo(width) || !isPowerOfTwo(height)))) {
+            return tile;
+        }
+        try {
+            // A tile spanning the whole width covers all 360 degrees.
+            boolean wrap = x == 0 && width == bitmap.getWidth();
+            long bytes = uploadMipmaps(tile.textureID, bitmap, x, y, width, height, encoder, wrap);
+            return new Tile(tile.textureID, geometry, tile.bytes + bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not build mipmaps, sampling the texture bilinear", e);
+            return tile;
+        }
+    }
+
+    /**
+     * Builds the mipmap levels of a part of the bitmap on the CPU, uploads them level by level to
+     * the texture and switches it to trilinear filtering. Level 1 is built from bands of the
+     * bitmap, the others from the level before.
+     * @param encoder compresses the levels to ETC1, null to upload them like the bitmap
+     * @param wrap true, if the part covers all 360 degrees
+     * @return number of bytes of the levels
+     * @throws IOException if the thread has been interrupted
+     */
+    private long uploadMipmaps(int textureID, Bitmap bitmap, int x, int y, int width, int height,
+                               Etc1Encoder encoder, boolean wrap) throws IOException {
+        MipmapGenerator generator = getMipmapGenerator();
+        int levelWidth = MipmapGenerator.getLevelSize(width, 1);
+        int levelHeight = MipmapGenerator.getLevelSize(height, 1);
+        int[] pixels = new int[levelWidth * levelHeight];
+        int[] band = null;
+        for (int top = 0; top < levelHeight; top += MIPMAP_BAND_HEIGHT) {
+            int rows = Math.min(MIPMAP_BAND_HEIGHT, levelHeight - top);
+            int sourceTop = MipmapGenerator.getFirstSourceRow(top, height);
+            int sourceRows = MipmapGenerator.getLastSourceRow(top + rows - 1, height) - sourceTop + 1;
+            if (band == null || band.length < width * sourceRows) {
+                band = new int[width * sourceRows];
+            }
+            bitmap.getPixels(band, 0, width, x, y + sourceTop, width, sourceRows);
+            generator.downsample(band, 0, width, width, height, sourceTop, sourceRows, wrap, pixels, top, rows);
+        }
+
+        // Levels keep the format of level 0, otherwise the texture is incomplete.
+        Bitmap.Config config = bitmap.getConfig() == Bitmap.Config.RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        long bytes = 0;
+        glBindTexture(GL_TEXTURE_2D, textureID);
+        try {
+            int levelCount = MipmapGenerator.getLevelCount(width, height);
+            for (int level = 1; level < levelCount; level++) {
+                if (level > 1) {
+                    pixels = generator.downsample(pixels, levelWidth, levelHeight, wrap);
+                    levelWidth = MipmapGenerator.getLevelSize(levelWidth, 1);
+                    levelHeight = MipmapGenerator.getLevelSize(levelHeight, 1);
+                }
+                bytes += uploadLevel(level, pixels, levelWidth, levelHeight, encoder, config);
+            }
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        } finally {
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
+        return bytes;
+    }
+
+    /**
+     * Uploads a mipmap level to the bound texture.
+     * @return number of bytes of the level
+     * @throws IOException if the thread has been interrupted
+     */
+    private long uploadLevel(int level, int[] pixels, int width, int height, Etc1Encoder encoder,
+                             Bitmap.Config config) throws IOException {
+        if (encoder != null) {
+            ByteBuffer data = encoder.encode(pixels, 0, width, width, height);
+            glCompressedTexImage2D(GL_TEXTURE_2D, level, GL_ETC1_RGB8_OES, width, height, 0,
+                    data.remaining(), data);
+            return data.remaining();
+        }
+
+        // Converted by a bitmap, like level 0.
+        BitmapPool pool = bitmapPool;
+        Bitmap bitmap = pool != null ? pool.createBitmap(width, height, config)
+                : Bitmap.createBitmap(width, height, config);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        boolean rgb565 = config == Bitmap.Config.RGB_565;
+        if (rgb565) {
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 2);
+        }
+        GLUtils.texImage2D(GL_TEXTURE_2D, level, bitmap, 0);
+        if (rgb565) {
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        }
+        if (pool != null) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+        return (rgb565 ? 2L : 4L) * width * height;
+    }
+
+    private static boolean isPowerOfTwo(int size) {
+        return (size & (size - 1)) == 0;
+    }
+
+    /**
+     * Compresses a part of the bitmap to ETC1. Pixels are read in bands, to bound the memory
+     * needed on top of the bitmap.
+     * @return the compressed texture
+     * @throws IOException if the thread has been interrupted
+     */
+    static ByteBuffer compress(Etc1Encoder encoder, Bitmap bitmap, int x, int y, int width, int height) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(Etc1Encoder.getEncodedSize(width, height))
+                .order(ByteOrder.nativeOrder());
+        int bandHeight = Math.min(height, COMPRESSION_BAND_HEIGHT);
+        int[] band = new int[width * bandHeight];
+        for (int top = 0; top < height; top += bandHeight) {
+            int rows = Math.min(bandHeight, height - top);
+            bitmap.getPixels(band, 0, width, x, y + top, width, rows);
+            encoder.encode(band, 0, width, width, rows, data);
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Adds a tile of the sphere to the resident textures.
+     * @param tile uploaded tile
+     */
+    private void addSphereTile(Tile tile) {
+        textureResidency.put(TextureResidency.key(0, sphereTileCount++, 0), tile);
+    }
+
+    /**
+     * Creates a tile with a texture from the given bitmap.
+     * @param bitmap Bitmap to be uploaded
+     * @param geometry part of the sphere the texture is drawn on
+     * @return tile
+     */
+    static Tile createTile(Bitmap bitmap, PhotoSphereGeometry geometry) {
+        // Uploaded as RGB with 5, 6 and 5 bits, or as RGBA with 8 bits per channel.
+        long bytes = (bitmap.getConfig() == Bitmap.Config.RGB_565 ? 2L : 4L) * bitmap.getWidth() * bitmap.getHeight();
+        return new Tile(createTexture(bitmap), geometry, bytes);
+    }
+
+    /**
+     * Creates a tile with a texture from raw or compressed pixels, e.g. read from the tile cache.
+     * Mapped files are uploaded straight from the mapping.
+     * @param format one of the formats of {@link TileCache}
+     * @param pixels pixels from position to limit
+     * @param geometry part of the sphere the texture is drawn on
+     * @return tile
+     */
+    static Tile createTile(int format, int width, int height, ByteBuffer pixels, PhotoSphereGeometry geometry) {
+        int textureID = generateTexture();
+        long bytes;
+        switch (format) {
+            case TileCache.FORMAT_ETC1:
+                glCompressedTexImage2D(GL_TEXTURE_2D, 0, GL_ETC1_RGB8_OES, width, height, 0,
+                        pixels.remaining(), pixels);
+                bytes = pixels.remaining();
+                break;
+            case TileCache.FORMAT_RGB_565:
+                // Rows of two byte pixels are not aligned to four bytes.
+                glPixelStorei(GL_UNPACK_ALIGNMENT, 2);
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, width, height, 0, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, pixels);
+                glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+                bytes = 2L * width * height;
+                break;
+            case TileCache.FORMAT_RGBA_8888:
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+                bytes = 4L * width * height;
+                break;
+            default:
+                glBindTexture(GL_TEXTURE_2D, 0);
+                glDeleteTextures(1, new int[] {textureID}, 0);
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return new Tile(textureID, geometry, bytes);
+    }
+
+    /**
+     * Creates a texture from the given bitmap.
+     * @param bitmap Bitmap to be uploaded
+     * @return texture name
+     */
+    private static int createTexture(Bitmap bitmap) {
+        int textureID = generateTexture();
+        // Rows of two byte pixels are not aligned to four bytes.
+        boolean rgb565 = bitmap.getConfig() == Bitmap.Config.RGB_565;
+        if (rgb565) {
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 2);
+        }
+        GLUtils.texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
+        if (rgb565) {
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return textureID;
+    }
+
+    /**
+     * Generates a texture and binds it, ready for upload.
+     * @return texture name
+     */
+    private static int generateTexture() {
+        int[] textureID = new int[1];
+        glGenTextures(1, textureID, 0);
+        glBindTexture(GL_TEXTURE_2D, textureID[0]);
+        // Switched to trilinear, once mipmaps have been uploaded.
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        // Required for non power of two textures, also keeps tiles from bleeding into each other.
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        return textureID[0];
+    }
+
+    /**
+     * Deletes the textures of all tiles of the sphere.
+     */
+    private void deleteTiles() {
+        for (int i = 0; i < sphereTileCount; i++) {
+            textureResidency.remove(TextureResidency.key(0, i, 0));
+        }
+        sphereTileCount = 0;
+    }
+
+    /**
+     * Returns the texture memory manager, e.g. to change its budget or to read its statistics.
+     * @return texture residency of the renderer
+     */
+    public TextureResidency getTextureResidency() {
+        return textureResidency;
+    }
+
     /**
      * Takes screen coordinates and transforms them into world space
      * @param x x coordinate
@@ -256,6 +772,21 @@ public class PhotoSphereRenderer implements GLSurfaceView.Renderer {
         GLU.gluUnProject(x, y, 1.0f, modelMatrix, 0, projectionMatrix, 0, view, 0, outRayDirection, 0);
     }
 
+    /**
+     * A texture, its size in bytes and the part of the sphere it is drawn on.
+     */
+    static class Tile {
+        final int textureID;
+        final PhotoSphereGeometry geometry;
+        final long bytes;
+
+        Tile(int textureID, PhotoSphereGeometry geometry, long bytes) {
+            this.textureID = textureID;
+            this.geometry = geometry;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Builds a shader program given vertex and fragment shader soruce.
      * @param vertexSource The vertex shader source
@@ -1,5 +1,6 @@
 package de.trac.spherical.rendering;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.hardware.Sensor;
@@ -57,6 +58,14 @@ public class PhotoSphereSurfaceView extends GLSurfaceView implements SensorEvent
 
         // Initialize renderer.
         renderer = new PhotoSphereRenderer(this);
+
+        // Bound texture memory by the heap granted to the app, which is small on low end devices.
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClass = activityManager.getMemoryClass() * 1024L * 1024L;
+        renderer.getTextureResidency().setBudget(Math.min(PhotoSphereRenderer.DEFAULT_TEXTURE_BUDGET, memoryClass / 2));
+
+        // Devices which can not afford the default budget compress their textures.
+        renderer.setTextureCompression(memoryClass / 2 < PhotoSphereRenderer.DEFAULT_TEXTURE_BUDGET);
     }
 
     @Override
@@ -155,6 +164,39 @@ public class PhotoSphereSurfaceView extends GLSurfaceView implements SensorEvent
         renderer.requestBitmapUpload(bitmap);
     }
 
+    /**
+     * Sets the detail levels to be rendered on top of the bitmap, which has to be level 0.
+     * @param pyramid levels of the image, null if there are none
+     * @param tileSource decoder of the tiles, null if there is none
+     */
+    public void setTileSource(TilePyramid pyramid, TileSource tileSource) {
+        renderer.requestTileSource(pyramid, tileSource);
+    }
+
+    /**
+     * Sets the pool bitmaps are returned to, once they have been uploaded.
+     * @param bitmapPool pool of bitmaps, or null
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        renderer.setBitmapPool(bitmapPool);
+    }
+
+    /**
+     * Enables compression of textures to ETC1, see {@link PhotoSphereRenderer#setTextureCompression(boolean)}.
+     * @param textureCompression true, to compress textures
+     */
+    public void setTextureCompression(boolean textureCompression) {
+        renderer.setTextureCompression(textureCompression);
+    }
+
+    /**
+     * Returns the texture memory manager of the renderer, e.g. to read its statistics.
+     * @return texture residency
+     */
+    public TextureResidency getTextureResidency() {
+        return renderer.getTextureResidency();
+    }
+
     /**
      * Sets input to be used for transformation calculation.
      * @param useTouchInput true, if touch input should be used
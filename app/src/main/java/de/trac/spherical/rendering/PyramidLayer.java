@@ -0,0 +1,276 @@
+package de.trac.spherical.rendering;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.trac.spherical.parser.Etc1Encoder;
+import de.trac.spherical.parser.TileCache;
+
+/**
+ * Draws the detail levels of a {@link TilePyramid} on top of the coarse sphere.
+ *
+ * Only tiles of the level matching the current zoom, which intersect the view, are requested.
+ * They are decoded on background threads by a {@link TileScheduler}, those the user is looking
+ * at first, and uploaded by the GL thread, a few per frame, so that rendering never waits for
+ * the decoder. Until a tile has arrived, the coarse sphere shows through.
+ *
+ * Each level is drawn on a slightly smaller sphere than the previous one. Seen from the center
+ * concentric spheres look the same, so finer levels simply win the depth test.
+ *
+ * Textures are kept by the {@link TextureResidency} of the renderer, which may evict them.
+ * Evicted tiles are requested again, as soon as they become visible.
+ */
+class PyramidLayer {
+
+    private static final String TAG = "PyramidLayer";
+
+    // Number of tiles uploaded per frame, to keep frame times even.
+    private static final int MAX_UPLOADS_PER_FRAME = 2;
+
+    // Relative radius offset between two levels.
+    private static final float LEVEL_OFFSET = 0.01f;
+
+    private final TilePyramid pyramid;
+    private final TileSource source;
+    private final TextureResidency residency;
+
+    // Compresses the tiles to ETC1, null to upload them uncompressed.
+    private final Etc1Encoder encoder;
+
+    // Decodes tiles in the background, one per decoder of the source at a time.
+    private final TileScheduler scheduler;
+
+    // Decoded tiles waiting for upload, filled by the loader, drained by the GL thread.
+    private final Queue<DecodedTile> decodedTiles = new ConcurrentLinkedQueue<>();
+
+    // Requested tiles not uploaded yet and uploaded tiles, only accessed by the GL thread.
+    private final Set<Long> pendingTiles = new HashSet<>();
+    private final Set<Long> uploadedTiles = new HashSet<>();
+    private final List<Long> droppedTiles = new ArrayList<>();
+
+    private volatile boolean released = false;
+
+    PyramidLayer(TilePyramid pyramid, TileSource source, TextureResidency residency, Etc1Encoder encoder) {
+        this.pyramid = pyramid;
+        this.source = source;
+        this.residency = residency;
+        this.encoder = encoder;
+        scheduler = new TileScheduler(pyramid, source.getMaxDecoders(), new TileScheduler.Decoder() {
+            @Override
+            public void decode(int level, int column, int row) {
+                load(level, column, row);
+            }
+        });
+    }
+
+    TileSource getSource() {
+        return source;
+    }
+
+    /**
+     * Uploads decoded tiles, requests missing ones and collects those to be drawn.
+     * Must be called by the GL thread.
+     * @param modelViewMatrix rotation of the sphere into eye space
+     * @param projectionMatrix the projection matrix
+     * @param viewportHeight height of the viewport in pixels
+     * @param out will be filled with the tiles to be drawn
+     */
+    void update(float[] modelViewMatrix, float[] projectionMatrix, int viewportHeight, List<PhotoSphereRenderer.Tile> out) {
+        for (int i = 0; i < MAX_UPLOADS_PER_FRAME; i++) {
+            DecodedTile decoded = decodedTiles.poll();
+            if (decoded == null) {
+                break;
+            }
+            upload(decoded);
+        }
+
+        // Level 0 is the coarse sphere itself.
+        int level = pyramid.selectLevel(projectionMatrix, viewportHeight);
+
+        // Tiles no longer visible are requested again, once they are.
+        scheduler.update(level, modelViewMatrix, projectionMatrix, droppedTiles);
+        pendingTiles.removeAll(droppedTiles);
+        droppedTiles.clear();
+        if (level == 0) {
+            return;
+        }
+
+        int columns = pyramid.getColumns(level);
+        int rows = pyramid.getRows(level);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (!pyramid.isVisible(level, column, row, modelViewMatrix, projectionMatrix)) {
+                    continue;
+                }
+                long key = TextureResidency.key(level, column, row);
+                if (pendingTiles.contains(key)) {
+                    continue;
+                }
+                PhotoSphereRenderer.Tile tile = residency.get(key);
+                if (tile != null) {
+                    out.add(tile);
+                } else {
+                    pendingTiles.add(key);
+                    scheduler.request(level, column, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets all tiles, because the GL context has been lost with their textures.
+     * Must be called by the GL thread.
+     */
+    void reset() {
+        scheduler.clear();
+        pendingTiles.clear();
+        uploadedTiles.clear();
+        releaseDecodedTiles();
+    }
+
+    /**
+     * Deletes all textures and stops loading. The source is not recycled, it is owned by the caller.
+     * Must be called by the GL thread.
+     */
+    void release() {
+        released = true;
+        scheduler.shutdown();
+
+        for (long key : uploadedTiles) {
+            residency.remove(key);
+        }
+        pendingTiles.clear();
+        uploadedTiles.clear();
+        releaseDecodedTiles();
+    }
+
+    /**
+     * Reads a tile from the cache or decodes it, called by the workers of the scheduler.
+     */
+    private void load(int level, int column, int row) {
+        if (released) {
+            return;
+        }
+        try {
+            // Tiles decoded before are read from disk.
+            TileCache.CachedTile cachedTile = source.getCachedTile(level, column, row);
+            if (cachedTile != null) {
+                decodedTiles.add(new DecodedTile(level, column, row, cachedTile.getFormat(),
+                        cachedTile.getWidth(), cachedTile.getHeight(), cachedTile.getPixels()));
+                return;
+            }
+            Bitmap bitmap = source.decodeTile(pyramid, level, column, row);
+            if (bitmap == null) {
+                return;
+            }
+            if (encoder == null) {
+                source.cacheTile(level, column, row, bitmap);
+                decodedTiles.add(new DecodedTile(level, column, row, bitmap));
+                return;
+            }
+
+            // Compressed here, so the GL thread only has to upload.
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            ByteBuffer data;
+            try {
+                data = PhotoSphereRenderer.compress(encoder, bitmap, 0, 0, width, height);
+            } finally {
+                source.releaseBitmap(bitmap);
+            }
+            source.cacheTile(level, column, row, TileCache.FORMAT_ETC1, width, height, data);
+            decodedTiles.add(new DecodedTile(level, column, row, TileCache.FORMAT_ETC1, width, height, data));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compress tile " + level + "/" + column + "/" + row, e);
+        } catch (RuntimeException e) {
+            // The source may have been recycled meanwhile.
+            Log.w(TAG, "Could not decode tile " + level + "/" + column + "/" + row, e);
+        }
+    }
+
+    private void upload(DecodedTile decoded) {
+        long key = TextureResidency.key(decoded.level, decoded.column, decoded.row);
+        if (!pendingTiles.remove(key)) {
+            // Requested before a reset.
+            release(decoded);
+            return;
+        }
+
+        float radius = PhotoSphereRenderer.SPHERE_RADIUS * (1.0f - LEVEL_OFFSET * decoded.level);
+        float[] bounds = pyramid.getTileBounds(decoded.level, decoded.column, decoded.row);
+        PhotoSphereGeometry geometry = PhotoSphereGeometry.createTiles(radius,
+                PhotoSphereRenderer.SPHERE_POLY_COUNT_X, PhotoSphereRenderer.SPHERE_POLY_COUNT_Y,
+                new float[][] {bounds})[0];
+
+        if (decoded.bitmap != null) {
+            residency.put(key, PhotoSphereRenderer.createTile(decoded.bitmap, geometry));
+        } else {
+            residency.put(key, PhotoSphereRenderer.createTile(decoded.format, decoded.width,
+                    decoded.height, decoded.pixels, geometry));
+        }
+        uploadedTiles.add(key);
+        release(decoded);
+    }
+
+    private void release(DecodedTile decoded) {
+        if (decoded.bitmap != null) {
+            // Decoded by the source, so the next tile can be decoded into it.
+            source.releaseBitmap(decoded.bitmap);
+        }
+    }
+
+    private void releaseDecodedTiles() {
+        DecodedTile decoded;
+        while ((decoded = decodedTiles.poll()) != null) {
+            release(decoded);
+        }
+    }
+
+    /**
+     * A tile decoded, compressed or read from the cache by the loader, waiting for upload.
+     * Either the bitmap or the pixels are set.
+     */
+    private static class DecodedTile {
+        final int level;
+        final int column;
+        final int row;
+        final Bitmap bitmap;
+
+        // Pixels in one of the formats of TileCache.
+        final int format;
+        final int width;
+        final int height;
+        final ByteBuffer pixels;
+
+        DecodedTile(int level, int column, int row, Bitmap bitmap) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.bitmap = bitmap;
+            this.format = TileCache.FORMAT_RGBA_8888;
+            this.width = bitmap.getWidth();
+            this.height = bitmap.getHeight();
+            this.pixels = null;
+        }
+
+        DecodedTile(int level, int column, int row, int format, int width, int height, ByteBuffer pixels) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.bitmap = null;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package de.trac.spherical.rendering;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static android.opengl.GLES20.glDeleteTextures;
+
+/**
+ * Decides which textures stay in GPU memory.
+ *
+ * Every texture is accounted with its size. Once the budget is exceeded, the textures which have
+ * not been visible for the longest time are deleted. Textures used in the current frame are never
+ * evicted, so the budget may be exceeded temporarily, if the view needs more than it allows.
+ *
+ * All methods but the getters and setters must be called by the GL thread.
+ */
+public class TextureResidency {
+
+    // Textures in order of their last use, the least recently used first.
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private volatile long budget;
+    private volatile long residentBytes = 0;
+    private int frame = 0;
+
+    private volatile long hitCount = 0;
+    private volatile long missCount = 0;
+    private volatile long evictionCount = 0;
+
+    /**
+     * @param budget maximum number of bytes of all resident textures
+     */
+    public TextureResidency(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Starts a new frame. Textures used from now on are protected from eviction.
+     */
+    void nextFrame() {
+        frame++;
+    }
+
+    /**
+     * Returns the texture of a tile and marks it as used in the current frame.
+     * @param key key of the tile, see {@link #key(int, int, int)}
+     * @return the tile, or null if it is not resident
+     */
+    PhotoSphereRenderer.Tile get(long key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        entry.lastUsedFrame = frame;
+        return entry.tile;
+    }
+
+    /**
+     * Adds the texture of a tile, marked as used in the current frame, and evicts textures until
+     * the budget is kept again. A previous texture of the same tile is deleted.
+     * @param key key of the tile, see {@link #key(int, int, int)}
+     * @param tile the uploaded tile
+     */
+    void put(long key, PhotoSphereRenderer.Tile tile) {
+        remove(key);
+        Entry entry = new Entry(tile);
+        entry.lastUsedFrame = frame;
+        entries.put(key, entry);
+        residentBytes += tile.bytes;
+        trim();
+    }
+
+    /**
+     * Deletes the texture of a tile, if it is resident.
+     * @param key key of the tile
+     */
+    void remove(long key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            delete(entry);
+        }
+    }
+
+    /**
+     * Deletes all textures.
+     */
+    void clear() {
+        for (Entry entry : entries.values()) {
+            delete(entry);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Forgets all textures without deleting them, because they have been lost with the GL context.
+     */
+    void forget() {
+        entries.clear();
+        residentBytes = 0;
+    }
+
+    /**
+     * Evicts the least recently used textures, until the budget is kept or all remaining
+     * textures are in use by the current frame.
+     */
+    private void trim() {
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (residentBytes > budget && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.lastUsedFrame == frame) {
+                // All following textures have been used more recently.
+                break;
+            }
+            iterator.remove();
+            delete(entry);
+            evictionCount++;
+        }
+    }
+
+    private void delete(Entry entry) {
+        glDeleteTextures(1, new int[] {entry.tile.textureID}, 0);
+        residentBytes -= entry.tile.bytes;
+    }
+
+    /**
+     * Changes the budget. Textures exceeding it are evicted with the next upload.
+     * @param budget maximum number of bytes of all resident textures
+     */
+    public void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return number of bytes of all resident textures
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return number of resident textures
+     */
+    public int getResidentCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups of resident textures
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of lookups of textures, which had to be loaded (again)
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of textures deleted to keep the budget
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return key of a tile of a {@link TilePyramid}. The coarse sphere uses level 0.
+     */
+    static long key(int level, int column, int row) {
+        return ((long) level << 48) | ((long) row << 24) | column;
+    }
+
+    private static class Entry {
+        final PhotoSphereRenderer.Tile tile;
+        int lastUsedFrame;
+
+        Entry(PhotoSphereRenderer.Tile tile) {
+            this.tile = tile;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.trac.spherical.rendering;
+
+/**
+ * Levels of detail of an equirectangular image, each split into square tiles.
+ *
+ * Level 0 is the coarsest one, small enough to be shown at once as a single texture. Every
+ * following level doubles the resolution, up to the last level at the native resolution.
+ * Which level is needed follows from the texel density on screen, tiles outside of the view
+ * frustum need not be loaded at all.
+ */
+public class TilePyramid {
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int tileSize;
+    private final int levelCount;
+
+    /**
+     * @param imageWidth width of the image at native resolution
+     * @param imageHeight height of the image at native resolution
+     * @param tileSize edge length of the tiles in pixels of their level
+     * @param coarseWidth maximum width of level 0
+     */
+    public TilePyramid(int imageWidth, int imageHeight, int tileSize, int coarseWidth) {
+        if (imageWidth <= 0 || imageHeight <= 0 || tileSize <= 0 || coarseWidth <= 0) {
+            throw new IllegalArgumentException("Sizes must be positive");
+        }
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileSize = tileSize;
+
+        int levels = 1;
+        while ((imageWidth >> (levels - 1)) > coarseWidth) {
+            levels++;
+        }
+        this.levelCount = levels;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @return factor by which the level is downsampled, a power of two as used by inSampleSize.
+     */
+    public int getSampleSize(int level) {
+        return 1 << (levelCount - 1 - level);
+    }
+
+    /**
+     * @return number of columns of tiles of the level.
+     */
+    public int getColumns(int level) {
+        int size = tileSize * getSampleSize(level);
+        return (imageWidth + size - 1) / size;
+    }
+
+    /**
+     * @return number of rows of tiles of the level.
+     */
+    public int getRows(int level) {
+        int size = tileSize * getSampleSize(level);
+        return (imageHeight + size - 1) / size;
+    }
+
+    /**
+     * Returns the area of a tile in pixels of the image at native resolution.
+     * @param out will be filled with {left, top, right, bottom}
+     */
+    public void getTileRect(int level, int column, int row, int[] out) {
+        int size = tileSize * getSampleSize(level);
+        out[0] = column * size;
+        out[1] = row * size;
+        out[2] = Math.min(out[0] + size, imageWidth);
+        out[3] = Math.min(out[1] + size, imageHeight);
+    }
+
+    /**
+     * Returns the area of a tile in texture coordinates of the whole image.
+     * @return {u0, v0, u1, v1}
+     */
+    public float[] getTileBounds(int level, int column, int row) {
+        int[] rect = new int[4];
+        getTileRect(level, column, row, rect);
+        return new float[] {
+                (float) rect[0] / imageWidth,
+                (float) rect[1] / imageHeight,
+                (float) rect[2] / imageWidth,
+                (float) rect[3] / imageHeight
+        };
+    }
+
+    /**
+     * Selects the coarsest level, which still provides at least one texel per pixel in the center
+     * of the screen.
+     * @param projectionMatrix the projection matrix, as set up by Matrix.perspectiveM
+     * @param viewportHeight height of the viewport in pixels
+     * @return level to be shown
+     */
+    public int selectLevel(float[] projectionMatrix, int viewportHeight) {
+        // projectionMatrix[5] is cot(fovY / 2), so this is the number of pixels per radian.
+        float pixelsPerRadian = projectionMatrix[5] * viewportHeight / 2.0f;
+        for (int level = 0; level < levelCount; level++) {
+            double texelsPerRadian = (imageWidth / (double) getSampleSize(level)) / (2.0 * Math.PI);
+            if (texelsPerRadian >= pixelsPerRadian) {
+                return level;
+            }
+        }
+        return levelCount - 1;
+    }
+
+    /**
+     * Tests, whether a tile may be visible. The tile is approximated by the cone around the
+     * direction of its center, which contains its corners.
+     * @param modelViewMatrix rotation of the sphere into eye space, the camera looking along -z
+     * @param projectionMatrix the projection matrix, as set up by Matrix.perspectiveM
+     * @return false, if the tile is definitely outside of the view frustum
+     */
+    public boolean isVisible(int level, int column, int row, float[] modelViewMatrix, float[] projectionMatrix) {
+        float[] bounds = getTileBounds(level, column, row);
+        double[] center = direction((bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2);
+
+        // Angular radius of the tile: the largest angle between its center and its corners or
+        // edge midpoints, which covers tiles touching the poles as well.
+        double radius = 0;
+        for (int i = 0; i <= 2; i++) {
+            for (int j = 0; j <= 2; j++) {
+                float u = bounds[0] + (bounds[2] - bounds[0]) * i / 2;
+                float v = bounds[1] + (bounds[3] - bounds[1]) * j / 2;
+                radius = Math.max(radius, angle(center, direction(u, v)));
+            }
+        }
+
+        double toCenter = angleToView(center, modelViewMatrix);
+
+        // Half of the diagonal field of view.
+        double tanX = 1.0 / projectionMatrix[0];
+        double tanY = 1.0 / projectionMatrix[5];
+        double halfFov = Math.atan(Math.sqrt(tanX * tanX + tanY * tanY));
+
+        return toCenter <= halfFov + radius;
+    }
+
+    /**
+     * Returns the angle between the view direction and the center of a tile, e.g. to load the
+     * tiles the user is looking at first.
+     * @param modelViewMatrix rotation of the sphere into eye space, the camera looking along -z
+     * @return angle in radians
+     */
+    public double getAngleToView(int level, int column, int row, float[] modelViewMatrix) {
+        float[] bounds = getTileBounds(level, column, row);
+        return angleToView(direction((bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2), modelViewMatrix);
+    }
+
+    private static double angleToView(double[] direction, float[] modelViewMatrix) {
+        // Eye space direction, column major matrix.
+        float[] m = modelViewMatrix;
+        double ex = m[0] * direction[0] + m[4] * direction[1] + m[8] * direction[2];
+        double ey = m[1] * direction[0] + m[5] * direction[1] + m[9] * direction[2];
+        double ez = m[2] * direction[0] + m[6] * direction[1] + m[10] * direction[2];
+        double length = Math.sqrt(ex * ex + ey * ey + ez * ez);
+        return Math.acos(Math.max(-1.0, Math.min(1.0, -ez / length)));
+    }
+
+    /**
+     * @return unit vector of the point of the sphere with the given texture coordinates, using
+     * the mapping of {@link PhotoSphereGeometry}.
+     */
+    static double[] direction(float u, float v) {
+        double axz = 2.0 * Math.PI * u;
+        double ay = Math.PI * v;
+        double sinay = Math.sin(ay);
+        return new double[] {Math.cos(axz) * sinay, Math.cos(ay), Math.sin(axz) * sinay};
+    }
+
+    private static double angle(double[] a, double[] b) {
+        double dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+        return Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+    }
+}
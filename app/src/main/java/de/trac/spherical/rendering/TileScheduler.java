@@ -0,0 +1,145 @@
+package de.trac.spherical.rendering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes requested tiles of a {@link TilePyramid} on several threads, those closest to the
+ * view direction first.
+ *
+ * Workers do not take a fixed request, but the one closest to the view at the time they become
+ * free. The view is updated every frame, tiles which have left it are dropped before they are
+ * decoded. Tiles already being decoded are finished.
+ *
+ * {@link #request(int, int, int)} and {@link #update(int, float[], float[], List)} must be called
+ * by the GL thread.
+ */
+class TileScheduler {
+
+    /**
+     * Decodes a tile, called by the workers.
+     */
+    interface Decoder {
+        void decode(int level, int column, int row);
+    }
+
+    private final TilePyramid pyramid;
+    private final Decoder decoder;
+
+    // Threads end when idle, so a scheduler dropped together with its GL context does not leak them.
+    private final ThreadPoolExecutor workers;
+
+    // Waiting requests, the closest to the view first.
+    private final PriorityQueue<Request> queue = new PriorityQueue<>();
+
+    // Last view, only accessed by the GL thread.
+    private final float[] modelViewMatrix = new float[16];
+    private boolean viewKnown = false;
+
+    /**
+     * @param threads number of tiles decoded at the same time
+     */
+    TileScheduler(TilePyramid pyramid, int threads, Decoder decoder) {
+        this.pyramid = pyramid;
+        this.decoder = decoder;
+        workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a tile to be decoded.
+     */
+    void request(int level, int column, int row) {
+        Request request = new Request(level, column, row);
+        if (viewKnown) {
+            request.angle = pyramid.getAngleToView(level, column, row, modelViewMatrix);
+        }
+        synchronized (queue) {
+            queue.add(request);
+        }
+
+        // Each run takes the best request there is by then, or none if it has been dropped.
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                Request next;
+                synchronized (queue) {
+                    next = queue.poll();
+                }
+                if (next != null) {
+                    decoder.decode(next.level, next.column, next.row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Orders the waiting requests by the current view and drops those of tiles, which are no
+     * longer visible or of another level.
+     * @param level level currently shown
+     * @param modelViewMatrix rotation of the sphere into eye space, the camera looking along -z
+     * @param projectionMatrix the projection matrix
+     * @param dropped will be filled with the keys of the dropped tiles
+     */
+    void update(int level, float[] modelViewMatrix, float[] projectionMatrix, List<Long> dropped) {
+        System.arraycopy(modelViewMatrix, 0, this.modelViewMatrix, 0, 16);
+        viewKnown = true;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            List<Request> requests = new ArrayList<>(queue);
+            queue.clear();
+            for (Request request : requests) {
+                if (request.level != level
+                        || !pyramid.isVisible(request.level, request.column, request.row, modelViewMatrix, projectionMatrix)) {
+                    dropped.add(TextureResidency.key(request.level, request.column, request.row));
+                    continue;
+                }
+                request.angle = pyramid.getAngleToView(request.level, request.column, request.row, modelViewMatrix);
+                queue.add(request);
+            }
+        }
+    }
+
+    /**
+     * Drops all waiting requests.
+     */
+    void clear() {
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Drops all waiting requests and interrupts the running ones.
+     */
+    void shutdown() {
+        clear();
+        workers.shutdownNow();
+    }
+
+    private static class Request implements Comparable<Request> {
+        final int level;
+        final int column;
+        final int row;
+
+        // Angle between the view direction and the center of the tile.
+        double angle = 0;
+
+        Request(int level, int column, int row) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            return Double.compare(angle, other.angle);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package de.trac.spherical.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestInputStream;
+import java.util.ArrayDeque;
+
+import de.trac.spherical.parser.TileCache;
+
+/**
+ * Decodes tiles of a {@link TilePyramid} from the compressed image on demand, so that only the
+ * visible part of a large panorama is ever held in memory at a high resolution.
+ *
+ * With a {@link TileCache}, decoded tiles are stored on disk, so that reopening the image skips
+ * decoding them once more. With a {@link BitmapPool}, tiles are decoded into the bitmaps of tiles
+ * released before.
+ */
+public class TileSource {
+
+    private static final String TAG = "TileSource";
+
+    // Each decoder holds a copy of the encoded image, all of them together at most this many bytes.
+    private static final long DECODER_MEMORY = 64L * 1024 * 1024;
+
+    /**
+     * Opens the image once more, to create another decoder.
+     */
+    public interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    private final TileCache cache;
+    private final BitmapPool pool;
+    private final int width;
+    private final int height;
+
+    // Decoders not in use. Up to maxDecoders are created on demand, so that as many threads
+    // can decode at the same time.
+    private final ArrayDeque<BitmapRegionDecoder> idleDecoders = new ArrayDeque<>();
+    private final Opener opener;
+    private int maxDecoders;
+    private int decoderCount = 1;
+    private boolean recycled = false;
+
+    // Content hash of the image, null without a cache.
+    private final String key;
+
+    // Column and row, under which a whole level is cached.
+    private static final int WHOLE_LEVEL = -1;
+
+    private TileSource(BitmapRegionDecoder decoder, TileCache cache, BitmapPool pool, String key,
+                       Opener opener, int maxDecoders) {
+        this.cache = cache;
+        this.pool = pool;
+        this.key = key;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.opener = opener;
+        this.maxDecoders = opener != null ? maxDecoders : 1;
+        idleDecoders.push(decoder);
+    }
+
+    /**
+     * Creates a tile source for the given image.
+     * @param inputStream stream of the encoded image, will be read completely
+     * @return the tile source
+     * @throws IOException if the image format is not supported or could not be read
+     */
+    public static TileSource newInstance(InputStream inputStream) throws IOException {
+        return newInstance(inputStream, null, null);
+    }
+
+    /**
+     * Creates a tile source for the given image, which caches the tiles it decodes.
+     * @param inputStream stream of the encoded image, will be read completely
+     * @param cache cache of decoded tiles, or null
+     * @param pool pool of bitmaps to decode into, or null
+     * @return the tile source
+     * @throws IOException if the image format is not supported or could not be read
+     */
+    public static TileSource newInstance(InputStream inputStream, TileCache cache, BitmapPool pool) throws IOException {
+        return newInstance(inputStream, cache, pool, null, 1);
+    }
+
+    /**
+     * Creates a tile source for the given image, which decodes tiles on several threads at once.
+     * Decoders beyond the first are created by reopening the image, while fewer are in use than
+     * threads ask for one. Their number is bounded by the memory they take as well.
+     * @param inputStream stream of the encoded image, will be read completely
+     * @param cache cache of decoded tiles, or null
+     * @param pool pool of bitmaps to decode into, or null
+     * @param opener opens the image once more, or null to decode with a single decoder
+     * @param maxDecoders maximum number of decoders, usually the number of cores
+     * @return the tile source
+     * @throws IOException if the image format is not supported or could not be read
+     */
+    public static TileSource newInstance(InputStream inputStream, TileCache cache, BitmapPool pool,
+                                         Opener opener, int maxDecoders) throws IOException {
+        CountingInputStream countingStream = new CountingInputStream(inputStream);
+        inputStream = countingStream;
+        DigestInputStream digestStream = null;
+        if (cache != null) {
+            // The image is hashed while the decoder reads it.
+            digestStream = new DigestInputStream(inputStream, TileCache.newDigest());
+            inputStream = digestStream;
+        }
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+        if (decoder == null) {
+            throw new IOException("Image can not be decoded by region");
+        }
+
+        // The decoder may have stopped short of the end.
+        byte[] buffer = new byte[8192];
+        while (inputStream.read(buffer, 0, buffer.length) >= 0) {
+            // Hash and count the rest.
+        }
+        String key = null;
+        if (digestStream != null) {
+            key = TileCache.contentKey(digestStream.getMessageDigest());
+        }
+
+        long length = Math.max(countingStream.getCount(), 1);
+        maxDecoders = (int) Math.max(1, Math.min(maxDecoders, DECODER_MEMORY / length));
+        return new TileSource(decoder, cache, pool, key, opener, maxDecoders);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of tiles, which can be decoded at the same time
+     */
+    public synchronized int getMaxDecoders() {
+        return maxDecoders;
+    }
+
+    /**
+     * Looks up a tile in the cache.
+     * @return the tile with its pixels mapped from disk, or null if it has to be decoded
+     */
+    public TileCache.CachedTile getCachedTile(int level, int column, int row) {
+        if (cache == null) {
+            return null;
+        }
+        TileCache.CachedTile tile = cache.get(key, level, column, row);
+        if (tile == null) {
+            return null;
+        }
+        switch (tile.getFormat()) {
+            case TileCache.FORMAT_RGBA_8888:
+            case TileCache.FORMAT_RGB_565:
+            case TileCache.FORMAT_ETC1:
+                return tile;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes a single tile at the resolution of its level.
+     * This function is thread safe, calls on different threads use different decoders.
+     * @return the tile, or null if it could not be decoded
+     */
+    public Bitmap decodeTile(TilePyramid pyramid, int level, int column, int row) {
+        int[] rect = new int[4];
+        pyramid.getTileRect(level, column, row, rect);
+        return decode(new Rect(rect[0], rect[1], rect[2], rect[3]), pyramid.getSampleSize(level),
+                Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decodes the whole image, e.g. as planned by a {@link DecodePlanner}. It is not cached.
+     * @return the image, or null if it could not be decoded
+     */
+    public Bitmap decodeImage(int sampleSize, Bitmap.Config config) {
+        return decode(new Rect(0, 0, width, height), sampleSize, config);
+    }
+
+    /**
+     * Decodes the whole image at the resolution of the given level, or reads it from the cache.
+     * @return the image, or null if it could not be decoded
+     */
+    public Bitmap decodeLevel(TilePyramid pyramid, int level) {
+        TileCache.CachedTile cached = getCachedTile(level, WHOLE_LEVEL, WHOLE_LEVEL);
+        if (cached != null && cached.getFormat() == TileCache.FORMAT_RGBA_8888) {
+            Bitmap bitmap = createBitmap(cached.getWidth(), cached.getHeight());
+            bitmap.copyPixelsFromBuffer(cached.getPixels());
+            return bitmap;
+        }
+
+        Bitmap bitmap = decode(new Rect(0, 0, pyramid.getImageWidth(), pyramid.getImageHeight()),
+                pyramid.getSampleSize(level), Bitmap.Config.ARGB_8888);
+        cacheTile(level, WHOLE_LEVEL, WHOLE_LEVEL, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Stores the pixels of a decoded tile, in the byte order of GL_RGBA.
+     */
+    public void cacheTile(int level, int column, int row, Bitmap bitmap) {
+        if (cache == null || bitmap == null || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getByteCount()).order(ByteOrder.nativeOrder());
+        bitmap.copyPixelsToBuffer(pixels);
+        pixels.flip();
+        cacheTile(level, column, row, TileCache.FORMAT_RGBA_8888, bitmap.getWidth(), bitmap.getHeight(), pixels);
+    }
+
+    /**
+     * Stores the pixels of a tile, e.g. after it has been compressed.
+     * @param format format of the pixels, one of the formats of {@link TileCache}
+     */
+    public void cacheTile(int level, int column, int row, int format, int width, int height, ByteBuffer pixels) {
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.put(key, level, column, row, format, width, height, pixels);
+        } catch (IOException e) {
+            // The tile is decoded again next time.
+            Log.w(TAG, "Could not cache tile " + level + "/" + column + "/" + row, e);
+        }
+    }
+
+    /**
+     * Hands a decoded tile back, once it is no longer needed, so that its memory can be reused.
+     * @param bitmap tile returned by this source
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        if (pool != null) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Frees the idle decoders but one, e.g. while the image is not shown. More are created again,
+     * once several threads decode tiles.
+     */
+    public synchronized void releaseIdleDecoders() {
+        while (idleDecoders.size() > 1) {
+            idleDecoders.pop().recycle();
+            decoderCount--;
+        }
+    }
+
+    /**
+     * Frees the decoders, those in use as soon as their decode is done. Tiles can not be decoded
+     * afterwards.
+     */
+    public synchronized void recycle() {
+        recycled = true;
+        for (BitmapRegionDecoder decoder : idleDecoders) {
+            decoder.recycle();
+        }
+        idleDecoders.clear();
+        notifyAll();
+    }
+
+    private Bitmap createBitmap(int width, int height) {
+        if (pool != null) {
+            return pool.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private Bitmap decode(Rect rect, int sampleSize, Bitmap.Config config) {
+        BitmapRegionDecoder decoder = acquireDecoder();
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+
+            // How the decoder rounds sampled sizes is not specified, so only regions which are a
+            // multiple of the sample size are decoded into pooled bitmaps.
+            if (pool != null && rect.width() % sampleSize == 0 && rect.height() % sampleSize == 0) {
+                pool.reuse(options, rect.width() / sampleSize, rect.height() / sampleSize);
+            }
+            try {
+                return decoder.decodeRegion(rect, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                // The decoder refused the bitmap, decode into a new one.
+                Log.d(TAG, "Could not reuse bitmap", e);
+                options.inBitmap = null;
+                return decoder.decodeRegion(rect, options);
+            }
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    /**
+     * Takes an idle decoder, creates another one, or waits for one to become idle.
+     * @return the decoder, or null if the thread has been interrupted
+     * @throws IllegalStateException if the source has been recycled
+     */
+    private BitmapRegionDecoder acquireDecoder() {
+        synchronized (this) {
+            while (true) {
+                if (recycled) {
+                    throw new IllegalStateException("Tile source has been recycled");
+                }
+                if (!idleDecoders.isEmpty()) {
+                    return idleDecoders.pop();
+                }
+                if (decoderCount < maxDecoders) {
+                    decoderCount++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        // Opened without holding the lock, the other decoders keep going meanwhile.
+        BitmapRegionDecoder decoder = null;
+        InputStream inputStream = null;
+        try {
+            inputStream = opener.open();
+            decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open another decoder", e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close image", e);
+                }
+            }
+        }
+        if (decoder != null) {
+            return decoder;
+        }
+
+        // Make do with the decoders there are.
+        synchronized (this) {
+            decoderCount--;
+            maxDecoders = decoderCount;
+        }
+        return acquireDecoder();
+    }
+
+    private synchronized void releaseDecoder(BitmapRegionDecoder decoder) {
+        if (recycled) {
+            decoder.recycle();
+            return;
+        }
+        idleDecoders.push(decoder);
+        notify();
+    }
+
+    /**
+     * Counts the bytes read, to learn the length of the encoded image.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package de.trac.spherical.async;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+import de.trac.spherical.parser.PhotoSphereParser;
+
+/**
+ * Non-blocking parser for the GPano metadata of many files at once.
+ *
+ * Files are read with {@link AsynchronousFileChannel}. Only the marker segment headers and the XMP segments are read, all other segments are skipped by
+ * seeking past them. The XMP segments are collected into a compact header, which is then
+ * handed to {@link PhotoSphereParser#parse(ByteBuffer, boolean)}, so results are exactly
+ * those of the blocking parser.
+ *
+ * The number of open files is bounded, further requests wait in a queue until a file is done.
+ * Each open file has at most one read outstanding. On Linux and macOS the JDK has no
+ * asynchronous file I/O, the reads block threads of the executor instead. So the number of
+ * reads in flight is bounded by the number of threads as well, and the executor should have
+ * a thread per open file to keep them all going.
+ */
+public class AsyncPhotoSphereParser implements Closeable {
+
+    // Size of a single read, large enough for the usual JFIF and EXIF segments.
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_TEM = 0x01;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+
+    private static final byte[] XMP_SIGNATURE = "http://ns.adobe.com/xap/1.0/\0".getBytes();
+    private static final byte[] EXTENSION_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0".getBytes();
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxOpenFiles;
+
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * Read with a thread per open file.
+     * @param maxOpenFiles maximum number of files read at the same time.
+     */
+    public AsyncPhotoSphereParser(int maxOpenFiles) {
+        this(Executors.newFixedThreadPool(maxOpenFiles), true, maxOpenFiles);
+    }
+
+    /**
+     * @param executor executor issuing reads and handling completed ones, which is not shut down
+     *                 by {@link #close()}. Where reads block, its threads bound the reads in flight.
+     * @param maxOpenFiles maximum number of files read at the same time.
+     */
+    public AsyncPhotoSphereParser(ExecutorService executor, int maxOpenFiles) {
+        this(executor, false, maxOpenFiles);
+    }
+
+    private AsyncPhotoSphereParser(ExecutorService executor, boolean ownExecutor, int maxOpenFiles) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("maxOpenFiles must be positive");
+        }
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Parse the GPano properties of the main XMP packet. Extended XMP segments are skipped.
+     * @see #parse(Path, boolean)
+     */
+    public CompletableFuture<PhotoSphereMetadata> parse(Path file) {
+        return parse(file, false);
+    }
+
+    /**
+     * Parse the GPano properties of a JPEG file asynchronously.
+     * @param file JPEG file.
+     * @param readExtendedXMP see {@link PhotoSphereParser#parse(java.io.InputStream, boolean)}.
+     * @return future completed with the metadata, or with null if the file is no JPEG or does
+     * not contain XMP data. Completed exceptionally with an IOException, if the file cannot
+     * be read or ends unexpectedly.
+     */
+    public CompletableFuture<PhotoSphereMetadata> parse(Path file, boolean readExtendedXMP) {
+        Request request = new Request(file, readExtendedXMP);
+        pending.add(request);
+        startPending();
+        return request.future;
+    }
+
+    /**
+     * @return number of files parsed so far, successfully or not.
+     */
+    public long getFiles() {
+        return files.sum();
+    }
+
+    /**
+     * @return number of bytes read from disk so far.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Open as many pending files as allowed.
+     */
+    private void startPending() {
+        while (!pending.isEmpty()) {
+            int open = openFiles.get();
+            if (open >= maxOpenFiles) {
+                return;
+            }
+            if (!openFiles.compareAndSet(open, open + 1)) {
+                continue;
+            }
+            Request request = pending.poll();
+            if (request == null) {
+                openFiles.decrementAndGet();
+                return;
+            }
+            request.start();
+        }
+    }
+
+    /**
+     * State of a single file: a window of the file held in memory, the position of the next
+     * marker and the XMP segments collected so far.
+     */
+    private class Request implements CompletionHandler<Integer, Void> {
+
+        private final Path file;
+        private final boolean readExtendedXMP;
+        private final CompletableFuture<PhotoSphereMetadata> future = new CompletableFuture<>();
+
+        private AsynchronousFileChannel channel;
+
+        // File bytes [windowStart, windowStart + window.position()).
+        private ByteBuffer window = ByteBuffer.allocate(BLOCK_SIZE);
+        private long windowStart = 0;
+
+        // Position of the next marker.
+        private long position = 2;
+
+        // SOI followed by the APP1 segments carrying XMP.
+        private ByteBuffer header = ByteBuffer.allocate(1024);
+        private boolean hasMainPacket = false;
+
+        Request(Path file, boolean readExtendedXMP) {
+            this.file = file;
+            this.readExtendedXMP = readExtendedXMP;
+        }
+
+        void start() {
+            try {
+                channel = AsynchronousFileChannel.open(file, Collections.singleton(StandardOpenOption.READ), executor);
+            } catch (IOException | RuntimeException e) {
+                finish(null, e);
+                return;
+            }
+            header.put((byte) MARKER_PREFIX).put((byte) MARKER_SOI);
+            try {
+                fill(0, 2);
+            } catch (RuntimeException e) {
+                finish(null, e);
+            }
+        }
+
+        /**
+         * Make sure the window holds the file bytes [from, from + length), reading if necessary.
+         * @return true, if the bytes are available right away. Otherwise a read has been issued,
+         * which calls {@link #advance()} again on completion.
+         */
+        private boolean fill(long from, int length) {
+            long windowEnd = windowStart + window.position();
+            if (from >= windowStart && from + length <= windowEnd) {
+                return true;
+            }
+
+            if (from >= windowStart && from <= windowEnd) {
+                // Keep what has been read already.
+                window.flip();
+                window.position((int) (from - windowStart));
+                window.compact();
+            } else {
+                window.clear();
+            }
+            windowStart = from;
+
+            if (window.capacity() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(length, BLOCK_SIZE));
+                window.flip();
+                grown.put(window);
+                window = grown;
+            }
+            channel.read(window, windowStart + window.position(), null, this);
+            return false;
+        }
+
+        @Override
+        public void completed(Integer read, Void attachment) {
+            if (read < 0) {
+                finish(null, new EOFException("Unexpected EOF!"));
+                return;
+            }
+            bytesRead.add(read);
+            try {
+                if (windowStart == 0 && window.position() >= 2 && !hasSOI()) {
+                    finish(null, null);
+                    return;
+                }
+                advance();
+            } catch (RuntimeException | IOException e) {
+                finish(null, e);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            finish(null, e);
+        }
+
+        private boolean hasSOI() {
+            return (window.get(0) & 0xFF) == MARKER_PREFIX && (window.get(1) & 0xFF) == MARKER_SOI;
+        }
+
+        /**
+         * Walk the markers as far as the window allows.
+         */
+        private void advance() throws IOException {
+            while (true) {
+                if (!fill(position, 4)) {
+                    return;
+                }
+                int index = (int) (position - windowStart);
+                if ((window.get(index) & 0xFF) != MARKER_PREFIX) {
+                    throw new IOException("Marker expected, found " + Integer.toHexString(window.get(index) & 0xFF));
+                }
+                int marker = window.get(index + 1) & 0xFF;
+
+                //Fill byte in front of the marker
+                if (marker == MARKER_PREFIX) {
+                    position++;
+                    continue;
+                }
+
+                //Standalone markers carry no length
+                if (marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                    position += 2;
+                    continue;
+                }
+
+                //Image data or end of image reached
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    parse();
+                    return;
+                }
+
+                int length = ((window.get(index + 2) & 0xFF) << 8) | (window.get(index + 3) & 0xFF);
+                if (length < 2) {
+                    throw new IOException("Broken segment length for marker " + Integer.toHexString(marker));
+                }
+
+                if (marker == MARKER_APP1 && length - 2 > XMP_SIGNATURE.length) {
+                    // Read the segment up to the end of the longer signature first.
+                    int prefix = Math.min(length + 2, 4 + EXTENSION_SIGNATURE.length);
+                    if (!fill(position, prefix)) {
+                        return;
+                    }
+                    index = (int) (position - windowStart);
+                    boolean main = startsWith(index + 4, XMP_SIGNATURE);
+                    boolean extension = !main && readExtendedXMP && prefix == 4 + EXTENSION_SIGNATURE.length
+                            && startsWith(index + 4, EXTENSION_SIGNATURE);
+                    if ((main && !hasMainPacket) || extension) {
+                        if (!fill(position, length + 2)) {
+                            return;
+                        }
+                        collect((int) (position - windowStart), length + 2);
+                        if (main) {
+                            hasMainPacket = true;
+                            if (!readExtendedXMP) {
+                                parse();
+                                return;
+                            }
+                        }
+                    }
+                }
+                position += length + 2;
+            }
+        }
+
+        private boolean startsWith(int index, byte[] signature) {
+            for (int i = 0; i < signature.length; i++) {
+                if (window.get(index + i) != signature[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void collect(int index, int length) {
+            ensureHeaderCapacity(length);
+            ByteBuffer segment = window.duplicate();
+            segment.limit(index + length).position(index);
+            header.put(segment);
+        }
+
+        private void ensureHeaderCapacity(int length) {
+            if (header.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(header.capacity() * 2, header.position() + length));
+                header.flip();
+                grown.put(header);
+                header = grown;
+            }
+        }
+
+        private void parse() throws IOException {
+            if (!hasMainPacket) {
+                finish(null, null);
+                return;
+            }
+            ensureHeaderCapacity(2);
+            header.put((byte) MARKER_PREFIX).put((byte) MARKER_EOI);
+            header.flip();
+            finish(PhotoSphereParser.parse(header, readExtendedXMP), null);
+        }
+
+        private void finish(PhotoSphereMetadata metadata, Throwable error) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            // Release the buffers before notifying anyone.
+            window = null;
+            header = null;
+            files.increment();
+            openFiles.decrementAndGet();
+            startPending();
+
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(metadata);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package de.trac.spherical.async;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+import de.trac.spherical.parser.PhotoSphereParser;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AsyncPhotoSphereParser}.
+ */
+public class AsyncPhotoSphereParserTest {
+
+    private Path directory;
+    private AsyncPhotoSphereParser parser;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spheres");
+        parser = new AsyncPhotoSphereParser(8);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        parser.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void manyFilesInFlight() throws Exception {
+        List<CompletableFuture<PhotoSphereMetadata>> futures = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < 300; i++) {
+            byte[] jpeg = jpeg(i, 40000 + i, 100000);
+            size += jpeg.length;
+            Path file = directory.resolve(i + ".jpg");
+            Files.write(file, jpeg);
+            futures.add(parser.parse(file));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Integer.valueOf(i), futures.get(i).get().getFullPanoWidthPixels());
+        }
+        assertEquals(300, parser.getFiles());
+        // The image data is never read.
+        assertTrue(parser.getBytesRead() < size / 4);
+    }
+
+    @Test
+    public void sameResultAsBlockingParser() throws Exception {
+        for (int exif : new int[] {0, 100, 16 * 1024 - 40, 60000}) {
+            byte[] jpeg = jpeg(42, exif, 10);
+            Path file = directory.resolve(exif + ".jpg");
+            Files.write(file, jpeg);
+            PhotoSphereMetadata expected;
+            try (InputStream in = Files.newInputStream(file)) {
+                expected = PhotoSphereParser.parse(in);
+            }
+            PhotoSphereMetadata actual = parser.parse(file, true).get();
+            assertEquals(expected.getFullPanoWidthPixels(), actual.getFullPanoWidthPixels());
+            assertEquals(expected.getCaptureSoftware(), actual.getCaptureSoftware());
+        }
+    }
+
+    @Test
+    public void noJpegOrNoXmp() throws Exception {
+        Path png = directory.resolve("a.png");
+        Files.write(png, new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0});
+        assertNull(parser.parse(png).get());
+
+        Path plain = directory.resolve("plain.jpg");
+        Files.write(plain, new Segments().segment(0xE0, 16).sos().build());
+        assertNull(parser.parse(plain).get());
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        byte[] jpeg = jpeg(1, 60000, 0);
+        Path file = directory.resolve("truncated.jpg");
+        Files.write(file, Arrays.copyOf(jpeg, 30000));
+        try {
+            parser.parse(file).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    private static byte[] jpeg(int width, int exif, int imageData) throws IOException {
+        return new Segments()
+                .segment(0xE0, 16)
+                .segment(0xE1, exif)
+                .xmp("<rdf:Description GPano:FullPanoWidthPixels=\"" + width + "\" " +
+                        "GPano:CaptureSoftware=\"Photo Sphere\"/>")
+                .sos()
+                .data(imageData)
+                .build();
+    }
+
+    /**
+     * Assembles JPEG files whose segments are filled with junk.
+     */
+    private static class Segments {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Segments() {
+            out.write(0xFF);
+            out.write(0xD8);
+        }
+
+        Segments segment(int marker, int length) {
+            if (length == 0) {
+                return this;
+            }
+            out.write(0xFF);
+            out.write(marker);
+            out.write((length + 2) >> 8);
+            out.write((length + 2) & 0xFF);
+            for (int i = 0; i < length; i++) {
+                out.write(i & 0x7F);
+            }
+            return this;
+        }
+
+        Segments xmp(String xmp) throws IOException {
+            byte[] payload = ("http://ns.adobe.com/xap/1.0/\0" + xmp).getBytes("UTF-8");
+            out.write(0xFF);
+            out.write(0xE1);
+            out.write((payload.length + 2) >> 8);
+            out.write((payload.length + 2) & 0xFF);
+            out.write(payload);
+            return this;
+        }
+
+        Segments sos() {
+            return segment(0xDA, 10);
+        }
+
+        Segments data(int length) {
+            for (int i = 0; i < length; i++) {
+                out.write(i & 0x7F);
+            }
+            return this;
+        }
+
+        byte[] build() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package de.trac.spherical.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import de.trac.spherical.parser.Etc1Encoder;
+
+/**
+ * Encode time of {@link Etc1Encoder} by number of threads. The quality of the result is printed
+ * as PSNR during setup, so a change of the encoder can be judged by both numbers.
+ *
+ * Reference images are passed with -p image=/path/to/sphere.jpg, otherwise a synthetic image
+ * of the given width is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Etc1EncoderBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"4096"})
+    public int width;
+
+    @Param({""})
+    public String image;
+
+    private int[] pixels;
+    private int imageWidth;
+    private int imageHeight;
+    private ExecutorService executor;
+    private Etc1Encoder encoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        BufferedImage source = image.isEmpty() ? image(width, width / 2) : ImageIO.read(new File(image));
+        if (source == null) {
+            throw new IOException("Could not read " + image);
+        }
+        imageWidth = source.getWidth();
+        imageHeight = source.getHeight();
+        pixels = source.getRGB(0, 0, imageWidth, imageHeight, null, 0, imageWidth);
+
+        executor = Executors.newFixedThreadPool(threads);
+        encoder = new Etc1Encoder(executor, threads);
+        ByteBuffer data = encode();
+        System.out.printf("%nPSNR %.2f dB, %d bytes for %dx%d%n", psnr(pixels, Etc1Encoder.decode(data, imageWidth, imageHeight)),
+                data.remaining(), imageWidth, imageHeight);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return encoder.encode(pixels, 0, imageWidth, imageWidth, imageHeight);
+    }
+
+    private static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Gradients like sky and ground, with some detail.
+                int r = (int) (128 + 100 * Math.sin(x / 23.0) * Math.cos(y / 17.0));
+                int g = 128 + (int) (60 * Math.cos((x + y) / 31.0)) + ((x * 7 + y * 3) & 0xF);
+                int b = 255 * y / height;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static double psnr(int[] expected, int[] actual) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int d = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                error += d * d;
+            }
+        }
+        double mse = error / (3.0 * expected.length);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+}
@@ -0,0 +1,80 @@
+package de.trac.spherical.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.trac.spherical.parser.MipmapGenerator;
+
+/**
+ * Time of {@link MipmapGenerator} to build all levels of a sphere texture below level 0, by
+ * number of threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MipmapGeneratorBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    // Not a power of two, like most photo spheres.
+    @Param({"4000"})
+    public int width;
+
+    private int[] pixels;
+    private int height;
+    private ExecutorService executor;
+    private MipmapGenerator generator;
+
+    @Setup
+    public void setUp() {
+        height = width / 2;
+        pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (int) (128 + 100 * Math.sin(x / 23.0) * Math.cos(y / 17.0));
+                int g = (x * 7 + y * 3) & 0xFF;
+                int b = 255 * y / height;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        generator = new MipmapGenerator(executor, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int[] generate() throws IOException {
+        int[] level = pixels;
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int i = 1; i < MipmapGenerator.getLevelCount(width, height); i++) {
+            level = generator.downsample(level, levelWidth, levelHeight, true);
+            levelWidth = MipmapGenerator.getLevelSize(levelWidth, 1);
+            levelHeight = MipmapGenerator.getLevelSize(levelHeight, 1);
+        }
+        return level;
+    }
+}
@@ -0,0 +1,91 @@
+package de.trac.spherical.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+import de.trac.spherical.parser.PhotoSphereParser;
+
+/**
+ * Throughput of {@link PhotoSphereParser} on synthetic JPEG headers.
+ *
+ * Run with the gc profiler (configured in build.gradle) to get the bytes allocated per operation
+ * next to ops/s, see gc.alloc.rate.norm in the results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhotoSphereParserBenchmark {
+
+    @Param({"0", "8192", "60000"})
+    public int exifSize;
+
+    @Param({"1024", "32768"})
+    public int xmpSize;
+
+    @Param({"ATTRIBUTE", "ELEMENT"})
+    public SyntheticJpeg.Form form;
+
+    @Param({"0", "131072"})
+    public int extendedSize;
+
+    private byte[] jpeg;
+    private String xmp;
+
+    @Setup
+    public void setUp() throws IOException {
+        SyntheticJpeg generator = new SyntheticJpeg()
+                .exif(exifSize)
+                .xmp(xmpSize)
+                .form(form)
+                .extended(extendedSize);
+        jpeg = generator.build();
+        xmp = generator.mainPacket();
+
+        // Fail early instead of measuring a parser that does not find anything.
+        if (!xmp.equals(PhotoSphereParser.getXMLContent(new ByteArrayInputStream(jpeg)))) {
+            throw new IllegalStateException("XMP packet not found");
+        }
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg), true);
+        if (meta.getFullPanoWidthPixels() == null
+                || (extendedSize > 0 && meta.getCroppedAreaTopPixels() == null)) {
+            throw new IllegalStateException("GPano properties not found");
+        }
+    }
+
+    @Benchmark
+    public String getXMLContent() throws IOException {
+        return PhotoSphereParser.getXMLContent(new ByteArrayInputStream(jpeg));
+    }
+
+    @Benchmark
+    public PhotoSphereMetadata parseString() {
+        return PhotoSphereParser.parse(xmp);
+    }
+
+    @Benchmark
+    public PhotoSphereMetadata parseInputStream() throws IOException {
+        return PhotoSphereParser.parse(new ByteArrayInputStream(jpeg));
+    }
+
+    @Benchmark
+    public PhotoSphereMetadata parseInputStreamExtended() throws IOException {
+        return PhotoSphereParser.parse(new ByteArrayInputStream(jpeg), true);
+    }
+}
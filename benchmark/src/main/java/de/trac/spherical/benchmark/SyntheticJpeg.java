@@ -0,0 +1,284 @@
+package de.trac.spherical.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Generates synthetic JPEG headers, which look like those written by cameras and stitching apps:
+ *
+ * SOI, APP0 JFIF, APP1 EXIF, APP1 XMP, APP1 Extended XMP chunks, DQT, SOS, a few bytes of image data, EOI.
+ *
+ * The EXIF segment is filled with junk of the requested size, the XMP packet is padded with
+ * unrelated properties in front of the GPano ones, so the parser has to walk over all of it.
+ * There is no decodable image, only the header matters for parsing.
+ */
+public class SyntheticJpeg {
+
+    /**
+     * How the GPano properties are written in the XMP packet.
+     */
+    public enum Form {
+        /** GPano:Name="value", as written by most cameras. */
+        ATTRIBUTE,
+        /** &lt;GPano:Name&gt;value&lt;/GPano:Name&gt;, as written by some editors. */
+        ELEMENT
+    }
+
+    private static final byte[] XMP_SIGNATURE = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] EXTENSION_SIGNATURE = "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] EXIF_SIGNATURE = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] JFIF = new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+
+    // Largest payload of a single segment, the length field includes its own two bytes.
+    private static final int MAX_PAYLOAD = 0xFFFF - 2;
+
+    private static final int EXTENSION_HEADER = EXTENSION_SIGNATURE.length + 32 + 4 + 4;
+
+    private static final String[][] GPANO = new String[][] {
+            {"UsePanoramaViewer", "True"},
+            {"CaptureSoftware", "Photo Sphere"},
+            {"StitchingSoftware", "Photo Sphere Experience"},
+            {"ProjectionType", "equirectangular"},
+            {"PoseHeadingDegrees", "350.0"},
+            {"InitialViewHeadingDegrees", "90"},
+            {"InitialViewPitchDegrees", "0"},
+            {"InitialViewRollDegrees", "0"},
+            {"InitialHorizontalFOVDegrees", "75.0"},
+            {"FirstPhotoDate", "2017-09-19T12:30:15.250Z"},
+            {"LastPhotoDate", "2017-09-19T12:32:01.000Z"},
+            {"SourcePhotosCount", "50"},
+            {"ExposureLockUsed", "False"},
+            {"CroppedAreaImageWidthPixels", "8192"},
+            {"CroppedAreaImageHeightPixels", "3000"},
+            {"FullPanoWidthPixels", "8192"},
+            {"FullPanoHeightPixels", "4096"},
+            {"CroppedAreaLeftPixels", "0"},
+            {"CroppedAreaTopPixels", "548"},
+    };
+
+    private int exifSize = 0;
+    private int xmpSize = 0;
+    private Form form = Form.ATTRIBUTE;
+    private int extendedSize = 0;
+
+    /**
+     * @param exifSize payload size of the EXIF segment, 0 for none.
+     */
+    public SyntheticJpeg exif(int exifSize) {
+        if (exifSize > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("EXIF must fit into a single segment");
+        }
+        this.exifSize = exifSize;
+        return this;
+    }
+
+    /**
+     * @param xmpSize minimum size of the main XMP packet, which is padded to reach it.
+     */
+    public SyntheticJpeg xmp(int xmpSize) {
+        if (xmpSize > MAX_PAYLOAD - XMP_SIGNATURE.length) {
+            throw new IllegalArgumentException("XMP must fit into a single segment");
+        }
+        this.xmpSize = xmpSize;
+        return this;
+    }
+
+    public SyntheticJpeg form(Form form) {
+        this.form = form;
+        return this;
+    }
+
+    /**
+     * @param extendedSize minimum size of the Extended XMP packet, 0 for none.
+     *                     The packet is split into as many segments as needed.
+     */
+    public SyntheticJpeg extended(int extendedSize) {
+        this.extendedSize = extendedSize;
+        return this;
+    }
+
+    /**
+     * @return the main XMP packet, as returned by {@code PhotoSphereParser.getXMLContent}.
+     */
+    public String mainPacket() {
+        String guid = extendedSize > 0 ? md5(extendedPacket()) : null;
+        return packet(xmpSize, guid, 0, GPANO.length - 2);
+    }
+
+    /**
+     * @return the Extended XMP packet, which holds the last two GPano properties.
+     */
+    public String extendedPacket() {
+        return packet(extendedSize, null, GPANO.length - 2, GPANO.length);
+    }
+
+    public byte[] build() {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xFF);
+            out.write(0xD8);
+            segment(out, 0xE0, JFIF, 0, JFIF.length);
+
+            if (exifSize > 0) {
+                byte[] exif = new byte[exifSize];
+                System.arraycopy(EXIF_SIGNATURE, 0, exif, 0, Math.min(exifSize, EXIF_SIGNATURE.length));
+                for (int i = EXIF_SIGNATURE.length; i < exifSize; i++) {
+                    // Avoid runs of 0xFF, any value is fine inside a segment though.
+                    exif[i] = (byte) (i * 31);
+                }
+                segment(out, 0xE1, exif, 0, exif.length);
+            }
+
+            byte[] main = mainPacket().getBytes(StandardCharsets.UTF_8);
+            segment(out, 0xE1, concat(XMP_SIGNATURE, main), 0, XMP_SIGNATURE.length + main.length);
+
+            if (extendedSize > 0) {
+                String packet = extendedPacket();
+                byte[] guid = md5(packet).getBytes(StandardCharsets.US_ASCII);
+                byte[] data = packet.getBytes(StandardCharsets.UTF_8);
+                int chunk = MAX_PAYLOAD - EXTENSION_HEADER;
+                for (int offset = 0; offset < data.length; offset += chunk) {
+                    int len = Math.min(chunk, data.length - offset);
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream(EXTENSION_HEADER + len);
+                    payload.write(EXTENSION_SIGNATURE);
+                    payload.write(guid);
+                    writeInt(payload, data.length);
+                    writeInt(payload, offset);
+                    payload.write(data, offset, len);
+                    byte[] b = payload.toByteArray();
+                    segment(out, 0xE1, b, 0, b.length);
+                }
+            }
+
+            byte[] dqt = new byte[65];
+            segment(out, 0xDB, dqt, 0, dqt.length);
+            segment(out, 0xDA, new byte[] {1, 1, 0, 0, 63, 0}, 0, 6);
+            out.write(new byte[] {0x12, 0x34, 0x56, 0x78, (byte) 0xFF, 0x00});
+            out.write(0xFF);
+            out.write(0xD9);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String packet(int size, String guid, int from, int to) {
+        StringBuilder gpano = new StringBuilder();
+        boolean attribute = form == Form.ATTRIBUTE;
+        if (guid != null) {
+            gpano.append(attribute
+                    ? "\n    xmpNote:HasExtendedXMP=\"" + guid + "\""
+                    : "\n    <xmpNote:HasExtendedXMP>" + guid + "</xmpNote:HasExtendedXMP>");
+        }
+        for (int i = from; i < to; i++) {
+            String name = GPANO[i][0];
+            String value = GPANO[i][1];
+            gpano.append(attribute
+                    ? "\n    GPano:" + name + "=\"" + value + "\""
+                    : "\n    <GPano:" + name + ">" + value + "</GPano:" + name + ">");
+        }
+
+        String head = "<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n" +
+                "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n" +
+                " <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n" +
+                "  <rdf:Description rdf:about=\"\"\n" +
+                "    xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\"\n" +
+                "    xmlns:xmpNote=\"http://ns.adobe.com/xmp/note/\"\n" +
+                "    xmlns:exif=\"http://ns.adobe.com/exif/1.0/\"";
+        String tail = "\n  </rdf:Description>\n </rdf:RDF>\n</x:xmpmeta>\n<?xpacket end=\"w\"?>";
+        String open = attribute ? "" : ">";
+        String close = attribute ? ">" : "";
+
+        // Unrelated properties in front of the GPano ones, written in the same form.
+        StringBuilder padding = new StringBuilder();
+        int fixed = head.length() + open.length() + gpano.length() + close.length() + tail.length();
+        for (int i = 0; fixed + padding.length() < size; i++) {
+            padding.append(attribute
+                    ? "\n    exif:UserComment" + i + "=\"padding padding padding\""
+                    : "\n    <exif:UserComment" + i + ">padding padding padding</exif:UserComment" + i + ">");
+        }
+
+        if (attribute) {
+            return head + padding + gpano + close + tail;
+        }
+        return head + open + padding + gpano + tail;
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] payload, int off, int len) {
+        if (len > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Segment too large: " + len);
+        }
+        out.write(0xFF);
+        out.write(marker);
+        out.write((len + 2) >> 8);
+        out.write((len + 2) & 0xFF);
+        out.write(payload, off, len);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write((value >>> 16) & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static String md5(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) {
+                hex.append(String.format("%02X", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a corpus of synthetic JPEGs covering all combinations, e.g. for running the indexer.
+     * Usage: SyntheticJpeg &lt;directory&gt; [copies]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticJpeg <directory> [copies]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        Files.createDirectories(dir);
+
+        int files = 0;
+        for (int exif : new int[] {0, 8 * 1024, 60 * 1024}) {
+            for (int xmp : new int[] {1024, 32 * 1024}) {
+                for (Form form : Form.values()) {
+                    for (int extended : new int[] {0, 128 * 1024}) {
+                        byte[] jpeg = new SyntheticJpeg().exif(exif).xmp(xmp).form(form).extended(extended).build();
+                        String name = String.format("exif%d-xmp%d-%s-ext%d", exif, xmp, form.name().toLowerCase(), extended);
+                        for (int i = 0; i < copies; i++) {
+                            Files.write(dir.resolve(name + "-" + i + ".jpg"), jpeg);
+                            files++;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Wrote " + files + " files to " + dir);
+    }
+}
@@ -0,0 +1,165 @@
+package de.trac.spherical.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the entropy coded data following a SOS segment bit by bit.
+ *
+ * Stuffed zero bytes (FF 00) are removed. When a marker is hit, the reader stops consuming
+ * bytes and delivers zero bits, as recommended by the JPEG specification. The marker is kept
+ * until the next restart or until the scan is finished, so that it can be handed back to the
+ * segment reader. A file ending within the data is treated like a marker, so truncated files
+ * still decode up to where they end.
+ */
+final class BitReader {
+
+    private final JpegSegmentReader reader;
+
+    // Bits left aligned, the next bit is the most significant one.
+    private long buffer;
+    private int count;
+
+    // Marker hit within the data, or -1.
+    private int marker = -1;
+
+    BitReader(JpegSegmentReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Start reading a new scan at the reader's current position.
+     */
+    void reset() {
+        buffer = 0;
+        count = 0;
+        marker = -1;
+    }
+
+    int peek(int bits) throws IOException {
+        if (count < bits) {
+            fill();
+        }
+        return (int) (buffer >>> (64 - bits));
+    }
+
+    void skip(int bits) {
+        buffer <<= bits;
+        count -= bits;
+    }
+
+    int read(int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        int value = peek(bits);
+        skip(bits);
+        return value;
+    }
+
+    /**
+     * Read a magnitude category value and extend its sign, see F.2.2.1 of the JPEG specification.
+     */
+    int receiveExtend(int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        int value = read(bits);
+        return value < 1 << (bits - 1) ? value - (1 << bits) + 1 : value;
+    }
+
+    /**
+     * Discard the remaining bits of the current restart interval and consume the RSTn marker,
+     * which starts the next one.
+     */
+    void restart() throws IOException {
+        buffer = 0;
+        count = 0;
+        if (marker < 0) {
+            marker = findMarker();
+        }
+        if (isRestart(marker)) {
+            marker = -1;
+        }
+    }
+
+    /**
+     * Skip the rest of the scan.
+     * @return the marker following the scan.
+     */
+    int finish() throws IOException {
+        buffer = 0;
+        count = 0;
+        if (marker < 0 || isRestart(marker)) {
+            do {
+                marker = findMarker();
+            } while (isRestart(marker));
+        }
+        int result = marker;
+        marker = -1;
+        return result;
+    }
+
+    private void fill() throws IOException {
+        while (count <= 56) {
+            int b = 0;
+            if (marker < 0) {
+                b = readByte();
+                if (b == 0xFF) {
+                    int next = readByte();
+                    while (next == 0xFF) {
+                        next = readByte();
+                    }
+                    if (next != 0) {
+                        marker = next < 0 ? JpegSegmentReader.MARKER_EOI : next;
+                        b = 0;
+                    }
+                } else if (b < 0) {
+                    marker = JpegSegmentReader.MARKER_EOI;
+                    b = 0;
+                }
+            }
+            buffer |= (long) b << (56 - count);
+            count += 8;
+        }
+    }
+
+    /**
+     * Skip entropy coded data up to the next marker.
+     */
+    private int findMarker() throws IOException {
+        while (true) {
+            int b = readByte();
+            if (b < 0) {
+                return JpegSegmentReader.MARKER_EOI;
+            }
+            if (b != 0xFF) {
+                continue;
+            }
+            do {
+                b = readByte();
+            } while (b == 0xFF);
+            if (b < 0) {
+                return JpegSegmentReader.MARKER_EOI;
+            }
+            if (b != 0) {
+                return b;
+            }
+        }
+    }
+
+    /**
+     * @return next byte, or -1 at the end of the file.
+     */
+    private int readByte() throws IOException {
+        try {
+            return reader.readByte();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isRestart(int marker) {
+        return marker >= JpegSegmentReader.MARKER_RST0 && marker <= JpegSegmentReader.MARKER_RST7;
+    }
+}
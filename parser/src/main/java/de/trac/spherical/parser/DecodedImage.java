@@ -0,0 +1,33 @@
+package de.trac.spherical.parser;
+
+/**
+ * Image decoded by one of the pure Java decoders, as ARGB pixels in rows from top to bottom.
+ * The pixels can be handed straight to {@code Bitmap.createBitmap(int[], int, int, Config)}.
+ */
+public class DecodedImage {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public DecodedImage(int width, int height, int[] pixels) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Too few pixels");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+}
@@ -0,0 +1,401 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses images to ETC1 on several threads, so they take an eighth of the texture memory of
+ * RGBA8888 on the GPU, 4 instead of 32 bits per pixel.
+ *
+ * Every 4x4 block becomes 64 bits: two halves, side by side or on top of each other, each with
+ * a base color and a table of luminance modifiers, and a 2 bit modifier index per pixel. The
+ * encoder uses the average color of each half as its base color and picks the table with the
+ * least squared error, trying both orientations. Rows of blocks are encoded independently, so
+ * the workers take them in order, like {@link ParallelJpegDecoder} takes restart intervals.
+ *
+ * ETC1 data is valid ETC2 RGB8 data as well, so the result can be uploaded either way.
+ * Alpha is dropped.
+ */
+public class Etc1Encoder {
+
+    // Bytes per block of 4x4 pixels.
+    public static final int BLOCK_SIZE = 8;
+
+    // Modifier tables, in the order of the pixel indices.
+    private static final int[][] MODIFIERS = {
+            {2, 8, -2, -8},
+            {5, 17, -5, -17},
+            {9, 29, -9, -29},
+            {13, 42, -13, -42},
+            {18, 60, -18, -60},
+            {24, 80, -24, -80},
+            {33, 106, -33, -106},
+            {47, 183, -47, -183}
+    };
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param executor executor running the workers.
+     * @param threads number of workers to run per image, usually the number of cores.
+     */
+    public Etc1Encoder(ExecutorService executor, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of bytes of an image encoded to ETC1, partial blocks at the edges included.
+     */
+    public static int getEncodedSize(int width, int height) {
+        return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encode ARGB pixels, like returned by {@code Bitmap.getPixels()}.
+     * @return direct buffer in native order, ready for glCompressedTexImage2D.
+     * @throws IOException if the thread has been interrupted.
+     */
+    public ByteBuffer encode(int[] pixels, int offset, int stride, int width, int height) throws IOException {
+        ByteBuffer out = ByteBuffer.allocateDirect(getEncodedSize(width, height)).order(ByteOrder.nativeOrder());
+        encode(pixels, offset, stride, width, height, out);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode ARGB pixels into a buffer. Blocks are written row by row, so a large image can be
+     * encoded in bands with heights divisible by 4, one after the other into the same buffer.
+     * @param out buffer to write to, at its position, which is advanced past the blocks written.
+     * @throws IOException if the thread has been interrupted.
+     */
+    public void encode(final int[] pixels, final int offset, final int stride, final int width, final int height,
+                       final ByteBuffer out) throws IOException {
+        if (out.remaining() < getEncodedSize(width, height)) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+        final int blocksX = (width + 3) / 4;
+        final int blocksY = (height + 3) / 4;
+        final int start = out.position();
+
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(threads, blocksY);
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        BlockEncoder encoder = new BlockEncoder();
+                        // Absolute puts only, so the workers do not share a position.
+                        ByteBuffer target = out.duplicate();
+                        int blockY;
+                        while ((blockY = next.getAndIncrement()) < blocksY) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException();
+                            }
+                            int position = start + blockY * blocksX * BLOCK_SIZE;
+                            for (int blockX = 0; blockX < blocksX; blockX++) {
+                                long block = encoder.encode(pixels, offset, stride, width, height, blockX * 4, blockY * 4);
+                                putBlock(target, position, block);
+                                position += BLOCK_SIZE;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Stop the other workers, if one of them failed.
+            next.set(blocksY);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+        out.position(start + blocksX * blocksY * BLOCK_SIZE);
+    }
+
+    /**
+     * Decode ETC1 data, to measure the quality of the encoder.
+     * @param data blocks from the position of the buffer, which is not modified.
+     * @return opaque ARGB pixels.
+     */
+    public static int[] decode(ByteBuffer data, int width, int height) {
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        int[] pixels = new int[width * height];
+        int[] block = new int[16];
+        int position = data.position();
+        for (int blockY = 0; blockY < blocksY; blockY++) {
+            for (int blockX = 0; blockX < blocksX; blockX++) {
+                long bits = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    bits = (bits << 8) | (data.get(position++) & 0xFF);
+                }
+                decodeBlock(bits, block);
+                for (int y = 0; y < 4 && blockY * 4 + y < height; y++) {
+                    for (int x = 0; x < 4 && blockX * 4 + x < width; x++) {
+                        pixels[(blockY * 4 + y) * width + blockX * 4 + x] = block[y * 4 + x];
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Decode a single block.
+     * @param out will be filled with 16 ARGB pixels, row by row.
+     */
+    static void decodeBlock(long bits, int[] out) {
+        boolean flip = (bits & (1L << 32)) != 0;
+        boolean differential = (bits & (1L << 33)) != 0;
+        int[] table1 = MODIFIERS[(int) (bits >>> 37) & 7];
+        int[] table2 = MODIFIERS[(int) (bits >>> 34) & 7];
+
+        int[] base1 = new int[3];
+        int[] base2 = new int[3];
+        for (int c = 0; c < 3; c++) {
+            int shift = 59 - c * 8;
+            if (differential) {
+                int c1 = (int) (bits >>> shift) & 0x1F;
+                int delta = ((int) (bits >>> (shift - 3)) & 7) << 29 >> 29;
+                base1[c] = expand5(c1);
+                base2[c] = expand5(c1 + delta);
+            } else {
+                base1[c] = expand4((int) (bits >>> (shift + 1)) & 0xF);
+                base2[c] = expand4((int) (bits >>> (shift - 3)) & 0xF);
+            }
+        }
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                boolean second = flip ? y >= 2 : x >= 2;
+                int bit = x * 4 + y;
+                int index = (int) ((bits >>> (bit + 15)) & 2) | (int) ((bits >>> bit) & 1);
+                int modifier = (second ? table2 : table1)[index];
+                int[] base = second ? base2 : base1;
+                out[y * 4 + x] = 0xFF000000
+                        | clamp(base[0] + modifier) << 16
+                        | clamp(base[1] + modifier) << 8
+                        | clamp(base[2] + modifier);
+            }
+        }
+    }
+
+    private static void putBlock(ByteBuffer out, int position, long block) {
+        // Big endian, as defined by the format.
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            out.put(position + i, (byte) (block >>> (56 - 8 * i)));
+        }
+    }
+
+    private static int expand4(int c) {
+        return (c << 4) | c;
+    }
+
+    private static int expand5(int c) {
+        return (c << 3) | (c >> 2);
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+
+    /**
+     * Encoding state of one thread.
+     */
+    static class BlockEncoder {
+
+        // Channels of the pixels of the block, row by row.
+        private final int[] r = new int[16];
+        private final int[] g = new int[16];
+        private final int[] b = new int[16];
+
+        // Base colors and results per half, reused for both orientations.
+        private final int[] base1 = new int[3];
+        private final int[] base2 = new int[3];
+        private final int[] quantized1 = new int[3];
+        private final int[] quantized2 = new int[3];
+        private final int[] indices = new int[16];
+        private final int[] bestIndices = new int[16];
+
+        // Table picked by the last call of encodeHalf().
+        private int table;
+
+        /**
+         * Encode the block at (x, y). Pixels outside of the image repeat the last row or column.
+         * @return the 64 bits of the block.
+         */
+        long encode(int[] pixels, int offset, int stride, int width, int height, int x, int y) {
+            for (int j = 0; j < 4; j++) {
+                int row = offset + Math.min(y + j, height - 1) * stride;
+                for (int i = 0; i < 4; i++) {
+                    int argb = pixels[row + Math.min(x + i, width - 1)];
+                    r[j * 4 + i] = (argb >> 16) & 0xFF;
+                    g[j * 4 + i] = (argb >> 8) & 0xFF;
+                    b[j * 4 + i] = argb & 0xFF;
+                }
+            }
+            return encode();
+        }
+
+        long encode() {
+            long best = 0;
+            long bestError = Long.MAX_VALUE;
+            for (int flip = 0; flip < 2; flip++) {
+                boolean flipped = flip == 1;
+                average(flipped, false, base1);
+                average(flipped, true, base2);
+
+                // Differential mode has the finer base colors, if they are close enough.
+                boolean differential = true;
+                for (int c = 0; c < 3; c++) {
+                    quantized1[c] = (base1[c] * 31 + 127) / 255;
+                    quantized2[c] = (base2[c] * 31 + 127) / 255;
+                    int delta = quantized2[c] - quantized1[c];
+                    if (delta < -4 || delta > 3) {
+                        differential = false;
+                    }
+                }
+                for (int c = 0; c < 3; c++) {
+                    if (differential) {
+                        base1[c] = expand5(quantized1[c]);
+                        base2[c] = expand5(quantized2[c]);
+                    } else {
+                        quantized1[c] = (base1[c] * 15 + 127) / 255;
+                        quantized2[c] = (base2[c] * 15 + 127) / 255;
+                        base1[c] = expand4(quantized1[c]);
+                        base2[c] = expand4(quantized2[c]);
+                    }
+                }
+
+                long error = encodeHalf(flipped, false, base1);
+                int table1 = table;
+                error += encodeHalf(flipped, true, base2);
+                int table2 = table;
+                if (error >= bestError) {
+                    continue;
+                }
+                bestError = error;
+
+                long bits = 0;
+                for (int c = 0; c < 3; c++) {
+                    int shift = 59 - c * 8;
+                    if (differential) {
+                        bits |= (long) quantized1[c] << shift;
+                        bits |= (long) ((quantized2[c] - quantized1[c]) & 7) << (shift - 3);
+                    } else {
+                        bits |= (long) quantized1[c] << (shift + 1);
+                        bits |= (long) quantized2[c] << (shift - 3);
+                    }
+                }
+                bits |= (long) table1 << 37;
+                bits |= (long) table2 << 34;
+                bits |= (differential ? 1L : 0L) << 33;
+                bits |= (long) flip << 32;
+                for (int p = 0; p < 16; p++) {
+                    // Indices are stored column by column, most significant bits first.
+                    int bit = (p & 3) * 4 + (p >> 2);
+                    bits |= (long) (bestIndices[p] >> 1) << (bit + 16);
+                    bits |= (long) (bestIndices[p] & 1) << bit;
+                }
+                best = bits;
+            }
+            return best;
+        }
+
+        private void average(boolean flipped, boolean second, int[] out) {
+            int sr = 0;
+            int sg = 0;
+            int sb = 0;
+            for (int p = 0; p < 16; p++) {
+                if (inSecondHalf(p, flipped) == second) {
+                    sr += r[p];
+                    sg += g[p];
+                    sb += b[p];
+                }
+            }
+            out[0] = (sr + 4) / 8;
+            out[1] = (sg + 4) / 8;
+            out[2] = (sb + 4) / 8;
+        }
+
+        /**
+         * Pick the table of one half with the least error, and the indices of its pixels.
+         * The indices are kept in bestIndices, the table in {@link #table}.
+         * @return squared error of the half.
+         */
+        private long encodeHalf(boolean flipped, boolean second, int[] base) {
+            long bestError = Long.MAX_VALUE;
+            for (int t = 0; t < MODIFIERS.length; t++) {
+                int[] modifiers = MODIFIERS[t];
+                long error = 0;
+                for (int p = 0; p < 16 && error < bestError; p++) {
+                    if (inSecondHalf(p, flipped) != second) {
+                        continue;
+                    }
+                    // The modifier is added to all channels, so the best one is close to
+                    // the mean difference to the base color.
+                    int difference = (r[p] - base[0] + g[p] - base[1] + b[p] - base[2]) / 3;
+                    int index = 0;
+                    int distance = Integer.MAX_VALUE;
+                    for (int i = 0; i < 4; i++) {
+                        int d = Math.abs(modifiers[i] - difference);
+                        if (d < distance) {
+                            distance = d;
+                            index = i;
+                        }
+                    }
+                    indices[p] = index;
+                    int dr = clamp(base[0] + modifiers[index]) - r[p];
+                    int dg = clamp(base[1] + modifiers[index]) - g[p];
+                    int db = clamp(base[2] + modifiers[index]) - b[p];
+                    error += dr * dr + dg * dg + db * db;
+                }
+                if (error < bestError) {
+                    bestError = error;
+                    table = t;
+                    for (int p = 0; p < 16; p++) {
+                        if (inSecondHalf(p, flipped) == second) {
+                            bestIndices[p] = indices[p];
+                        }
+                    }
+                }
+            }
+            return bestError;
+        }
+
+        private static boolean inSecondHalf(int p, boolean flipped) {
+            return flipped ? p >= 8 : (p & 3) >= 2;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.trac.spherical.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Locates the JPEG thumbnail, which cameras store in IFD1 of the EXIF segment.
+ *
+ * "Exif\0\0"
+ * TIFF header: "II" (little endian) or "MM" (big endian), 42, offset of IFD0
+ * IFD:         entry count (2), entries (12 each), offset of the next IFD (4)
+ * entry:       tag (2), type (2), count (4), value or offset (4)
+ *
+ * All offsets are relative to the TIFF header. The thumbnail is referenced by the IFD1 tags
+ * JPEGInterchangeFormat (0x0201, offset) and JPEGInterchangeFormatLength (0x0202, length).
+ */
+class ExifThumbnail {
+
+    static final byte[] SIGNATURE = new byte[] {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+
+    private static final int ENTRY_LENGTH = 12;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * Find the thumbnail in the payload of an EXIF segment. Broken offsets are tolerated.
+     * @param exif buffer holding the EXIF payload, read by absolute index only.
+     * @param off absolute index of the TIFF header, right behind {@link #SIGNATURE}.
+     * @param len number of bytes from off to the end of the segment.
+     * @return absolute range of the thumbnail as (start << 32) | end, or {@link XmpTokenizer#NO_VALUE}.
+     */
+    static long find(ByteBuffer exif, int off, int len) {
+        if (len < 8) {
+            return XmpTokenizer.NO_VALUE;
+        }
+        boolean littleEndian;
+        int order = exif.getShort(off);
+        if (order == 0x4949) {
+            littleEndian = true;
+        } else if (order == 0x4D4D) {
+            littleEndian = false;
+        } else {
+            return XmpTokenizer.NO_VALUE;
+        }
+        if (uint16(exif, off + 2, littleEndian) != 42) {
+            return XmpTokenizer.NO_VALUE;
+        }
+
+        long ifd0 = uint32(exif, off + 4, littleEndian);
+        if (ifd0 < 8 || ifd0 > len - 2) {
+            return XmpTokenizer.NO_VALUE;
+        }
+        int entries = uint16(exif, off + (int) ifd0, littleEndian);
+        long next = ifd0 + 2 + (long) entries * ENTRY_LENGTH;
+        if (next > len - 4) {
+            return XmpTokenizer.NO_VALUE;
+        }
+
+        long ifd1 = uint32(exif, off + (int) next, littleEndian);
+        if (ifd1 < 8 || ifd1 > len - 2) {
+            return XmpTokenizer.NO_VALUE;
+        }
+        entries = uint16(exif, off + (int) ifd1, littleEndian);
+        if (ifd1 + 2 + (long) entries * ENTRY_LENGTH > len) {
+            return XmpTokenizer.NO_VALUE;
+        }
+
+        long start = -1;
+        long length = -1;
+        for (int i = 0; i < entries; i++) {
+            int entry = off + (int) ifd1 + 2 + i * ENTRY_LENGTH;
+            int tag = uint16(exif, entry, littleEndian);
+            if (tag == TAG_JPEG_OFFSET) {
+                start = value(exif, entry, littleEndian);
+            } else if (tag == TAG_JPEG_LENGTH) {
+                length = value(exif, entry, littleEndian);
+            }
+        }
+        if (start < 8 || length < 4 || start + length > len) {
+            return XmpTokenizer.NO_VALUE;
+        }
+
+        // Must be a JPEG, uncompressed thumbnails use different tags anyway.
+        int from = off + (int) start;
+        if ((exif.get(from) & 0xFF) != JpegSegmentReader.MARKER_PREFIX
+                || (exif.get(from + 1) & 0xFF) != JpegSegmentReader.MARKER_SOI) {
+            return XmpTokenizer.NO_VALUE;
+        }
+        return ((long) from << 32) | (from + length);
+    }
+
+    /**
+     * @return the value of a SHORT or LONG entry with count 1, or -1.
+     */
+    private static long value(ByteBuffer b, int entry, boolean littleEndian) {
+        int type = uint16(b, entry + 2, littleEndian);
+        switch (type) {
+            case 3: // SHORT, left aligned in the value field
+                return uint16(b, entry + 8, littleEndian);
+            case 4: // LONG
+                return uint32(b, entry + 8, littleEndian);
+            default:
+                return -1;
+        }
+    }
+
+    private static int uint16(ByteBuffer b, int index, boolean littleEndian) {
+        int b0 = b.get(index) & 0xFF;
+        int b1 = b.get(index + 1) & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long uint32(ByteBuffer b, int index, boolean littleEndian) {
+        long hi = uint16(b, index, littleEndian);
+        long lo = uint16(b, index + 2, littleEndian);
+        return littleEndian ? (lo << 16) | hi : (hi << 16) | lo;
+    }
+}
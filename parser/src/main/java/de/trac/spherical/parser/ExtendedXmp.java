@@ -0,0 +1,146 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * Reassembles an Extended XMP packet, which is too large for a single APP1 segment.
+ *
+ * Each chunk is stored in its own APP1 segment:
+ * 35 bytes     signature "http://ns.adobe.com/xmp/extension/\0"
+ * 32 bytes     GUID, the MD5 digest of the full extended packet as uppercase hex string
+ *  4 bytes     full length of the extended packet (big endian)
+ *  4 bytes     offset of this chunk within the extended packet (big endian)
+ *  n bytes     chunk data
+ *
+ * The main XMP packet links to the extended one by xmpNote:HasExtendedXMP="GUID".
+ */
+class ExtendedXmp {
+
+    static final byte[] SIGNATURE = new byte[] {
+            'h', 't', 't', 'p', ':', '/', '/', 'n', 's', '.', 'a', 'd', 'o', 'b', 'e', '.',
+            'c', 'o', 'm', '/', 'x', 'm', 'p', '/', 'e', 'x', 't', 'e', 'n', 's', 'i', 'o',
+            'n', '/', 0
+    };
+
+    static final int GUID_LENGTH = 32;
+
+    // Number of bytes between the signature and the chunk data.
+    static final int HEADER_LENGTH = GUID_LENGTH + 4 + 4;
+
+    // Refuse to buffer packets larger than this.
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] guid = new byte[GUID_LENGTH];
+    private final byte[] digest = new byte[16];
+    private MessageDigest md5;
+
+    // Grows to the largest packet reassembled so far.
+    private byte[] buffer = new byte[0];
+    private int length = 0;
+
+    // Bytes of the packet received so far. Chunks may be repeated or overlap, so each byte is
+    // counted once only.
+    private final BitSet receivedBytes = new BitSet();
+    private int received = 0;
+
+    /**
+     * Prepare for the reassembly of a new packet. The packet buffer is reused, if it is large enough.
+     * @param guid GUID of the packet, as stored in the chunk headers.
+     * @param length full length of the packet.
+     */
+    void reset(byte[] guid, int length) {
+        System.arraycopy(guid, 0, this.guid, 0, GUID_LENGTH);
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        this.length = length;
+        this.received = 0;
+        receivedBytes.clear();
+    }
+
+    /**
+     * Read a chunk from the current segment straight into the packet buffer.
+     * @param reader reader positioned at the chunk data.
+     * @param offset offset of the chunk within the packet.
+     * @return false, if the chunk does not fit into the packet and has been ignored.
+     */
+    boolean readChunk(JpegSegmentReader reader, long offset) throws IOException {
+        int len = reader.getRemaining();
+        if (offset < 0 || offset + len > length) {
+            return false;
+        }
+        int start = (int) offset;
+        reader.read(buffer, start, len);
+        received += len - receivedBytes.get(start, start + len).cardinality();
+        receivedBytes.set(start, start + len);
+        return true;
+    }
+
+    boolean hasGuid(byte[] other) {
+        return matches(guid, other);
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    boolean isComplete() {
+        return received >= length;
+    }
+
+    /**
+     * Check the MD5 digest of the reassembled packet against its GUID.
+     */
+    boolean verify() {
+        if (!isComplete()) {
+            return false;
+        }
+        try {
+            if (md5 == null) {
+                md5 = MessageDigest.getInstance("MD5");
+            }
+            md5.update(buffer, 0, length);
+            md5.digest(digest, 0, digest.length);
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        } catch (DigestException e) {
+            return false;
+        }
+        for (int i = 0; i < digest.length; i++) {
+            if (HEX[(digest[i] >> 4) & 0xF] != toUpper(guid[2 * i])
+                    || HEX[digest[i] & 0xF] != toUpper(guid[2 * i + 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return packet buffer, holding {@link #getLength()} bytes of the packet.
+     */
+    byte[] getBytes() {
+        return buffer;
+    }
+
+    /**
+     * Compare two GUIDs, ignoring the case of hex digits.
+     */
+    static boolean matches(byte[] a, byte[] b) {
+        for (int i = 0; i < GUID_LENGTH; i++) {
+            if (toUpper(a[i]) != toUpper(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? b - 32 : b;
+    }
+}
@@ -0,0 +1,300 @@
+package de.trac.spherical.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Stream of a remote file, which is loaded with HTTP range requests.
+ *
+ * The header of the file is requested first, limited to {@link #DEFAULT_HEADER_SIZE} bytes, so
+ * that the metadata can be parsed and a preview shown before the image data is requested.
+ * The rest of the file is then streamed through a buffer of bounded size, the file is never held
+ * in memory as a whole. If a transfer breaks off, it is resumed at the current position with
+ * another range request. If-Range makes sure, that the file has not been replaced meanwhile.
+ *
+ * Servers ignoring the Range header are supported as well, the file is streamed from the start then.
+ */
+public class HttpRangeInputStream extends InputStream {
+
+    public static final int DEFAULT_HEADER_SIZE = 64 * 1024;
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final URL url;
+    private final int headerSize;
+    private final int maxRetries;
+
+    // Bytes received, but not yet read.
+    private final byte[] window;
+    private int windowPosition = 0;
+    private int windowCount = 0;
+
+    // Position in the file of the first byte after the window.
+    private long position = 0;
+    private long length = -1;
+
+    // End of the current request, exclusive, or -1 if it runs to the end of the file.
+    private long requestEnd = -1;
+
+    // Validator of the file for resuming, ETag or Last-Modified.
+    private String validator;
+    private boolean rangesSupported = false;
+
+    private HttpURLConnection connection;
+    private InputStream body;
+    private int retries = 0;
+    private boolean closed = false;
+
+    public HttpRangeInputStream(URL url) {
+        this(url, DEFAULT_HEADER_SIZE, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * @param url http or https URL of the file.
+     * @param headerSize number of bytes requested first, 0 to request the whole file at once.
+     * @param windowSize size of the buffer of received bytes.
+     * @param maxRetries number of times a broken off transfer is resumed in a row.
+     */
+    public HttpRangeInputStream(URL url, int headerSize, int windowSize, int maxRetries) {
+        if (url == null) {
+            throw new IllegalArgumentException("URL MUST NOT be null!");
+        }
+        this.url = url;
+        this.headerSize = headerSize;
+        this.window = new byte[windowSize];
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return length of the file, or -1 if it is not known (yet).
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return window[windowPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, windowCount - windowPosition);
+        System.arraycopy(window, windowPosition, b, off, n);
+        windowPosition += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !fill()) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, windowCount - windowPosition);
+        windowPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return windowCount - windowPosition;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        disconnect();
+    }
+
+    /**
+     * Make sure, the window holds at least one byte.
+     * @return false at the end of the file.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (windowPosition < windowCount) {
+            return true;
+        }
+        windowPosition = 0;
+        windowCount = 0;
+
+        while (true) {
+            if (length >= 0 && position >= length) {
+                disconnect();
+                return false;
+            }
+
+            int n;
+            try {
+                if (body == null) {
+                    connect();
+                    if (body == null) {
+                        continue;
+                    }
+                }
+                int len = window.length;
+                if (requestEnd >= 0) {
+                    len = (int) Math.min(len, requestEnd - position);
+                }
+                n = len > 0 ? body.read(window, 0, len) : -1;
+            } catch (IOException e) {
+                retry(e);
+                continue;
+            }
+
+            if (n > 0) {
+                windowCount = n;
+                position += n;
+                retries = 0;
+                return true;
+            }
+
+            disconnect();
+            if (requestEnd >= 0 && position >= requestEnd) {
+                // The header has been received, request the rest of the file.
+                requestEnd = -1;
+            } else if (length < 0) {
+                // Length unknown, so this is the end of the file.
+                return false;
+            } else if (position < length) {
+                retry(new EOFException("Connection closed at " + position + " of " + length));
+            }
+        }
+    }
+
+    private void retry(IOException e) throws IOException {
+        disconnect();
+        if (++retries > maxRetries) {
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT);
+        c.setReadTimeout(READ_TIMEOUT);
+        // Offsets have to refer to the file, not to a compressed transfer.
+        c.setRequestProperty("Accept-Encoding", "identity");
+
+        boolean header = position == 0 && headerSize > 0 && length < 0;
+        if (header) {
+            c.setRequestProperty("Range", "bytes=0-" + (headerSize - 1));
+        } else if (position > 0) {
+            c.setRequestProperty("Range", "bytes=" + position + "-");
+            if (validator != null) {
+                c.setRequestProperty("If-Range", validator);
+            }
+        }
+
+        int status = c.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            long[] range = parseContentRange(c.getHeaderField("Content-Range"));
+            if (range == null || range[0] != position) {
+                c.disconnect();
+                throw new IOException("Unexpected Content-Range " + c.getHeaderField("Content-Range"));
+            }
+            if (range[2] >= 0) {
+                length = range[2];
+            }
+            requestEnd = header ? range[1] + 1 : -1;
+            rangesSupported = true;
+        } else if (status == HttpURLConnection.HTTP_OK) {
+            if (position > 0) {
+                if (rangesSupported) {
+                    // The server ignored the range because of If-Range: the file has changed.
+                    c.disconnect();
+                    throw new IOException("Remote file has changed: " + url);
+                }
+                // No range support, skip what has been read already.
+                skipFully(c.getInputStream(), position);
+            }
+            length = c.getContentLength() >= 0 ? c.getContentLength() : -1;
+            requestEnd = -1;
+        } else if (status == 416 && length < 0 && position == 0) {
+            // Range not satisfiable for the header, the file is empty.
+            c.disconnect();
+            length = 0;
+            return;
+        } else {
+            c.disconnect();
+            throw new IOException("HTTP " + status + " for " + url);
+        }
+
+        if (validator == null) {
+            validator = c.getHeaderField("ETag");
+            if (validator == null) {
+                validator = c.getHeaderField("Last-Modified");
+            }
+        }
+        connection = c;
+        body = c.getInputStream();
+    }
+
+    private void disconnect() {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // Nothing to be done.
+            }
+            body = null;
+        }
+        if (connection != null) {
+            connection.disconnect();
+            connection = null;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Parse a header like "bytes 0-65535/1234567".
+     * @return first and last byte and the length of the file (-1 if unknown), or null if invalid.
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String total = value.substring(slash + 1).trim();
+            return new long[] {first, last, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
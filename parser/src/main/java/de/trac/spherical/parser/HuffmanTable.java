@@ -0,0 +1,77 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+
+/**
+ * Canonical Huffman table of a JPEG file, as defined by a DHT segment.
+ *
+ * Codes of up to {@link #LOOKUP_BITS} bits, which make up almost all of the data, are decoded
+ * with a single table lookup. Longer codes are resolved by comparing against the largest code
+ * of each length.
+ */
+final class HuffmanTable {
+
+    private static final int LOOKUP_BITS = 9;
+
+    // (length << 8) | symbol for every code of up to LOOKUP_BITS bits, indexed by the next bits.
+    private final int[] lookup = new int[1 << LOOKUP_BITS];
+
+    // Largest code of each length, -1 if there is none.
+    private final int[] maxCode = new int[17];
+
+    // Index of the first symbol of each length minus the first code of that length.
+    private final int[] offset = new int[17];
+
+    private final int[] symbols;
+
+    /**
+     * @param counts number of codes of each length from 1 to 16.
+     * @param symbols symbols in order of increasing code length.
+     * @throws IOException if the counts do not describe a valid code.
+     */
+    HuffmanTable(int[] counts, int[] symbols) throws IOException {
+        this.symbols = symbols;
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            offset[length] = k - code;
+            for (int i = 0; i < counts[length - 1]; i++) {
+                if (length <= LOOKUP_BITS) {
+                    int shift = LOOKUP_BITS - length;
+                    int entry = (length << 8) | symbols[k];
+                    for (int j = code << shift; j < (code + 1) << shift; j++) {
+                        lookup[j] = entry;
+                    }
+                }
+                code++;
+                k++;
+            }
+            if (code > 1 << length) {
+                throw new IOException("Invalid Huffman table");
+            }
+            maxCode[length] = counts[length - 1] > 0 ? code - 1 : -1;
+            code <<= 1;
+        }
+    }
+
+    /**
+     * Decode the next symbol.
+     * @throws IOException if the data does not match any code.
+     */
+    int decode(BitReader bits) throws IOException {
+        int peek = bits.peek(16);
+        int entry = lookup[peek >>> (16 - LOOKUP_BITS)];
+        if (entry != 0) {
+            bits.skip(entry >>> 8);
+            return entry & 0xFF;
+        }
+        for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+            int code = peek >>> (16 - length);
+            if (code <= maxCode[length]) {
+                bits.skip(length);
+                return symbols[code + offset[length]];
+            }
+        }
+        throw new IOException("Corrupt Huffman code");
+    }
+}
@@ -0,0 +1,139 @@
+package de.trac.spherical.parser;
+
+/**
+ * Integer inverse DCT of 8x8 blocks after Loeffler, Ligtenberg and Moschytz, the algorithm of
+ * the accurate integer IDCT of libjpeg. Constants are scaled by 2^12.
+ */
+final class Idct {
+
+    private static final int C0_541 = fix(0.5411961);
+    private static final int C1_847 = fix(1.847759065);
+    private static final int C0_765 = fix(0.765366865);
+    private static final int C1_175 = fix(1.175875602);
+    private static final int C0_298 = fix(0.298631336);
+    private static final int C2_053 = fix(2.053119869);
+    private static final int C3_072 = fix(3.072711026);
+    private static final int C1_501 = fix(1.501321110);
+    private static final int C0_899 = fix(0.899976223);
+    private static final int C2_562 = fix(2.562915447);
+    private static final int C1_961 = fix(1.961570560);
+    private static final int C0_390 = fix(0.390180644);
+
+    // Intermediate results of the column pass.
+    private final int[] workspace = new int[64];
+
+    /**
+     * Transform a block of dequantized coefficients in natural order to samples.
+     * @param block coefficients, left unmodified.
+     * @param out samples from 0 to 255, level shift included.
+     * @param offset index of the top left sample in out.
+     * @param stride distance between the rows in out.
+     */
+    void transform(int[] block, byte[] out, int offset, int stride) {
+        int[] ws = workspace;
+
+        // Columns, keeping 2 extra bits of precision.
+        for (int i = 0; i < 8; i++) {
+            if (block[i + 8] == 0 && block[i + 16] == 0 && block[i + 24] == 0 && block[i + 32] == 0
+                    && block[i + 40] == 0 && block[i + 48] == 0 && block[i + 56] == 0) {
+                // Most columns carry nothing but their DC coefficient.
+                int dc = block[i] << 2;
+                ws[i] = ws[i + 8] = ws[i + 16] = ws[i + 24] = dc;
+                ws[i + 32] = ws[i + 40] = ws[i + 48] = ws[i + 56] = dc;
+                continue;
+            }
+
+            int s0 = block[i], s1 = block[i + 8], s2 = block[i + 16], s3 = block[i + 24];
+            int s4 = block[i + 32], s5 = block[i + 40], s6 = block[i + 48], s7 = block[i + 56];
+
+            int p1 = (s2 + s6) * C0_541;
+            int t2 = p1 - s6 * C1_847;
+            int t3 = p1 + s2 * C0_765;
+            int t0 = (s0 + s4) << 12;
+            int t1 = (s0 - s4) << 12;
+            int x0 = t0 + t3 + 512;
+            int x3 = t0 - t3 + 512;
+            int x1 = t1 + t2 + 512;
+            int x2 = t1 - t2 + 512;
+
+            int o0 = s7, o1 = s5, o2 = s3, o3 = s1;
+            int p3 = o0 + o2;
+            int p4 = o1 + o3;
+            p1 = o0 + o3;
+            int p2 = o1 + o2;
+            int p5 = (p3 + p4) * C1_175;
+            o0 *= C0_298;
+            o1 *= C2_053;
+            o2 *= C3_072;
+            o3 *= C1_501;
+            p1 = p5 - p1 * C0_899;
+            p2 = p5 - p2 * C2_562;
+            p3 *= -C1_961;
+            p4 *= -C0_390;
+            o3 += p1 + p4;
+            o2 += p2 + p3;
+            o1 += p2 + p4;
+            o0 += p1 + p3;
+
+            ws[i] = (x0 + o3) >> 10;
+            ws[i + 56] = (x0 - o3) >> 10;
+            ws[i + 8] = (x1 + o2) >> 10;
+            ws[i + 48] = (x1 - o2) >> 10;
+            ws[i + 16] = (x2 + o1) >> 10;
+            ws[i + 40] = (x2 - o1) >> 10;
+            ws[i + 24] = (x3 + o0) >> 10;
+            ws[i + 32] = (x3 - o0) >> 10;
+        }
+
+        // Rows, removing the 2^12 of the constants, the 2^2 of the column pass and the 2^3 of
+        // the two passes. Rounding and the level shift of 128 are added up front.
+        for (int row = 0; row < 64; row += 8) {
+            int s0 = ws[row], s1 = ws[row + 1], s2 = ws[row + 2], s3 = ws[row + 3];
+            int s4 = ws[row + 4], s5 = ws[row + 5], s6 = ws[row + 6], s7 = ws[row + 7];
+
+            int p1 = (s2 + s6) * C0_541;
+            int t2 = p1 - s6 * C1_847;
+            int t3 = p1 + s2 * C0_765;
+            int t0 = (s0 + s4) << 12;
+            int t1 = (s0 - s4) << 12;
+            int bias = 65536 + (128 << 17);
+            int x0 = t0 + t3 + bias;
+            int x3 = t0 - t3 + bias;
+            int x1 = t1 + t2 + bias;
+            int x2 = t1 - t2 + bias;
+
+            int o0 = s7, o1 = s5, o2 = s3, o3 = s1;
+            int p3 = o0 + o2;
+            int p4 = o1 + o3;
+            p1 = o0 + o3;
+            int p2 = o1 + o2;
+            int p5 = (p3 + p4) * C1_175;
+            o0 *= C0_298;
+            o1 *= C2_053;
+            o2 *= C3_072;
+            o3 *= C1_501;
+            p1 = p5 - p1 * C0_899;
+            p2 = p5 - p2 * C2_562;
+            p3 *= -C1_961;
+            p4 *= -C0_390;
+            o3 += p1 + p4;
+            o2 += p2 + p3;
+            o1 += p2 + p4;
+            o0 += p1 + p3;
+
+            int o = offset + (row >> 3) * stride;
+            out[o] = (byte) JpegFrame.clamp((x0 + o3) >> 17);
+            out[o + 7] = (byte) JpegFrame.clamp((x0 - o3) >> 17);
+            out[o + 1] = (byte) JpegFrame.clamp((x1 + o2) >> 17);
+            out[o + 6] = (byte) JpegFrame.clamp((x1 - o2) >> 17);
+            out[o + 2] = (byte) JpegFrame.clamp((x2 + o1) >> 17);
+            out[o + 5] = (byte) JpegFrame.clamp((x2 - o1) >> 17);
+            out[o + 3] = (byte) JpegFrame.clamp((x3 + o0) >> 17);
+            out[o + 4] = (byte) JpegFrame.clamp((x3 - o0) >> 17);
+        }
+    }
+
+    private static int fix(double x) {
+        return (int) (x * 4096 + 0.5);
+    }
+}
@@ -0,0 +1,242 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+
+/**
+ * Decoding state of a JPEG file as defined by its table and frame segments:
+ * quantization tables (DQT), Huffman tables (DHT), restart interval (DRI), the frame header
+ * (SOFn) with its components and the Adobe color transform (APP14).
+ *
+ * Only Huffman coded baseline, extended sequential and progressive frames with 8 bit
+ * precision are supported, which covers what cameras and image editors write.
+ */
+final class JpegFrame {
+
+    static final int MARKER_SOF0 = 0xC0;
+    static final int MARKER_SOF1 = 0xC1;
+    static final int MARKER_SOF2 = 0xC2;
+    static final int MARKER_DHT = 0xC4;
+    static final int MARKER_DQT = 0xDB;
+    static final int MARKER_DRI = 0xDD;
+    static final int MARKER_APP14 = 0xEE;
+
+    /**
+     * Natural order index of the coefficients in zigzag order.
+     */
+    static final int[] ZIGZAG = new int[] {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    static class Component {
+        int id;
+        int h;
+        int v;
+        int tq;
+
+        // Blocks actually covered by the image, scanned by non-interleaved scans.
+        int blocksPerLine;
+        int blocksPerColumn;
+
+        // Blocks including the padding of the last MCU row and column.
+        int gridWidth;
+        int gridHeight;
+    }
+
+    static class Scan {
+        Component[] components;
+        HuffmanTable[] dcTables;
+        HuffmanTable[] acTables;
+        int ss;
+        int se;
+        int ah;
+        int al;
+    }
+
+    // Quantization tables in natural order.
+    final int[][] quantizationTables = new int[4][];
+    final HuffmanTable[] dcTables = new HuffmanTable[4];
+    final HuffmanTable[] acTables = new HuffmanTable[4];
+    int restartInterval = 0;
+
+    // Transform flag of the Adobe APP14 segment, -1 if there is none.
+    int adobeTransform = -1;
+
+    boolean progressive;
+    int width;
+    int height;
+    Component[] components;
+    int hMax;
+    int vMax;
+    int mcusPerLine;
+    int mcusPerColumn;
+
+    /**
+     * @return true, if the marker starts a frame, which is not supported:
+     * lossless, hierarchical or arithmetic coded.
+     */
+    static boolean isUnsupportedFrame(int marker) {
+        return marker >= 0xC3 && marker <= 0xCF
+                && marker != MARKER_DHT && marker != 0xC8 && marker != 0xCC;
+    }
+
+    void readQuantizationTables(JpegSegmentReader reader) throws IOException {
+        while (reader.getRemaining() > 0) {
+            int pq = reader.readUInt8();
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                table[ZIGZAG[i]] = (pq >> 4) == 0 ? reader.readUInt8() : reader.readUInt16();
+            }
+            quantizationTables[pq & 3] = table;
+        }
+    }
+
+    void readHuffmanTables(JpegSegmentReader reader) throws IOException {
+        while (reader.getRemaining() > 0) {
+            int tc = reader.readUInt8();
+            int[] counts = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                counts[i] = reader.readUInt8();
+                total += counts[i];
+            }
+            if (total > 256) {
+                throw new IOException("Invalid Huffman table");
+            }
+            int[] symbols = new int[total];
+            for (int i = 0; i < total; i++) {
+                symbols[i] = reader.readUInt8();
+            }
+            HuffmanTable table = new HuffmanTable(counts, symbols);
+            if ((tc >> 4) == 0) {
+                dcTables[tc & 3] = table;
+            } else {
+                acTables[tc & 3] = table;
+            }
+        }
+    }
+
+    void readRestartInterval(JpegSegmentReader reader) throws IOException {
+        restartInterval = reader.readUInt16();
+    }
+
+    void readAdobe(JpegSegmentReader reader) throws IOException {
+        byte[] b = new byte[12];
+        if (reader.getRemaining() < b.length) {
+            return;
+        }
+        reader.read(b, 0, b.length);
+        if (b[0] == 'A' && b[1] == 'd' && b[2] == 'o' && b[3] == 'b' && b[4] == 'e') {
+            adobeTransform = b[11] & 0xFF;
+        }
+    }
+
+    /**
+     * Read the frame header.
+     * @return false, if the frame is not supported.
+     */
+    boolean readFrame(JpegSegmentReader reader, int marker) throws IOException {
+        progressive = marker == MARKER_SOF2;
+        int precision = reader.readUInt8();
+        height = reader.readUInt16();
+        width = reader.readUInt16();
+        int count = reader.readUInt8();
+        if (precision != 8 || width == 0 || height == 0 || (count != 1 && count != 3)) {
+            return false;
+        }
+
+        components = new Component[count];
+        hMax = 1;
+        vMax = 1;
+        for (int i = 0; i < count; i++) {
+            Component c = new Component();
+            c.id = reader.readUInt8();
+            int hv = reader.readUInt8();
+            c.h = hv >> 4;
+            c.v = hv & 15;
+            c.tq = reader.readUInt8() & 3;
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+                throw new IOException("Invalid sampling factors");
+            }
+            hMax = Math.max(hMax, c.h);
+            vMax = Math.max(vMax, c.v);
+            components[i] = c;
+        }
+
+        mcusPerLine = (width + 8 * hMax - 1) / (8 * hMax);
+        mcusPerColumn = (height + 8 * vMax - 1) / (8 * vMax);
+        for (Component c : components) {
+            c.blocksPerLine = ((width * c.h + hMax - 1) / hMax + 7) / 8;
+            c.blocksPerColumn = ((height * c.v + vMax - 1) / vMax + 7) / 8;
+            c.gridWidth = mcusPerLine * c.h;
+            c.gridHeight = mcusPerColumn * c.v;
+        }
+        return true;
+    }
+
+    Scan readScan(JpegSegmentReader reader) throws IOException {
+        if (components == null) {
+            throw new IOException("Scan before frame header");
+        }
+        Scan scan = new Scan();
+        int count = reader.readUInt8();
+        if (count < 1 || count > components.length) {
+            throw new IOException("Invalid scan header");
+        }
+        scan.components = new Component[count];
+        scan.dcTables = new HuffmanTable[count];
+        scan.acTables = new HuffmanTable[count];
+        for (int i = 0; i < count; i++) {
+            int id = reader.readUInt8();
+            int tables = reader.readUInt8();
+            for (Component c : components) {
+                if (c.id == id) {
+                    scan.components[i] = c;
+                }
+            }
+            if (scan.components[i] == null) {
+                throw new IOException("Scan refers to unknown component " + id);
+            }
+            scan.dcTables[i] = dcTables[(tables >> 4) & 3];
+            scan.acTables[i] = acTables[tables & 3];
+        }
+        scan.ss = reader.readUInt8();
+        scan.se = reader.readUInt8();
+        int a = reader.readUInt8();
+        scan.ah = a >> 4;
+        scan.al = a & 15;
+        return scan;
+    }
+
+    /**
+     * @return true, if the three components are stored as RGB instead of YCbCr.
+     */
+    boolean isRgb() {
+        if (components.length != 3) {
+            return false;
+        }
+        if (adobeTransform >= 0) {
+            return adobeTransform == 0;
+        }
+        return components[0].id == 'R' && components[1].id == 'G' && components[2].id == 'B';
+    }
+
+    /**
+     * Convert a color to ARGB.
+     */
+    static int toArgb(int y, int cb, int cr) {
+        cb -= 128;
+        cr -= 128;
+        // Fixed point JFIF conversion, 16 fractional bits.
+        int r = y + ((91881 * cr + 32768) >> 16);
+        int g = y - ((22554 * cb + 46802 * cr + 32768) >> 16);
+        int b = y + ((116130 * cb + 32768) >> 16);
+        return 0xFF000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+    static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,357 @@
+package de.trac.spherical.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the marker segments in the header of a JPEG file.
+ *
+ * FF D8                    SOI, no payload
+ * FF En  LL LL  <LL - 2>   APPn (APP0 = JFIF, APP1 = EXIF or XMP, APP2 = ICC, ...)
+ * FF FE  LL LL  <LL - 2>   COM
+ * ...                      DQT, DHT, SOFn, DRI, ...
+ * FF DA  LL LL  <LL - 2>   SOS, entropy coded image data follows
+ *
+ * The length LL is big endian and includes its own two bytes. Payloads are only read on request,
+ * everything else is skipped without being copied. {@link #next()} stops at SOS or EOI, so the
+ * entropy coded data is never touched. Decoders use {@link #nextSegment()} instead, which returns
+ * SOS like any other segment and leaves the entropy coded data to the caller.
+ *
+ * The file is either read from an {@link InputStream} or straight out of a {@link ByteBuffer}.
+ * Readers can be reset to a new file and keep their buffers, so they are meant to be reused.
+ */
+abstract class JpegSegmentReader {
+
+    static final int MARKER_PREFIX = 0xFF;
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_APP1 = 0xE1;
+    static final int MARKER_TEM = 0x01;
+    static final int MARKER_RST0 = 0xD0;
+    static final int MARKER_RST7 = 0xD7;
+
+    // Current marker and the number of unread payload bytes of its segment.
+    private int marker = -1;
+    private int remaining = 0;
+
+    // Marker already read by a decoder at the end of entropy coded data, or -1.
+    private int pendingMarker = -1;
+
+    /**
+     * Forget the current segment, called when switching to a new file.
+     */
+    void reset() {
+        marker = -1;
+        remaining = 0;
+        pendingMarker = -1;
+    }
+
+    /**
+     * Read the SOI marker.
+     * @return true, if the file starts with FFD8.
+     */
+    boolean readSOI() throws IOException {
+        return readByte() == MARKER_PREFIX && readByte() == MARKER_SOI;
+    }
+
+    /**
+     * Skip what is left of the current segment and advance to the next one.
+     * @return marker of the next segment, or -1 if SOS or EOI has been reached.
+     * @throws IOException if the file ends early or the header is broken.
+     */
+    int next() throws IOException {
+        nextMarker();
+
+        //Image data or end of image reached
+        if (marker == MARKER_SOS || marker == MARKER_EOI) {
+            return -1;
+        }
+        readLength();
+        return marker;
+    }
+
+    /**
+     * Like {@link #next()}, but walks on beyond the header: SOS is returned like any other segment,
+     * its payload being the scan header. The entropy coded data following it has to be consumed
+     * by the caller, see {@link #unreadMarker(int)}.
+     * @return marker of the next segment, or -1 if EOI has been reached.
+     */
+    int nextSegment() throws IOException {
+        nextMarker();
+        if (marker == MARKER_EOI) {
+            return -1;
+        }
+        readLength();
+        return marker;
+    }
+
+    /**
+     * Hand back a marker, which has been read while consuming entropy coded data.
+     * It is returned by the next call of {@link #nextSegment()}.
+     * @param marker marker code without the FF prefix.
+     */
+    void unreadMarker(int marker) {
+        pendingMarker = marker;
+    }
+
+    private void nextMarker() throws IOException {
+        skipBytes(remaining);
+        remaining = 0;
+
+        do {
+            if (pendingMarker >= 0) {
+                marker = pendingMarker;
+                pendingMarker = -1;
+            } else {
+                marker = readMarker();
+            }
+            //Standalone markers carry no length
+        } while (marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7));
+    }
+
+    private void readLength() throws IOException {
+        remaining = ((readByte() << 8) | readByte()) - 2;
+        if (remaining < 0) {
+            throw new IOException("Broken segment length for marker " + Integer.toHexString(marker));
+        }
+    }
+
+    /**
+     * @return marker of the current segment.
+     */
+    int getMarker() {
+        return marker;
+    }
+
+    /**
+     * @return number of payload bytes of the current segment, which have not been read yet.
+     */
+    int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Read payload bytes of the current segment.
+     * @param b destination
+     * @param off offset in b
+     * @param len number of bytes, must not exceed {@link #getRemaining()}.
+     */
+    void read(byte[] b, int off, int len) throws IOException {
+        checkRemaining(len);
+        readBytes(b, off, len);
+        remaining -= len;
+    }
+
+    /**
+     * Read an unsigned byte from the current segment.
+     */
+    int readUInt8() throws IOException {
+        checkRemaining(1);
+        remaining--;
+        return readByte();
+    }
+
+    /**
+     * Read a big endian unsigned 16 bit value from the current segment.
+     */
+    int readUInt16() throws IOException {
+        checkRemaining(2);
+        remaining -= 2;
+        return (readByte() << 8) | readByte();
+    }
+
+    /**
+     * Read a big endian unsigned 32 bit value from the current segment.
+     */
+    long readUInt32() throws IOException {
+        checkRemaining(4);
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | readByte();
+        }
+        remaining -= 4;
+        return value;
+    }
+
+    /**
+     * Make what is left of the current segment accessible by absolute index through
+     * {@link #getBuffer()}. Buffer backed readers do not copy anything, stream backed readers
+     * read the payload into an internal buffer, which is reused by the next call of load().
+     * @return index of the first payload byte within {@link #getBuffer()}.
+     */
+    int load() throws IOException {
+        int index = loadBytes(remaining);
+        remaining = 0;
+        return index;
+    }
+
+    /**
+     * @return buffer holding the payload made accessible by {@link #load()}.
+     */
+    abstract ByteBuffer getBuffer();
+
+    private void checkRemaining(int len) throws IOException {
+        if (len > remaining) {
+            throw new IOException("Read beyond segment end");
+        }
+    }
+
+    /**
+     * Read the next marker code, skipping any fill bytes (0xFF) in front of it.
+     */
+    private int readMarker() throws IOException {
+        int b = readByte();
+        if (b != MARKER_PREFIX) {
+            throw new IOException("Marker expected, found " + Integer.toHexString(b));
+        }
+        do {
+            b = readByte();
+        } while (b == MARKER_PREFIX);
+        return b;
+    }
+
+    /**
+     * @return next unsigned byte.
+     * @throws EOFException at the end of the file.
+     */
+    abstract int readByte() throws IOException;
+
+    abstract void readBytes(byte[] b, int off, int len) throws IOException;
+
+    abstract void skipBytes(long len) throws IOException;
+
+    abstract int loadBytes(int len) throws IOException;
+
+    private static void throwIfUnexpectedEOF(boolean eof) throws EOFException {
+        if (eof) {
+            throw new EOFException("Unexpected EOF!");
+        }
+    }
+
+    static class StreamSegmentReader extends JpegSegmentReader {
+
+        private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+        private InputStream inputStream;
+
+        // Grows to the largest payload loaded so far.
+        private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+        private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        void reset(InputStream inputStream) {
+            if (inputStream == null) {
+                throw new IllegalArgumentException("File MUST NOT be null!");
+            }
+            reset();
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        int readByte() throws IOException {
+            int b = inputStream.read();
+            throwIfUnexpectedEOF(b < 0);
+            return b;
+        }
+
+        @Override
+        void readBytes(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                int i = inputStream.read(b, off, end - off);
+                throwIfUnexpectedEOF(i < 0);
+                off += i;
+            }
+        }
+
+        @Override
+        void skipBytes(long len) throws IOException {
+            while (len > 0) {
+                long skipped = inputStream.skip(len);
+                if (skipped <= 0) {
+                    // Some streams refuse to skip, fall back to reading a single byte.
+                    readByte();
+                    skipped = 1;
+                }
+                len -= skipped;
+            }
+        }
+
+        @Override
+        int loadBytes(int len) throws IOException {
+            if (bytes.length < len) {
+                bytes = new byte[Math.max(len, bytes.length * 2)];
+                buffer = ByteBuffer.wrap(bytes);
+            }
+            readBytes(bytes, 0, len);
+            return 0;
+        }
+    }
+
+    static class BufferSegmentReader extends JpegSegmentReader {
+
+        private ByteBuffer buffer;
+        private int position;
+        private int limit;
+
+        /**
+         * @param buffer buffer positioned at the start of the JPEG file. Its position is not modified.
+         */
+        void reset(ByteBuffer buffer) {
+            if (buffer == null) {
+                throw new IllegalArgumentException("File MUST NOT be null!");
+            }
+            reset();
+            this.buffer = buffer;
+            this.position = buffer.position();
+            this.limit = buffer.limit();
+        }
+
+        @Override
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return absolute index of the next byte to be read.
+         */
+        int getPosition() {
+            return position;
+        }
+
+        @Override
+        int readByte() throws IOException {
+            throwIfUnexpectedEOF(position >= limit);
+            return buffer.get(position++) & 0xFF;
+        }
+
+        @Override
+        void readBytes(byte[] b, int off, int len) throws IOException {
+            throwIfUnexpectedEOF(limit - position < len);
+            for (int i = 0; i < len; i++) {
+                b[off + i] = buffer.get(position + i);
+            }
+            position += len;
+        }
+
+        @Override
+        void skipBytes(long len) throws IOException {
+            throwIfUnexpectedEOF(limit - position < len);
+            position += (int) len;
+        }
+
+        @Override
+        int loadBytes(int len) throws IOException {
+            int index = position;
+            skipBytes(len);
+            return index;
+        }
+    }
+}
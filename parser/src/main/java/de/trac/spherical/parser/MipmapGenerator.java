@@ -0,0 +1,271 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the levels of a mipmap on several threads, for textures of any size. GLES2 can only
+ * generate mipmaps of power of two textures itself.
+ *
+ * Each level halves the size of the previous one, rounding down like GL does. Pixels are
+ * filtered by a tent twice as wide as a texel of the smaller level, which is the 1 3 3 1 filter
+ * for even sizes and works just as well for odd ones. Taps beyond the left and right edge wrap
+ * around for images covering all 360 degrees, so the seam of a photo sphere stays invisible,
+ * and are clamped otherwise. Rows of the smaller level are independent, so the workers take
+ * them in order, like {@link Etc1Encoder} takes rows of blocks.
+ *
+ * Color channels are filtered as they are, without regard to alpha.
+ */
+public class MipmapGenerator {
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param executor executor running the workers.
+     * @param threads number of workers to run per level, usually the number of cores.
+     */
+    public MipmapGenerator(ExecutorService executor, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of levels of a full mipmap, the image itself included.
+     */
+    public static int getLevelCount(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    /**
+     * @param size width or height of the image.
+     * @return width or height of the given level.
+     */
+    public static int getLevelSize(int size, int level) {
+        return Math.max(1, size >> level);
+    }
+
+    /**
+     * @param height height of the larger level.
+     * @return first row of the larger level, a row of the next level is filtered from.
+     */
+    public static int getFirstSourceRow(int row, int height) {
+        double scale = (double) height / getLevelSize(height, 1);
+        return Math.max(0, Filter.getFirstTap((row + 0.5) * scale, scale));
+    }
+
+    /**
+     * @param height height of the larger level.
+     * @return last row of the larger level, a row of the next level is filtered from.
+     */
+    public static int getLastSourceRow(int row, int height) {
+        double scale = (double) height / getLevelSize(height, 1);
+        return Math.min(height - 1, Filter.getLastTap((row + 0.5) * scale, scale));
+    }
+
+    /**
+     * Builds the next level of ARGB pixels, like returned by {@code Bitmap.getPixels()}.
+     * @param wrap true, if the image covers all 360 degrees.
+     * @return pixels of the next level.
+     * @throws IOException if the thread has been interrupted.
+     */
+    public int[] downsample(int[] pixels, int width, int height, boolean wrap) throws IOException {
+        int outWidth = getLevelSize(width, 1);
+        int outHeight = getLevelSize(height, 1);
+        int[] out = new int[outWidth * outHeight];
+        downsample(pixels, 0, width, width, height, 0, height, wrap, out, 0, outHeight);
+        return out;
+    }
+
+    /**
+     * Builds a band of rows of the next level, from a band of rows of the larger level, so that
+     * large images can be read in parts. The band of the larger level has to span the rows from
+     * {@link #getFirstSourceRow(int, int)} of the first to {@link #getLastSourceRow(int, int)} of
+     * the last row built.
+     * @param pixels rows of the larger level, starting with row {@code top}.
+     * @param height height of the whole larger level.
+     * @param top first row of the larger level in pixels.
+     * @param rows number of rows of the larger level in pixels.
+     * @param wrap true, if the image covers all 360 degrees.
+     * @param out pixels of the whole next level, only the rows of the band are written.
+     * @param outTop first row of the next level to build.
+     * @param outRows number of rows of the next level to build.
+     * @throws IOException if the thread has been interrupted.
+     */
+    public void downsample(final int[] pixels, final int offset, final int stride, int width, int height,
+                           final int top, int rows, boolean wrap,
+                           final int[] out, final int outTop, final int outRows) throws IOException {
+        final int outWidth = getLevelSize(width, 1);
+        final Filter horizontal = new Filter(width, outWidth, wrap);
+        final Filter vertical = new Filter(height, getLevelSize(height, 1), false);
+        if (outTop < 0 || outRows < 1 || outTop + outRows > vertical.counts.length
+                || out.length < (outTop + outRows) * outWidth
+                || getFirstSourceRow(outTop, height) < top
+                || getLastSourceRow(outTop + outRows - 1, height) >= top + rows) {
+            throw new IllegalArgumentException("Rows do not cover the band");
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(threads, outRows);
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // Sums of the channels, alpha, red, green and blue per pixel of a row.
+                        float[] sums = new float[outWidth * 4];
+                        int row;
+                        while ((row = next.getAndIncrement()) < outRows) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException();
+                            }
+                            filterRow(pixels, offset, stride, top, horizontal, vertical, outTop + row, sums);
+                            int position = (outTop + row) * outWidth;
+                            for (int x = 0; x < outWidth; x++) {
+                                out[position + x] = pack(sums, x * 4);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while filtering");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Stop the other workers, if one of them failed.
+            next.set(outRows);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void filterRow(int[] pixels, int offset, int stride, int top, Filter horizontal,
+                                  Filter vertical, int outRow, float[] sums) {
+        Arrays.fill(sums, 0);
+        int outWidth = horizontal.counts.length;
+        int rowTap = outRow * Filter.MAX_TAPS;
+        for (int i = 0; i < vertical.counts[outRow]; i++) {
+            int rowStart = offset + (vertical.indices[rowTap + i] - top) * stride;
+            float rowWeight = vertical.weights[rowTap + i];
+            for (int x = 0; x < outWidth; x++) {
+                int tap = x * Filter.MAX_TAPS;
+                float a = 0;
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int j = 0; j < horizontal.counts[x]; j++) {
+                    int pixel = pixels[rowStart + horizontal.indices[tap + j]];
+                    float weight = horizontal.weights[tap + j];
+                    a += weight * (pixel >>> 24);
+                    r += weight * ((pixel >> 16) & 0xFF);
+                    g += weight * ((pixel >> 8) & 0xFF);
+                    b += weight * (pixel & 0xFF);
+                }
+                int sum = x * 4;
+                sums[sum] += rowWeight * a;
+                sums[sum + 1] += rowWeight * r;
+                sums[sum + 2] += rowWeight * g;
+                sums[sum + 3] += rowWeight * b;
+            }
+        }
+    }
+
+    private static int pack(float[] sums, int index) {
+        return channel(sums[index]) << 24 | channel(sums[index + 1]) << 16
+                | channel(sums[index + 2]) << 8 | channel(sums[index + 3]);
+    }
+
+    private static int channel(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+     * Taps and weights of the tent filter along one axis, for each pixel of the smaller level.
+     */
+    static class Filter {
+
+        // A texel of the smaller level spans less than three of the larger one, so the tent
+        // covers less than six.
+        static final int MAX_TAPS = 6;
+
+        final int[] indices;
+        final float[] weights;
+        final int[] counts;
+
+        Filter(int size, int outSize, boolean wrap) {
+            indices = new int[outSize * MAX_TAPS];
+            weights = new float[outSize * MAX_TAPS];
+            counts = new int[outSize];
+            double scale = (double) size / outSize;
+            for (int x = 0; x < outSize; x++) {
+                double center = (x + 0.5) * scale;
+                int first = getFirstTap(center, scale);
+                int last = getLastTap(center, scale);
+                float total = 0;
+                int count = 0;
+                for (int i = first; i <= last; i++) {
+                    float weight = (float) (1 - Math.abs(i + 0.5 - center) / scale);
+                    int index;
+                    if (wrap) {
+                        index = ((i % size) + size) % size;
+                    } else {
+                        index = Math.max(0, Math.min(size - 1, i));
+                    }
+                    // Clamped taps add to the edge pixel.
+                    if (count > 0 && indices[x * MAX_TAPS + count - 1] == index) {
+                        weights[x * MAX_TAPS + count - 1] += weight;
+                    } else {
+                        indices[x * MAX_TAPS + count] = index;
+                        weights[x * MAX_TAPS + count] = weight;
+                        count++;
+                    }
+                    total += weight;
+                }
+                for (int i = 0; i < count; i++) {
+                    weights[x * MAX_TAPS + i] /= total;
+                }
+                counts[x] = count;
+            }
+        }
+
+        /**
+         * @return first pixel with a weight above zero, texel centers being at half pixels.
+         */
+        static int getFirstTap(double center, double scale) {
+            return (int) Math.floor(center - scale - 0.5) + 1;
+        }
+
+        /**
+         * @return last pixel with a weight above zero.
+         */
+        static int getLastTap(double center, double scale) {
+            return (int) Math.ceil(center + scale - 0.5) - 1;
+        }
+    }
+}
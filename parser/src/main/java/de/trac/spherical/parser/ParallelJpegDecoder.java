@@ -0,0 +1,454 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decodes baseline JPEG files with restart intervals on several threads.
+ *
+ * A restart marker (RSTn) resets the DC predictors and aligns the entropy coded data to a byte
+ * boundary, so every restart interval can be decoded on its own. The markers are located by
+ * scanning the entropy coded data for FF Dn once, then the workers take the intervals in order
+ * and write the pixels of each interval into their own band of the target. Files without
+ * restart intervals, progressive files and files with several scans are not handled, so that
+ * the caller can fall back to the platform decoder:
+ *
+ *     DecodedImage image = decoder.decode(buffer);
+ *     if (image == null) {
+ *         // Use BitmapFactory
+ *     }
+ *
+ * Chroma is upsampled by replication, not interpolated like libjpeg's fancy upsampling does.
+ */
+public class ParallelJpegDecoder {
+
+    /**
+     * Receives the decoded pixels. The methods are called from the worker threads, but never
+     * for overlapping areas.
+     */
+    public interface Target {
+
+        /**
+         * Called once the frame header has been read, before the entropy coded data is scanned.
+         * @return false, to leave the file to another decoder. Nothing else is called then.
+         */
+        boolean accept(int width, int height);
+
+        /**
+         * Called once the file is known to be decodable in parallel, before any pixels are delivered.
+         */
+        void start(int width, int height) throws IOException;
+
+        /**
+         * Store a rectangle of ARGB pixels, like {@code Bitmap.setPixels()}.
+         */
+        void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * @param executor executor running the workers.
+     * @param threads number of workers to run per file, usually the number of cores.
+     */
+    public ParallelJpegDecoder(ExecutorService executor, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * Decode a file into an array of pixels.
+     * @param buffer buffer positioned at the start of the JPEG file. Its position is not modified.
+     * @return decoded image or null, if the file cannot be decoded in parallel.
+     * @throws IOException if the file is broken or the thread has been interrupted.
+     */
+    public DecodedImage decode(ByteBuffer buffer) throws IOException {
+        final DecodedImage[] image = new DecodedImage[1];
+        boolean decoded = decode(buffer, new Target() {
+            @Override
+            public boolean accept(int width, int height) {
+                return true;
+            }
+
+            @Override
+            public void start(int width, int height) {
+                image[0] = new DecodedImage(width, height, new int[width * height]);
+            }
+
+            @Override
+            public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+                int[] target = image[0].getPixels();
+                int targetWidth = image[0].getWidth();
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(pixels, offset + row * stride, target, (y + row) * targetWidth + x, width);
+                }
+            }
+        });
+        return decoded ? image[0] : null;
+    }
+
+    /**
+     * Decode a file into the given target.
+     * @param buffer buffer positioned at the start of the JPEG file. Its position is not modified.
+     * @return false, if the file cannot be decoded in parallel or the target does not accept its
+     * size. Nothing but the size has been passed to the target then. Once this returns or
+     * throws, nothing is written to the target anymore.
+     * @throws IOException if the file is broken or the thread has been interrupted.
+     */
+    public boolean decode(ByteBuffer buffer, Target target) throws IOException {
+        JpegSegmentReader.BufferSegmentReader reader = new JpegSegmentReader.BufferSegmentReader();
+        reader.reset(buffer);
+        if (!reader.readSOI()) {
+            return false;
+        }
+
+        JpegFrame frame = new JpegFrame();
+        JpegFrame.Scan scan = null;
+        int marker;
+        while (scan == null && (marker = reader.nextSegment()) >= 0) {
+            switch (marker) {
+                case JpegFrame.MARKER_DQT:
+                    frame.readQuantizationTables(reader);
+                    break;
+                case JpegFrame.MARKER_DHT:
+                    frame.readHuffmanTables(reader);
+                    break;
+                case JpegFrame.MARKER_DRI:
+                    frame.readRestartInterval(reader);
+                    break;
+                case JpegFrame.MARKER_APP14:
+                    frame.readAdobe(reader);
+                    break;
+                case JpegFrame.MARKER_SOF0:
+                case JpegFrame.MARKER_SOF1:
+                    if (!frame.readFrame(reader, marker)) {
+                        return false;
+                    }
+                    break;
+                case JpegSegmentReader.MARKER_SOS:
+                    scan = frame.readScan(reader);
+                    break;
+                default:
+                    if (marker == JpegFrame.MARKER_SOF2 || JpegFrame.isUnsupportedFrame(marker)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+
+        if (scan == null || frame.restartInterval == 0 || !isSingleScan(frame, scan)) {
+            return false;
+        }
+        checkTables(frame, scan);
+
+        // Asked before the whole file is read for restart markers.
+        if (!target.accept(frame.width, frame.height)) {
+            return false;
+        }
+        int[] intervals = findRestartIntervals(buffer, reader.getPosition(), frame);
+        if (intervals.length < 2) {
+            // A single interval gives nothing to do in parallel.
+            return false;
+        }
+
+        target.start(frame.width, frame.height);
+        run(buffer, frame, scan, intervals, target);
+        return true;
+    }
+
+    /**
+     * @return true, if the scan is the only one: sequential, interleaving all components and
+     * covering all coefficients. Gray images have to be sampled 1x1, since a non-interleaved scan
+     * has one block per MCU regardless of the sampling factors.
+     */
+    private static boolean isSingleScan(JpegFrame frame, JpegFrame.Scan scan) {
+        if (frame.components.length == 1 && (frame.hMax != 1 || frame.vMax != 1)) {
+            return false;
+        }
+        return scan.components.length == frame.components.length
+                && scan.ss == 0 && scan.se == 63 && scan.ah == 0 && scan.al == 0;
+    }
+
+    private static void checkTables(JpegFrame frame, JpegFrame.Scan scan) throws IOException {
+        for (int i = 0; i < scan.components.length; i++) {
+            if (scan.dcTables[i] == null || scan.acTables[i] == null) {
+                throw new IOException("Missing Huffman table");
+            }
+            if (frame.quantizationTables[scan.components[i].tq] == null) {
+                throw new IOException("Missing quantization table");
+            }
+        }
+    }
+
+    /**
+     * Find the start of every restart interval in the entropy coded data.
+     * @param start index of the first byte after the scan header.
+     * @return absolute index of the first byte of each interval.
+     */
+    private static int[] findRestartIntervals(ByteBuffer buffer, int start, JpegFrame frame) {
+        int mcus = frame.mcusPerLine * frame.mcusPerColumn;
+        int expected = (mcus + frame.restartInterval - 1) / frame.restartInterval;
+        int[] intervals = new int[expected];
+        int count = 0;
+        intervals[count++] = start;
+
+        int limit = buffer.limit();
+        for (int i = start; i < limit - 1 && count < expected; i++) {
+            if ((buffer.get(i) & 0xFF) != JpegSegmentReader.MARKER_PREFIX) {
+                continue;
+            }
+            int b = buffer.get(i + 1) & 0xFF;
+            if (b >= JpegSegmentReader.MARKER_RST0 && b <= JpegSegmentReader.MARKER_RST7) {
+                intervals[count++] = i + 2;
+                i++;
+            } else if (b != 0 && b != JpegSegmentReader.MARKER_PREFIX) {
+                // End of the scan.
+                break;
+            }
+        }
+
+        if (count < expected) {
+            // Truncated file, the missing intervals stay black.
+            int[] found = new int[count];
+            System.arraycopy(intervals, 0, found, 0, count);
+            return found;
+        }
+        return intervals;
+    }
+
+    private void run(final ByteBuffer buffer, final JpegFrame frame, final JpegFrame.Scan scan,
+                     final int[] intervals, final Target target) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        // Held by the workers while they decode an interval, so that nothing is written to the
+        // target anymore, once this returns, even if a worker failed.
+        final ReadWriteLock writing = new ReentrantReadWriteLock();
+        int workers = Math.min(threads, intervals.length);
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Worker worker = new Worker(buffer, frame, scan, target);
+                        while (true) {
+                            writing.readLock().lock();
+                            try {
+                                int n = next.getAndIncrement();
+                                if (n >= intervals.length) {
+                                    return null;
+                                }
+                                if (Thread.currentThread().isInterrupted()) {
+                                    throw new InterruptedIOException();
+                                }
+                                worker.decodeInterval(n, intervals[n]);
+                            } finally {
+                                writing.readLock().unlock();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Stop the other workers, if one of them failed, and wait for the intervals
+            // being decoded.
+            next.set(intervals.length);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            writing.writeLock().lock();
+            writing.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Decoding state of one thread.
+     */
+    private static class Worker {
+
+        private final JpegFrame frame;
+        private final JpegFrame.Scan scan;
+        private final Target target;
+
+        private final ByteBuffer buffer;
+        private final JpegSegmentReader.BufferSegmentReader reader = new JpegSegmentReader.BufferSegmentReader();
+        private final BitReader bits = new BitReader(reader);
+        private final Idct idct = new Idct();
+
+        private final int[] block = new int[64];
+        private final int[] predictions;
+
+        // Samples of each component within one MCU.
+        private final byte[][] samples;
+
+        // Pixels of the MCUs of the current interval within one MCU row.
+        private final int[] pixels;
+        private final int mcuWidth;
+        private final int mcuHeight;
+
+        Worker(ByteBuffer buffer, JpegFrame frame, JpegFrame.Scan scan, Target target) {
+            this.buffer = buffer.duplicate();
+            this.frame = frame;
+            this.scan = scan;
+            this.target = target;
+            predictions = new int[scan.components.length];
+            samples = new byte[scan.components.length][];
+            for (int i = 0; i < samples.length; i++) {
+                JpegFrame.Component c = scan.components[i];
+                samples[i] = new byte[64 * c.h * c.v];
+            }
+            mcuWidth = 8 * frame.hMax;
+            mcuHeight = 8 * frame.vMax;
+            pixels = new int[Math.min(frame.restartInterval, frame.mcusPerLine) * mcuWidth * mcuHeight];
+        }
+
+        void decodeInterval(int n, int start) throws IOException {
+            buffer.position(start);
+            reader.reset(buffer);
+            bits.reset();
+            for (int i = 0; i < predictions.length; i++) {
+                predictions[i] = 0;
+            }
+
+            int first = n * frame.restartInterval;
+            int last = Math.min(first + frame.restartInterval, frame.mcusPerLine * frame.mcusPerColumn);
+
+            // Pixels are collected per MCU row and handed over as one rectangle.
+            int rowStart = first;
+            for (int mcu = first; mcu < last; mcu++) {
+                int mcuX = mcu % frame.mcusPerLine;
+                if (mcu > rowStart && mcuX == 0) {
+                    flush(rowStart, mcu);
+                    rowStart = mcu;
+                }
+                decodeMcu();
+                toArgb(mcu - rowStart, Math.min(frame.restartInterval, frame.mcusPerLine));
+            }
+            flush(rowStart, last);
+        }
+
+        private void decodeMcu() throws IOException {
+            for (int i = 0; i < scan.components.length; i++) {
+                JpegFrame.Component c = scan.components[i];
+                int[] q = frame.quantizationTables[c.tq];
+                int stride = 8 * c.h;
+                for (int v = 0; v < c.v; v++) {
+                    for (int h = 0; h < c.h; h++) {
+                        decodeBlock(i, q);
+                        idct.transform(block, samples[i], v * 8 * stride + h * 8, stride);
+                    }
+                }
+            }
+        }
+
+        private void decodeBlock(int i, int[] q) throws IOException {
+            int[] b = block;
+            for (int k = 0; k < 64; k++) {
+                b[k] = 0;
+            }
+
+            int t = scan.dcTables[i].decode(bits);
+            predictions[i] += bits.receiveExtend(t);
+            b[0] = predictions[i] * q[0];
+
+            HuffmanTable ac = scan.acTables[i];
+            for (int k = 1; k < 64; k++) {
+                int rs = ac.decode(bits);
+                int s = rs & 15;
+                int r = rs >> 4;
+                if (s == 0) {
+                    if (r != 15) {
+                        break;
+                    }
+                    k += 15;
+                    continue;
+                }
+                k += r;
+                if (k > 63) {
+                    throw new IOException("Corrupt AC coefficients");
+                }
+                int z = JpegFrame.ZIGZAG[k];
+                b[z] = bits.receiveExtend(s) * q[z];
+            }
+        }
+
+        /**
+         * Convert the samples of the current MCU to pixels at the given position within the row buffer.
+         */
+        private void toArgb(int index, int mcusPerRow) {
+            int stride = mcusPerRow * mcuWidth;
+            int offset = index * mcuWidth;
+            JpegFrame.Component[] components = scan.components;
+            if (components.length == 1) {
+                byte[] gray = samples[0];
+                for (int y = 0; y < mcuHeight; y++) {
+                    for (int x = 0; x < mcuWidth; x++) {
+                        int s = gray[y * mcuWidth + x] & 0xFF;
+                        pixels[offset + y * stride + x] = 0xFF000000 | (s * 0x010101);
+                    }
+                }
+                return;
+            }
+
+            JpegFrame.Component c0 = components[0], c1 = components[1], c2 = components[2];
+            byte[] s0 = samples[0], s1 = samples[1], s2 = samples[2];
+            boolean rgb = frame.isRgb();
+            for (int y = 0; y < mcuHeight; y++) {
+                int r0 = (y * c0.v / frame.vMax) * 8 * c0.h;
+                int r1 = (y * c1.v / frame.vMax) * 8 * c1.h;
+                int r2 = (y * c2.v / frame.vMax) * 8 * c2.h;
+                for (int x = 0; x < mcuWidth; x++) {
+                    int a = s0[r0 + x * c0.h / frame.hMax] & 0xFF;
+                    int b = s1[r1 + x * c1.h / frame.hMax] & 0xFF;
+                    int c = s2[r2 + x * c2.h / frame.hMax] & 0xFF;
+                    pixels[offset + y * stride + x] = rgb
+                            ? 0xFF000000 | (a << 16) | (b << 8) | c
+                            : JpegFrame.toArgb(a, b, c);
+                }
+            }
+        }
+
+        /**
+         * Hand the MCUs from first to last, which lie in the same MCU row, over to the target.
+         */
+        private void flush(int first, int last) {
+            if (last <= first) {
+                return;
+            }
+            int x = (first % frame.mcusPerLine) * mcuWidth;
+            int y = (first / frame.mcusPerLine) * mcuHeight;
+            int width = Math.min((last - first) * mcuWidth, frame.width - x);
+            int height = Math.min(mcuHeight, frame.height - y);
+            int stride = Math.min(frame.restartInterval, frame.mcusPerLine) * mcuWidth;
+            target.setPixels(pixels, 0, stride, x, y, width, height);
+        }
+    }
+}
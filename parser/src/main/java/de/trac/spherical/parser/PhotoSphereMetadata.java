@@ -31,7 +31,7 @@ public class PhotoSphereMetadata {
     static final String CROPPED_AREA_TOP_PIXELS = "GPano:CroppedAreaTopPixels";
     static final String INITIAL_CAMERA_DOLLY = "GPano:InitialCameraDolly";
 
-    enum ProjectionType {
+    public enum ProjectionType {
         equirectangular
     }
 
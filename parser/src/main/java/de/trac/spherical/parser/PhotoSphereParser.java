@@ -0,0 +1,486 @@
+package de.trac.spherical.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Parser for the GPano XMP metadata of photo spheres.
+ *
+ * Instances keep their read buffers between files, so parsing many files with the same instance
+ * produces hardly any garbage besides the returned metadata. An instance must not be used by
+ * several threads at once, use one instance per thread instead. The static methods do exactly
+ * that by means of a thread local instance, so they can be called from any thread without locking.
+ */
+public class PhotoSphereParser {
+
+    private static final Logger LOG = Logger.getLogger(PhotoSphereParser.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] XMP_SIGNATURE = new byte[] {
+            'h', 't', 't', 'p', ':', '/', '/', 'n', 's', '.', 'a', 'd', 'o', 'b', 'e', '.',
+            'c', 'o', 'm', '/', 'x', 'a', 'p', '/', '1', '.', '0', '/', 0
+    };
+
+    private static final byte[] HAS_EXTENDED_XMP = "xmpNote:HasExtendedXMP".getBytes(UTF_8);
+
+    // Size of the window of a file mapped first, which holds the usual EXIF and XMP segments.
+    // It is doubled as long as the header reaches beyond it.
+    private static final int MAP_WINDOW = 64 * 1024;
+
+    private static final ThreadLocal<PhotoSphereParser> instances = new ThreadLocal<PhotoSphereParser>() {
+        @Override
+        protected PhotoSphereParser initialValue() {
+            return new PhotoSphereParser();
+        }
+    };
+
+    // Readers are reset for every file, so their buffers are reused.
+    private final JpegSegmentReader.StreamSegmentReader streamReader = new JpegSegmentReader.StreamSegmentReader();
+    private final JpegSegmentReader.BufferSegmentReader bufferReader = new JpegSegmentReader.BufferSegmentReader();
+
+    // Scratch buffers for segment signatures and GUIDs.
+    private final byte[] signature = new byte[ExtendedXmp.SIGNATURE.length];
+    private final byte[] chunkGuid = new byte[ExtendedXmp.GUID_LENGTH];
+    private final byte[] guid = new byte[ExtendedXmp.GUID_LENGTH];
+
+    // Reused for the Extended XMP packet referenced by the main packet.
+    private final ExtendedXmp extendedXmp = new ExtendedXmp();
+
+    // Result of the last scan: main packet and, if requested and intact, the extended packet.
+    private ByteBuffer main;
+    private int mainOffset;
+    private int mainLength;
+    private ExtendedXmp extended;
+
+    // Whether to extract the EXIF thumbnail, and the one found by the last scan.
+    private boolean readThumbnail = false;
+    private byte[] thumbnail;
+
+    /**
+     * @return the parser instance of the calling thread.
+     */
+    private static PhotoSphereParser instance() {
+        return instances.get();
+    }
+
+    /**
+     * Walk the marker segments of a JPEG stream and return the content of the XMP APP1 segment.
+     * @param inputStream stream positioned at the start of the JPEG file.
+     * @return XMP packet or null, if the stream is no JPEG or does not contain XMP data.
+     * @throws IOException if the stream ends unexpectedly.
+     */
+    public static String getXMLContent(InputStream inputStream) throws IOException {
+        PhotoSphereParser parser = instance();
+        if (!parser.scan(parser.reader(inputStream), false)) {
+            return null;
+        }
+        return parser.string(parser.main, parser.mainOffset, parser.mainLength);
+    }
+
+    /**
+     * Walk the marker segments of a JPEG stream and return the reassembled Extended XMP packet.
+     * @param inputStream stream positioned at the start of the JPEG file.
+     * @return Extended XMP packet or null, if the stream does not contain a complete and intact one.
+     * @throws IOException if the stream ends unexpectedly.
+     */
+    public static String getExtendedXMLContent(InputStream inputStream) throws IOException {
+        PhotoSphereParser parser = instance();
+        if (!parser.scan(parser.reader(inputStream), true) || parser.extended == null) {
+            return null;
+        }
+        return new String(parser.extended.getBytes(), 0, parser.extended.getLength(), UTF_8);
+    }
+
+    /**
+     * Parse the GPano properties of an XMP packet.
+     * @param xmp XMP packet
+     * @return metadata or null, if xmp is null.
+     */
+    public static PhotoSphereMetadata parse(String xmp) {
+        if (xmp == null) {
+            return null;
+        }
+        byte[] b = xmp.getBytes(UTF_8);
+        return parse(b, 0, b.length);
+    }
+
+    /**
+     * Parse the GPano properties of a raw XMP packet in a single pass.
+     * @param xmp buffer holding the XMP packet
+     * @param offset start of the packet
+     * @param length length of the packet
+     * @return metadata
+     */
+    public static PhotoSphereMetadata parse(byte[] xmp, int offset, int length) {
+        return parseXMP(ByteBuffer.wrap(xmp), offset, length);
+    }
+
+    /**
+     * Parse the GPano properties of a raw XMP packet in a single pass, reading the packet
+     * straight out of the buffer. The buffer's position and limit are not modified.
+     * @param xmp buffer holding the XMP packet
+     * @param offset absolute index of the start of the packet
+     * @param length length of the packet
+     * @return metadata
+     */
+    public static PhotoSphereMetadata parseXMP(ByteBuffer xmp, int offset, int length) {
+        PhotoSphereMetadata meta = new PhotoSphereMetadata();
+        XmpTokenizer.tokenize(xmp, offset, length, meta, 0);
+        return meta;
+    }
+
+    /**
+     * Parse the GPano properties of the main XMP packet. Extended XMP segments are skipped.
+     * @param inputStream stream positioned at the start of the JPEG file.
+     * @return metadata or null, if the stream is no JPEG or does not contain XMP data.
+     */
+    public static PhotoSphereMetadata parse(InputStream inputStream) throws IOException {
+        return instance().read(inputStream, false);
+    }
+
+    /**
+     * Parse the GPano properties of a JPEG stream.
+     * @param inputStream stream positioned at the start of the JPEG file.
+     * @param readExtendedXMP if true, GPano properties missing in the main XMP packet are also
+     *                        looked up in the Extended XMP packet. Otherwise the extended
+     *                        segments are skipped without being read.
+     * @return metadata or null, if the stream is no JPEG or does not contain XMP data.
+     */
+    public static PhotoSphereMetadata parse(InputStream inputStream, boolean readExtendedXMP) throws IOException {
+        return instance().read(inputStream, readExtendedXMP);
+    }
+
+    /**
+     * Parse the GPano properties of a JPEG file held in a buffer, for instance a
+     * {@link java.nio.MappedByteBuffer}. Marker segments and XMP properties are read straight
+     * out of the buffer, nothing but the String valued properties is copied to the heap.
+     * The buffer's position and limit are not modified.
+     * @param buffer buffer positioned at the start of the JPEG file.
+     * @param readExtendedXMP see {@link #parse(InputStream, boolean)}.
+     * @return metadata or null, if the buffer holds no JPEG or the JPEG does not contain XMP data.
+     */
+    public static PhotoSphereMetadata parse(ByteBuffer buffer, boolean readExtendedXMP) throws IOException {
+        return instance().read(buffer, readExtendedXMP);
+    }
+
+    /**
+     * Parse the GPano properties of the main XMP packet. Extended XMP segments are skipped.
+     * @param buffer buffer positioned at the start of the JPEG file.
+     * @return metadata or null, if the buffer holds no JPEG or the JPEG does not contain XMP data.
+     * @see #parse(ByteBuffer, boolean)
+     */
+    public static PhotoSphereMetadata parse(ByteBuffer buffer) throws IOException {
+        return instance().read(buffer, false);
+    }
+
+    /**
+     * Parse the GPano properties of a JPEG file by mapping its header into memory. A small
+     * window at the start of the file is mapped, which is grown only if the header reaches
+     * beyond it, so files of any size can be parsed. The channel's position is not modified.
+     * @param channel channel of the JPEG file.
+     * @param readExtendedXMP see {@link #parse(InputStream, boolean)}.
+     * @return metadata or null, if the file is no JPEG or does not contain XMP data.
+     */
+    public static PhotoSphereMetadata parse(FileChannel channel, boolean readExtendedXMP) throws IOException {
+        return instance().read(channel, readExtendedXMP);
+    }
+
+    /**
+     * Parse the GPano properties of the main XMP packet. Extended XMP segments are skipped.
+     * @param channel channel of the JPEG file.
+     * @return metadata or null, if the file is no JPEG or does not contain XMP data.
+     * @see #parse(FileChannel, boolean)
+     */
+    public static PhotoSphereMetadata parse(FileChannel channel) throws IOException {
+        return instance().read(channel, false);
+    }
+
+    /**
+     * Instance counterpart of {@link #parse(InputStream, boolean)}, which reuses this parser's buffers.
+     */
+    public PhotoSphereMetadata read(InputStream inputStream, boolean readExtendedXMP) throws IOException {
+        return read(reader(inputStream), readExtendedXMP);
+    }
+
+    /**
+     * Instance counterpart of {@link #parse(ByteBuffer, boolean)}, which reuses this parser's buffers.
+     */
+    public PhotoSphereMetadata read(ByteBuffer buffer, boolean readExtendedXMP) throws IOException {
+        bufferReader.reset(buffer);
+        return read(bufferReader, readExtendedXMP);
+    }
+
+    /**
+     * Instance counterpart of {@link #parse(FileChannel, boolean)}, which reuses this parser's buffers.
+     */
+    public PhotoSphereMetadata read(FileChannel channel, boolean readExtendedXMP) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("File MUST NOT be null!");
+        }
+        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        long window = Math.min(size, MAP_WINDOW);
+        while (true) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, window);
+            try {
+                return read(buffer, readExtendedXMP);
+            } catch (EOFException e) {
+                if (window >= size) {
+                    throw e;
+                }
+                window = Math.min(size, window * 2);
+            }
+        }
+    }
+
+    /**
+     * Extract the JPEG thumbnail embedded in the EXIF segment while reading, which is
+     * usually small enough to be decoded and shown long before the image itself.
+     * Off by default. When enabled, the header is read up to the thumbnail even if it
+     * follows the XMP packet.
+     * @param readThumbnail true, to extract the thumbnail.
+     */
+    public void setReadThumbnail(boolean readThumbnail) {
+        this.readThumbnail = readThumbnail;
+    }
+
+    /**
+     * @return the EXIF thumbnail found by the last read, which is a complete JPEG file,
+     * or null if there is none or {@link #setReadThumbnail(boolean)} is off.
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    private JpegSegmentReader reader(InputStream inputStream) {
+        streamReader.reset(inputStream);
+        return streamReader;
+    }
+
+    private PhotoSphereMetadata read(JpegSegmentReader reader, boolean readExtendedXMP) throws IOException {
+        if (!scan(reader, readExtendedXMP)) {
+            return null;
+        }
+        PhotoSphereMetadata meta = new PhotoSphereMetadata();
+        int seen = XmpTokenizer.tokenize(main, mainOffset, mainLength, meta, 0);
+        if (extended != null) {
+            XmpTokenizer.tokenize(ByteBuffer.wrap(extended.getBytes()), 0, extended.getLength(), meta, seen);
+        }
+        return meta;
+    }
+
+    /**
+     * Walk the marker segments of a JPEG file and locate the XMP packets. Segments that do not
+     * carry XMP are skipped without being read into memory. Unless Extended XMP is requested,
+     * scanning stops right after the main packet, otherwise it ends at the first SOS marker
+     * or as soon as the extended packet referenced by the main one is complete.
+     * The main packet is stored in main, mainOffset and mainLength, the intact extended packet
+     * in extended.
+     * @param reader reader positioned at the start of the JPEG file.
+     * @param readExtended whether to reassemble the Extended XMP packet.
+     * @return false, if the file is no JPEG or does not contain XMP data.
+     * @throws IOException if the file ends unexpectedly.
+     */
+    private boolean scan(JpegSegmentReader reader, boolean readExtended) throws IOException {
+        main = null;
+        extended = null;
+        thumbnail = null;
+
+        //HEADER
+        if (!reader.readSOI()) {
+            LOG.fine("Unexpected Image header (ffd8 expected)");
+            return false;
+        }
+
+        boolean hasGuid = false;
+        ExtendedXmp target = null;
+
+        // Extended chunks, which show up before the main packet tells us which GUID we need.
+        List<ExtendedXmp> pending = null;
+
+        while (reader.next() >= 0) {
+            if (reader.getMarker() != JpegSegmentReader.MARKER_APP1) {
+                continue;
+            }
+
+            //EXIF, the thumbnail usually comes before the XMP packet
+            int read = 0;
+            if (readThumbnail && thumbnail == null && reader.getRemaining() > ExifThumbnail.SIGNATURE.length) {
+                read = ExifThumbnail.SIGNATURE.length;
+                reader.read(signature, 0, read);
+                if (startsWith(signature, ExifThumbnail.SIGNATURE, read)) {
+                    readThumbnail(reader);
+                    if (main != null && !readExtended) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+
+            if (reader.getRemaining() + read <= XMP_SIGNATURE.length) {
+                continue;
+            }
+            reader.read(signature, read, XMP_SIGNATURE.length - read);
+            if (startsWith(signature, XMP_SIGNATURE, XMP_SIGNATURE.length)) {
+                if (main != null) {
+                    continue;
+                }
+                mainLength = reader.getRemaining();
+                mainOffset = reader.load();
+                main = reader.getBuffer();
+                if (!readExtended) {
+                    if (readThumbnail && thumbnail == null) {
+                        continue;
+                    }
+                    break;
+                }
+
+                long range = XmpTokenizer.findValue(main, mainOffset, mainLength, HAS_EXTENDED_XMP);
+                int start = (int) (range >>> 32);
+                if (range == XmpTokenizer.NO_VALUE || (int) range - start != guid.length) {
+                    break;
+                }
+                for (int i = 0; i < guid.length; i++) {
+                    guid[i] = main.get(start + i);
+                }
+                hasGuid = true;
+                if (pending != null) {
+                    for (ExtendedXmp candidate : pending) {
+                        if (candidate.hasGuid(guid)) {
+                            target = candidate;
+                        }
+                    }
+                    pending = null;
+                }
+                if (target != null && target.isComplete()) {
+                    break;
+                }
+                continue;
+            }
+
+            //Extended XMP chunk
+            if (!readExtended
+                    || !startsWith(signature, ExtendedXmp.SIGNATURE, XMP_SIGNATURE.length)
+                    || reader.getRemaining() < ExtendedXmp.SIGNATURE.length - XMP_SIGNATURE.length + ExtendedXmp.HEADER_LENGTH) {
+                continue;
+            }
+            reader.read(signature, XMP_SIGNATURE.length, ExtendedXmp.SIGNATURE.length - XMP_SIGNATURE.length);
+            if (!startsWith(signature, ExtendedXmp.SIGNATURE, ExtendedXmp.SIGNATURE.length)) {
+                continue;
+            }
+            reader.read(chunkGuid, 0, chunkGuid.length);
+            long fullLength = reader.readUInt32();
+            long offset = reader.readUInt32();
+
+            if (fullLength > ExtendedXmp.MAX_LENGTH) {
+                LOG.fine("Skipping Extended XMP of " + fullLength + " bytes.");
+                continue;
+            }
+
+            ExtendedXmp chunkTarget = null;
+            if (hasGuid) {
+                if (!ExtendedXmp.matches(guid, chunkGuid)) {
+                    continue;
+                }
+                if (target == null) {
+                    target = extendedXmp;
+                    target.reset(guid, (int) fullLength);
+                }
+                chunkTarget = target;
+            } else {
+                // Rare, so these are not pooled.
+                if (pending == null) {
+                    pending = new ArrayList<>();
+                }
+                for (ExtendedXmp candidate : pending) {
+                    if (candidate.hasGuid(chunkGuid)) {
+                        chunkTarget = candidate;
+                    }
+                }
+                if (chunkTarget == null) {
+                    chunkTarget = new ExtendedXmp();
+                    chunkTarget.reset(chunkGuid, (int) fullLength);
+                    pending.add(chunkTarget);
+                }
+            }
+
+            if (chunkTarget.getLength() != fullLength || !chunkTarget.readChunk(reader, offset)) {
+                LOG.fine("Ignoring inconsistent Extended XMP chunk.");
+                continue;
+            }
+            if (chunkTarget == target && target.isComplete()) {
+                break;
+            }
+        }
+
+        if (main == null) {
+            LOG.fine("Image does not contain XML data.");
+            return false;
+        }
+
+        if (target != null) {
+            if (target.verify()) {
+                extended = target;
+            } else {
+                LOG.fine("Extended XMP is incomplete or corrupt.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the thumbnail out of the EXIF segment, the reader's buffer is reused for the XMP packet.
+     */
+    private void readThumbnail(JpegSegmentReader reader) throws IOException {
+        int length = reader.getRemaining();
+        int offset;
+        ByteBuffer exif;
+        if (main == null) {
+            offset = reader.load();
+            exif = reader.getBuffer();
+        } else {
+            // Loading would overwrite the main packet held by a stream reader.
+            byte[] bytes = new byte[length];
+            reader.read(bytes, 0, length);
+            offset = 0;
+            exif = ByteBuffer.wrap(bytes);
+        }
+        long range = ExifThumbnail.find(exif, offset, length);
+        if (range == XmpTokenizer.NO_VALUE) {
+            return;
+        }
+        int start = (int) (range >>> 32);
+        thumbnail = new byte[(int) range - start];
+        for (int i = 0; i < thumbnail.length; i++) {
+            thumbnail[i] = exif.get(start + i);
+        }
+    }
+
+    private String string(ByteBuffer b, int offset, int length) {
+        if (b.hasArray()) {
+            return new String(b.array(), b.arrayOffset() + offset, length, UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = b.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static boolean startsWith(byte[] b, byte[] prefix, int len) {
+        for (int i = 0; i < len; i++) {
+            if (b[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
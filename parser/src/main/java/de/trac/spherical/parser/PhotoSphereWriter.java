@@ -0,0 +1,491 @@
+package de.trac.spherical.parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static de.trac.spherical.parser.PhotoSphereMetadata.*;
+
+/**
+ * Writes GPano properties back into a JPEG file without touching the image data.
+ *
+ * Only the main XMP packet is edited. Properties which already exist in the packet get their
+ * value replaced, missing ones are added to its rdf:Description. Everything else in the packet,
+ * including unrelated namespaces, is kept byte for byte. Properties whose value equals the one
+ * currently stored in the file, as read by {@link PhotoSphereParser}, are not written at all,
+ * so writing back parsed metadata with a single changed setter only changes that property.
+ * Properties cannot be removed, null values are skipped.
+ *
+ * XMP packets usually end with whitespace padding before the closing xpacket processing
+ * instruction, so that editors can update them in place. If the edited packet fits into the
+ * old one, only the changed bytes are written. Otherwise the file is copied with
+ * {@link FileChannel#transferTo}, replacing just the XMP segment, and the new packet gets
+ * fresh padding for the next edit.
+ */
+public class PhotoSphereWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] XMP_SIGNATURE = new byte[] {
+            'h', 't', 't', 'p', ':', '/', '/', 'n', 's', '.', 'a', 'd', 'o', 'b', 'e', '.',
+            'c', 'o', 'm', '/', 'x', 'a', 'p', '/', '1', '.', '0', '/', 0
+    };
+
+    private static final String GPANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+
+    private static final byte[] DESCRIPTION = "<rdf:Description".getBytes(UTF_8);
+    private static final byte[] GPANO_DECLARATION = "xmlns:GPano".getBytes(UTF_8);
+    private static final byte[] PACKET_TRAILER = "<?xpacket end".getBytes(UTF_8);
+
+    // Padding of new packets, as recommended by the XMP specification.
+    private static final int PADDING = 2048;
+
+    // Largest payload of a segment, the length field includes its own two bytes.
+    private static final int MAX_PAYLOAD = 0xFFFF - 2;
+
+    private static final String[] KEYS = new String[] {
+            USE_PANORAMA_VIEWER,
+            CAPTURE_SOFTWARE,
+            STITCHING_SOFTWARE,
+            PROJECTION_TYPE,
+            POSE_HEADING_DEGREES,
+            POSE_PITCH_DEGREES,
+            POSE_ROLL_DEGREES,
+            INITIAL_VIEW_HEADING_DEGREES,
+            INITIAL_VIEW_PITCH_DEGREES,
+            INITIAL_VIEW_ROLL_DEGREES,
+            INITIAL_HORIZONTAL_POV_DEGREES,
+            FIRST_PHOTO_DATE,
+            LAST_PHOTO_DATE,
+            SOURCE_PHOTOS_COUNT,
+            EXPOSURE_LOCK_USED,
+            CROPPED_AREA_IMAGE_WIDTH_PIXELS,
+            CROPPED_AREA_IMAGE_HEIGHT_PIXELS,
+            FULL_PANO_WIDTH_PIXELS,
+            FULL_PANO_HEIGHT_PIXELS,
+            CROPPED_AREA_LEFT_PIXELS,
+            CROPPED_AREA_TOP_PIXELS,
+            INITIAL_CAMERA_DOLLY
+    };
+
+    private PhotoSphereWriter() {
+    }
+
+    /**
+     * Write the metadata into a file, in place if possible, otherwise by copying the file
+     * to a temporary file next to it, which then replaces the original.
+     * @param file JPEG file.
+     * @param metadata properties to write.
+     * @throws IOException if the file is no JPEG or the XMP packet cannot be edited.
+     */
+    public static void write(File file, PhotoSphereMetadata metadata) throws IOException {
+        RandomAccessFile source = new RandomAccessFile(file, "rw");
+        File temp = null;
+        try {
+            if (writeInPlace(source.getChannel(), metadata)) {
+                return;
+            }
+            temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            FileOutputStream target = new FileOutputStream(temp);
+            try {
+                write(source.getChannel(), target.getChannel(), metadata);
+                target.getFD().sync();
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Patch the XMP packet of a file in place. This only succeeds if the edited packet fits
+     * into the existing one including its padding, in that case only the bytes that actually
+     * changed are written.
+     * @param channel channel of the JPEG file, opened for reading and writing.
+     * @param metadata properties to write.
+     * @return true, if the file is up to date. False, if it has not been modified, because
+     * it contains no XMP packet or the packet has too little padding left.
+     * @throws IOException if the file is no JPEG or the XMP packet cannot be edited.
+     */
+    public static boolean writeInPlace(FileChannel channel, PhotoSphereMetadata metadata) throws IOException {
+        ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        Layout layout = layout(file);
+        if (layout.packetStart < 0) {
+            return false;
+        }
+
+        byte[] old = new byte[layout.packetLength];
+        for (int i = 0; i < old.length; i++) {
+            old[i] = file.get(layout.packetStart + i);
+        }
+        byte[] edited = fit(edit(old, metadata), old.length);
+        if (edited == null) {
+            return false;
+        }
+
+        // Only write what changed, usually a few bytes.
+        int from = 0;
+        while (from < old.length && old[from] == edited[from]) {
+            from++;
+        }
+        if (from == old.length) {
+            return true;
+        }
+        int to = old.length;
+        while (old[to - 1] == edited[to - 1]) {
+            to--;
+        }
+        ByteBuffer changed = ByteBuffer.wrap(edited, from, to - from);
+        long position = layout.packetStart + from;
+        while (changed.hasRemaining()) {
+            position += channel.write(changed, position);
+        }
+        return true;
+    }
+
+    /**
+     * Copy a JPEG file and write the metadata into the copy. All bytes but those of the XMP
+     * segment are transferred from channel to channel, without passing through the heap.
+     * A file without XMP packet gets a new one after its leading JFIF and EXIF segments.
+     * @param source channel of the JPEG file. Its position is not modified.
+     * @param target channel to write the copy to.
+     * @param metadata properties to write.
+     * @throws IOException if the file is no JPEG or the XMP packet cannot be edited.
+     */
+    public static void write(FileChannel source, WritableByteChannel target, PhotoSphereMetadata metadata) throws IOException {
+        long size = source.size();
+        ByteBuffer file = source.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        Layout layout = layout(file);
+
+        long head;
+        long tail;
+        byte[] packet;
+        if (layout.packetStart >= 0) {
+            byte[] old = new byte[layout.packetLength];
+            for (int i = 0; i < old.length; i++) {
+                old[i] = file.get(layout.packetStart + i);
+            }
+            packet = pad(edit(old, metadata));
+            head = layout.segmentStart;
+            tail = layout.packetStart + layout.packetLength;
+        } else {
+            packet = pad(edit(emptyPacket(), metadata));
+            head = layout.insertAt;
+            tail = layout.insertAt;
+        }
+
+        int length = XMP_SIGNATURE.length + packet.length + 2;
+        ByteBuffer segment = ByteBuffer.allocate(length + 2);
+        segment.put((byte) JpegSegmentReader.MARKER_PREFIX).put((byte) JpegSegmentReader.MARKER_APP1);
+        segment.put((byte) (length >> 8)).put((byte) length);
+        segment.put(XMP_SIGNATURE).put(packet);
+        segment.flip();
+
+        transfer(source, 0, head, target);
+        while (segment.hasRemaining()) {
+            target.write(segment);
+        }
+        transfer(source, tail, size - tail, target);
+    }
+
+    private static void transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long n = source.transferTo(position, count, target);
+            if (n <= 0) {
+                throw new IOException("Could not copy file");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Position of the XMP packet and where to insert one, if there is none.
+     */
+    private static class Layout {
+        int segmentStart = -1;
+        int packetStart = -1;
+        int packetLength = 0;
+        int insertAt = -1;
+    }
+
+    private static Layout layout(ByteBuffer file) throws IOException {
+        JpegSegmentReader.BufferSegmentReader reader = new JpegSegmentReader.BufferSegmentReader();
+        reader.reset(file);
+        if (!reader.readSOI()) {
+            throw new IOException("Unexpected Image header (ffd8 expected)");
+        }
+
+        Layout layout = new Layout();
+        layout.insertAt = reader.getPosition();
+        boolean leading = true;
+        byte[] signature = new byte[XMP_SIGNATURE.length];
+        while (reader.next() >= 0) {
+            int marker = reader.getMarker();
+            int start = reader.getPosition() - 4;
+            int end = reader.getPosition() + reader.getRemaining();
+            if (marker == JpegSegmentReader.MARKER_APP1 && reader.getRemaining() > XMP_SIGNATURE.length) {
+                reader.read(signature, 0, XMP_SIGNATURE.length);
+                if (Arrays.equals(signature, XMP_SIGNATURE)) {
+                    layout.segmentStart = start;
+                    layout.packetStart = reader.getPosition();
+                    layout.packetLength = reader.getRemaining();
+                    return layout;
+                }
+            }
+            // JFIF and EXIF have to stay in front of the XMP segment.
+            leading &= marker == 0xE0 || marker == JpegSegmentReader.MARKER_APP1;
+            if (leading) {
+                layout.insertAt = end;
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Replace or add the properties which differ from the ones currently in the packet.
+     */
+    private static byte[] edit(byte[] packet, PhotoSphereMetadata metadata) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(packet);
+        PhotoSphereMetadata current = PhotoSphereParser.parseXMP(b, 0, packet.length);
+
+        List<int[]> ranges = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        StringBuilder added = new StringBuilder();
+        for (int field = 0; field < KEYS.length; field++) {
+            String value = format(metadata, field);
+            if (value == null || value.equals(format(current, field))) {
+                continue;
+            }
+            long range = XmpTokenizer.findValue(b, 0, packet.length, KEYS[field].getBytes(UTF_8));
+            if (range != XmpTokenizer.NO_VALUE) {
+                ranges.add(new int[] {(int) (range >>> 32), (int) range, values.size()});
+                values.add(escape(value).getBytes(UTF_8));
+            } else {
+                added.append("\n    ").append(KEYS[field]).append("=\"").append(escape(value)).append('"');
+            }
+        }
+        if (ranges.isEmpty() && added.length() == 0) {
+            return packet;
+        }
+
+        if (added.length() > 0) {
+            // Add to the description declaring the GPano namespace, or to the first one.
+            int declaration = indexOf(packet, GPANO_DECLARATION, 0, packet.length);
+            int description = lastIndexOf(packet, DESCRIPTION, declaration < 0 ? packet.length : declaration);
+            if (declaration < 0) {
+                description = indexOf(packet, DESCRIPTION, 0, packet.length);
+                added.insert(0, "\n    xmlns:GPano=\"" + GPANO_NAMESPACE + "\"");
+            }
+            if (description < 0) {
+                throw new IOException("XMP packet contains no rdf:Description");
+            }
+            int at = description + DESCRIPTION.length;
+            ranges.add(new int[] {at, at, values.size()});
+            values.add(added.toString().getBytes(UTF_8));
+        }
+
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        int length = packet.length;
+        for (int[] range : ranges) {
+            length += values.get(range[2]).length - (range[1] - range[0]);
+        }
+        byte[] result = new byte[length];
+        int from = 0;
+        int to = 0;
+        for (int[] range : ranges) {
+            byte[] value = values.get(range[2]);
+            System.arraycopy(packet, from, result, to, range[0] - from);
+            to += range[0] - from;
+            System.arraycopy(value, 0, result, to, value.length);
+            to += value.length;
+            from = range[1];
+        }
+        System.arraycopy(packet, from, result, to, packet.length - from);
+        return result;
+    }
+
+    /**
+     * Bring an edited packet to the given length by shrinking or growing the whitespace
+     * in front of its trailer.
+     * @return packet of exactly the given length, or null if there is too little padding.
+     */
+    static byte[] fit(byte[] packet, int length) {
+        int delta = length - packet.length;
+        if (delta == 0) {
+            return packet;
+        }
+        int trailer = lastIndexOf(packet, PACKET_TRAILER, packet.length);
+        if (trailer < 0) {
+            trailer = packet.length;
+        }
+        int padding = 0;
+        while (padding < trailer && XmpTokenizer.isWhitespace(packet[trailer - padding - 1])) {
+            padding++;
+        }
+        if (delta < 0 && padding + delta < 0) {
+            return null;
+        }
+
+        byte[] result = new byte[length];
+        int keep = delta < 0 ? trailer + delta : trailer;
+        System.arraycopy(packet, 0, result, 0, keep);
+        for (int i = keep; i < trailer + delta; i++) {
+            result[i] = ' ';
+        }
+        System.arraycopy(packet, trailer, result, trailer + delta, packet.length - trailer);
+        return result;
+    }
+
+    /**
+     * Give a packet fresh padding, as much as fits into a segment.
+     */
+    private static byte[] pad(byte[] packet) throws IOException {
+        int max = MAX_PAYLOAD - XMP_SIGNATURE.length;
+        if (packet.length > max) {
+            throw new IOException("XMP packet too large for a single segment");
+        }
+        byte[] padded = fit(packet, Math.min(packet.length + PADDING, max));
+        return padded != null ? padded : packet;
+    }
+
+    private static byte[] emptyPacket() {
+        return ("<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n" +
+                "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n" +
+                " <rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n" +
+                "  <rdf:Description rdf:about=\"\"/>\n" +
+                " </rdf:RDF>\n" +
+                "</x:xmpmeta>\n" +
+                "<?xpacket end=\"w\"?>").getBytes(UTF_8);
+    }
+
+    /**
+     * @return the value of a property as written to XMP, or null if it is not set.
+     * Fields are numbered in the order of {@link #KEYS}.
+     */
+    private static String format(PhotoSphereMetadata meta, int field) {
+        switch (field) {
+            case 0: return format(meta.isUsePanoramaViewer());
+            case 1: return meta.getCaptureSoftware();
+            case 2: return meta.getStitchingSoftware();
+            case 3: return meta.getProjectionType() != null ? meta.getProjectionType().name() : null;
+            case 4: return format(meta.getPoseHeadingDegrees());
+            case 5: return format(meta.getPosePitchDegrees());
+            case 6: return format(meta.getPoseRollDegrees());
+            case 7: return String.valueOf(meta.getInitialViewHeadingDegrees());
+            case 8: return String.valueOf(meta.getInitialViewPitchDegrees());
+            case 9: return String.valueOf(meta.getInitialViewRollDegrees());
+            case 10: return format(meta.getInitialHorizontalFOVDegrees());
+            case 11: return format(meta.getFirstPhotoDate());
+            case 12: return format(meta.getLastPhotoDate());
+            case 13: return format(meta.getSourcePhotosCount());
+            case 14: return format(meta.isExposureLockUsed());
+            case 15: return format(meta.getCroppedAreaImageWidthPixels());
+            case 16: return format(meta.getCroppedAreaImageHeightPixels());
+            case 17: return format(meta.getFullPanoWidthPixels());
+            case 18: return format(meta.getFullPanoHeightPixels());
+            case 19: return format(meta.getCroppedAreaLeftPixels());
+            case 20: return format(meta.getCroppedAreaTopPixels());
+            case 21: return format(meta.getInitialCameraDolly());
+            default: throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    private static String format(boolean value) {
+        return value ? "True" : "False";
+    }
+
+    private static String format(Integer value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static String format(Float value) {
+        if (value == null || value.isNaN() || value.isInfinite()) {
+            return null;
+        }
+        // Plain notation, XMP reals have no exponent.
+        return new BigDecimal(value.toString()).toPlainString();
+    }
+
+    private static String format(Date value) {
+        if (value == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(value);
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': escaped.append("&amp;"); break;
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '"': escaped.append("&quot;"); break;
+                case '\'': escaped.append("&apos;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static int indexOf(byte[] b, byte[] pattern, int from, int to) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            if (regionMatches(b, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return last index of pattern starting before the given index, or -1.
+     */
+    private static int lastIndexOf(byte[] b, byte[] pattern, int before) {
+        for (int i = Math.min(before - 1, b.length - pattern.length); i >= 0; i--) {
+            if (regionMatches(b, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] b, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (b[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,284 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a JPEG file at 1/8 of its size from the DC coefficients only.
+ *
+ * The DC coefficient of a block is eight times its average color, so the DC coefficients alone
+ * make a downscaled image without any inverse DCT. For baseline files the AC coefficients
+ * still have to be Huffman decoded to find the next block, but they are neither dequantized
+ * nor transformed. Progressive files store the DC coefficients in their first scans, so
+ * decoding stops as soon as these are complete, usually after a small part of the file.
+ * The scans carrying AC coefficients are skipped without being decoded.
+ *
+ * Chroma is sampled at the resolution of the luma blocks, which is good enough for a preview.
+ */
+public class PreviewDecoder {
+
+    private PreviewDecoder() {
+    }
+
+    /**
+     * @param inputStream stream positioned at the start of the JPEG file. It is read byte by byte,
+     *                    so pass a buffered stream.
+     * @return image of ceil(width / 8) x ceil(height / 8) pixels, or null if the stream is no
+     * JPEG or uses an unsupported coding process, color space or precision.
+     * @throws IOException if the file is broken.
+     */
+    public static DecodedImage decode(InputStream inputStream) throws IOException {
+        return decode(inputStream, false);
+    }
+
+    /**
+     * Decode a preview, optionally of progressive files only. Their DC coefficients come first,
+     * while a baseline file has to be read up to its end, which may not be worth it for streams.
+     * @param inputStream see {@link #decode(InputStream)}.
+     * @param progressiveOnly if true, stop at the frame header of a baseline file.
+     * @return see {@link #decode(InputStream)}, null for baseline files if progressiveOnly is set.
+     * @throws IOException if the file is broken.
+     */
+    public static DecodedImage decode(InputStream inputStream, boolean progressiveOnly) throws IOException {
+        JpegSegmentReader.StreamSegmentReader reader = new JpegSegmentReader.StreamSegmentReader();
+        reader.reset(inputStream);
+        return decode(reader, progressiveOnly);
+    }
+
+    /**
+     * @param buffer buffer positioned at the start of the JPEG file. Its position is not modified.
+     * @see #decode(InputStream)
+     */
+    public static DecodedImage decode(ByteBuffer buffer) throws IOException {
+        JpegSegmentReader.BufferSegmentReader reader = new JpegSegmentReader.BufferSegmentReader();
+        reader.reset(buffer);
+        return decode(reader, false);
+    }
+
+    private static DecodedImage decode(JpegSegmentReader reader, boolean progressiveOnly) throws IOException {
+        if (!reader.readSOI()) {
+            return null;
+        }
+
+        JpegFrame frame = new JpegFrame();
+        BitReader bits = new BitReader(reader);
+
+        // DC coefficients of each component, not yet dequantized.
+        int[][] coefficients = null;
+        boolean[] complete = null;
+
+        int marker;
+        while ((marker = reader.nextSegment()) >= 0) {
+            switch (marker) {
+                case JpegFrame.MARKER_DQT:
+                    frame.readQuantizationTables(reader);
+                    break;
+                case JpegFrame.MARKER_DHT:
+                    frame.readHuffmanTables(reader);
+                    break;
+                case JpegFrame.MARKER_DRI:
+                    frame.readRestartInterval(reader);
+                    break;
+                case JpegFrame.MARKER_APP14:
+                    frame.readAdobe(reader);
+                    break;
+                case JpegFrame.MARKER_SOF0:
+                case JpegFrame.MARKER_SOF1:
+                case JpegFrame.MARKER_SOF2:
+                    if (progressiveOnly && marker != JpegFrame.MARKER_SOF2) {
+                        return null;
+                    }
+                    if (!frame.readFrame(reader, marker)) {
+                        return null;
+                    }
+                    coefficients = new int[frame.components.length][];
+                    complete = new boolean[frame.components.length];
+                    for (int i = 0; i < coefficients.length; i++) {
+                        JpegFrame.Component c = frame.components[i];
+                        coefficients[i] = new int[c.gridWidth * c.gridHeight];
+                    }
+                    break;
+                case JpegSegmentReader.MARKER_SOS:
+                    JpegFrame.Scan scan = frame.readScan(reader);
+                    decodeScan(frame, scan, coefficients, bits);
+                    reader.unreadMarker(bits.finish());
+                    if (scan.ss == 0 && scan.al == 0) {
+                        for (JpegFrame.Component c : scan.components) {
+                            complete[indexOf(frame, c)] = true;
+                        }
+                    }
+                    break;
+                default:
+                    if (JpegFrame.isUnsupportedFrame(marker)) {
+                        return null;
+                    }
+                    break;
+            }
+
+            if (complete != null && allComplete(complete)) {
+                break;
+            }
+        }
+
+        if (coefficients == null) {
+            return null;
+        }
+        return toImage(frame, coefficients);
+    }
+
+    private static void decodeScan(JpegFrame frame, JpegFrame.Scan scan, int[][] coefficients, BitReader bits) throws IOException {
+        bits.reset();
+        if (scan.ss != 0) {
+            // AC only, nothing to see here.
+            return;
+        }
+
+        int count = scan.components.length;
+        int[] grid = new int[count];
+        for (int i = 0; i < count; i++) {
+            grid[i] = indexOf(frame, scan.components[i]);
+            if (scan.ah == 0 && scan.dcTables[i] == null) {
+                throw new IOException("Missing DC Huffman table");
+            }
+            if (!frame.progressive && scan.acTables[i] == null) {
+                throw new IOException("Missing AC Huffman table");
+            }
+        }
+
+        int[] predictions = new int[count];
+        boolean refine = frame.progressive && scan.ah != 0;
+        // Sequential scans interleave the AC coefficients, which have to be skipped.
+        boolean skipAc = !frame.progressive && scan.se > 0;
+        int restartInterval = frame.restartInterval;
+
+        if (count == 1) {
+            // Non-interleaved: one block per MCU, only the blocks covered by the image.
+            JpegFrame.Component c = scan.components[0];
+            int[] coef = coefficients[grid[0]];
+            int total = c.blocksPerLine * c.blocksPerColumn;
+            for (int n = 0; n < total; n++) {
+                if (restartInterval > 0 && n > 0 && n % restartInterval == 0) {
+                    bits.restart();
+                    predictions[0] = 0;
+                }
+                int index = (n / c.blocksPerLine) * c.gridWidth + n % c.blocksPerLine;
+                decodeBlock(scan, 0, coef, index, predictions, refine, skipAc, bits);
+            }
+            return;
+        }
+
+        int mcus = frame.mcusPerLine * frame.mcusPerColumn;
+        for (int n = 0; n < mcus; n++) {
+            if (restartInterval > 0 && n > 0 && n % restartInterval == 0) {
+                bits.restart();
+                for (int i = 0; i < count; i++) {
+                    predictions[i] = 0;
+                }
+            }
+            int mcuX = n % frame.mcusPerLine;
+            int mcuY = n / frame.mcusPerLine;
+            for (int i = 0; i < count; i++) {
+                JpegFrame.Component c = scan.components[i];
+                int[] coef = coefficients[grid[i]];
+                for (int v = 0; v < c.v; v++) {
+                    int row = (mcuY * c.v + v) * c.gridWidth + mcuX * c.h;
+                    for (int h = 0; h < c.h; h++) {
+                        decodeBlock(scan, i, coef, row + h, predictions, refine, skipAc, bits);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void decodeBlock(JpegFrame.Scan scan, int i, int[] coef, int index, int[] predictions,
+                                    boolean refine, boolean skipAc, BitReader bits) throws IOException {
+        if (refine) {
+            if (bits.read(1) != 0) {
+                coef[index] |= 1 << scan.al;
+            }
+            return;
+        }
+
+        int t = scan.dcTables[i].decode(bits);
+        predictions[i] += bits.receiveExtend(t);
+        coef[index] = predictions[i] << scan.al;
+
+        if (skipAc) {
+            HuffmanTable ac = scan.acTables[i];
+            for (int k = 1; k <= 63; k++) {
+                int rs = ac.decode(bits);
+                int s = rs & 15;
+                int r = rs >> 4;
+                if (s != 0) {
+                    k += r;
+                    bits.read(s);
+                } else if (r == 15) {
+                    k += 15;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static DecodedImage toImage(JpegFrame frame, int[][] coefficients) {
+        int width = (frame.width + 7) / 8;
+        int height = (frame.height + 7) / 8;
+        int[] pixels = new int[width * height];
+        int count = frame.components.length;
+
+        // Sample value of each component per preview pixel.
+        int[][] samples = new int[count][];
+        for (int i = 0; i < count; i++) {
+            JpegFrame.Component c = frame.components[i];
+            int[] table = frame.quantizationTables[c.tq];
+            int q = table != null ? table[0] : 1;
+            int[] coef = coefficients[i];
+            int[] s = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                int row = (y * c.v / frame.vMax) * c.gridWidth;
+                for (int x = 0; x < width; x++) {
+                    // The DC coefficient is 8 times the average of the level shifted block.
+                    int dc = coef[row + x * c.h / frame.hMax] * q;
+                    s[y * width + x] = JpegFrame.clamp(((dc + 4) >> 3) + 128);
+                }
+            }
+            samples[i] = s;
+        }
+
+        if (count == 1) {
+            int[] gray = samples[0];
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = 0xFF000000 | (gray[p] * 0x010101);
+            }
+        } else if (frame.isRgb()) {
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = 0xFF000000 | (samples[0][p] << 16) | (samples[1][p] << 8) | samples[2][p];
+            }
+        } else {
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = JpegFrame.toArgb(samples[0][p], samples[1][p], samples[2][p]);
+            }
+        }
+        return new DecodedImage(width, height, pixels);
+    }
+
+    private static int indexOf(JpegFrame frame, JpegFrame.Component c) {
+        for (int i = 0; i < frame.components.length; i++) {
+            if (frame.components[i] == c) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private static boolean allComplete(boolean[] complete) {
+        for (boolean b : complete) {
+            if (!b) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
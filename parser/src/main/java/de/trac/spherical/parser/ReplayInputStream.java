@@ -0,0 +1,148 @@
+package de.trac.spherical.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream, which records everything read from it until {@link #rewind()} is called and then
+ * replays the recorded bytes, followed by the rest of the underlying stream.
+ *
+ * This allows to parse the header of an image and to decode the very same stream afterwards,
+ * without opening the source twice:
+ *
+ *     ReplayInputStream in = new ReplayInputStream(resolver.openInputStream(uri));
+ *     PhotoSphereMetadata metadata = PhotoSphereParser.parse(in);
+ *     in.rewind();
+ *     Bitmap bitmap = BitmapFactory.decodeStream(in);
+ *
+ * Only the header is held in memory, since the parser stops reading at the image data.
+ * Skipped bytes are recorded as well, so skipping while recording reads them.
+ */
+public class ReplayInputStream extends InputStream {
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+
+    // Recorded bytes, released as soon as they have been replayed.
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count = 0;
+    private int position = 0;
+    private boolean recording = true;
+
+    public ReplayInputStream(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Stream MUST NOT be null!");
+        }
+        this.in = in;
+    }
+
+    /**
+     * Stop recording and start over at the first byte read so far.
+     * @throws IllegalStateException if the stream has already been rewound.
+     */
+    public void rewind() {
+        if (!recording) {
+            throw new IllegalStateException("Stream can only be rewound once");
+        }
+        recording = false;
+        position = 0;
+        releaseIfReplayed();
+    }
+
+    /**
+     * @return number of bytes recorded before {@link #rewind()}.
+     */
+    public int getRecordedLength() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!recording && buffer != null) {
+            int b = buffer[position++] & 0xFF;
+            releaseIfReplayed();
+            return b;
+        }
+        int b = in.read();
+        if (recording && b >= 0) {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!recording && buffer != null) {
+            int n = Math.min(len, count - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            releaseIfReplayed();
+            return n;
+        }
+        int n = in.read(b, off, len);
+        if (recording && n > 0) {
+            ensureCapacity(n);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (recording) {
+            // Skipped bytes have to be replayed too, so read them straight into the buffer.
+            int len = (int) Math.min(n, Integer.MAX_VALUE - count);
+            ensureCapacity(len);
+            int read = in.read(buffer, count, len);
+            if (read <= 0) {
+                return 0;
+            }
+            count += read;
+            return read;
+        }
+        if (buffer != null) {
+            int skipped = (int) Math.min(n, count - position);
+            position += skipped;
+            releaseIfReplayed();
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (!recording && buffer != null) {
+            return count - position;
+        }
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        in.close();
+    }
+
+    private void ensureCapacity(int len) {
+        if (count + len > buffer.length) {
+            byte[] grown = new byte[Math.max(count + len, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+
+    private void releaseIfReplayed() {
+        if (position >= count) {
+            buffer = null;
+        }
+    }
+}
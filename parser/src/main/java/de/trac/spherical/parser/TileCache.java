@@ -0,0 +1,346 @@
+package de.trac.spherical.parser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of decoded tiles, so that reopening an image does not decode it again.
+ *
+ * Each tile is stored in a file of its own, named after the content hash of the image, the
+ * level and the position of the tile. The pixels are memory-mapped on lookup, so they can be
+ * handed to glTexImage2D without being copied onto the heap. Once the cache exceeds its size,
+ * the least recently used tiles are deleted. The order of use survives restarts, it is kept
+ * in the modification times of the files.
+ *
+ * All methods are thread safe.
+ */
+public class TileCache {
+
+    // Pixel formats of stored tiles. Others may be used as well, they are stored as they are.
+    public static final int FORMAT_RGBA_8888 = 0;
+    public static final int FORMAT_RGB_565 = 1;
+    public static final int FORMAT_ETC1 = 2;
+
+    private static final int MAGIC = 0x53544331; // "STC1"
+    private static final int HEADER_SIZE = 20;
+    private static final String SUFFIX = ".tile";
+
+    private final File directory;
+    private final long maxSize;
+
+    // File names and sizes, the least recently used first.
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Opens the cache in the given directory, which is created if necessary.
+     * @param directory directory of the cache, used by this cache only
+     * @param maxSize maximum number of bytes of all files
+     * @throws IOException if the directory can not be created
+     */
+    public TileCache(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+
+        // Restore the order of use. Files left over by an interrupted write are removed.
+        List<File> tiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                tiles.add(file);
+            } else {
+                file.delete();
+            }
+        }
+        final Map<File, Long> modified = new LinkedHashMap<>();
+        for (File file : tiles) {
+            modified.put(file, file.lastModified());
+        }
+        File[] sorted = tiles.toArray(new File[tiles.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+        for (File file : sorted) {
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+        trim();
+    }
+
+    /**
+     * Looks up a tile.
+     * @param key content hash of the image, see {@link #contentKey(MessageDigest)}
+     * @return the tile with its pixels mapped into memory, or null if it is not cached
+     */
+    public synchronized CachedTile get(String key, int level, int column, int row) {
+        String name = fileName(key, level, column, row);
+        // Not containsKey(), which would not update the order of use.
+        if (entries.get(name) == null) {
+            missCount++;
+            return null;
+        }
+
+        File file = new File(directory, name);
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read the whole header.
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Invalid tile " + file);
+            }
+            int format = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+            int length = header.getInt();
+            if (width <= 0 || height <= 0 || length < 0 || channel.size() != HEADER_SIZE + (long) length) {
+                throw new IOException("Invalid tile " + file);
+            }
+
+            // The mapping stays valid after the channel has been closed.
+            ByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+            pixels.order(ByteOrder.nativeOrder());
+            file.setLastModified(System.currentTimeMillis());
+            hitCount++;
+            return new CachedTile(format, width, height, pixels);
+        } catch (IOException e) {
+            // Damaged or deleted by someone else, forget it.
+            remove(name);
+            missCount++;
+            return null;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Stores a tile, replacing a previous one, and deletes the least recently used tiles, if the
+     * cache exceeds its size.
+     * @param key content hash of the image, see {@link #contentKey(MessageDigest)}
+     * @param format pixel format, e.g. {@link #FORMAT_RGBA_8888}
+     * @param pixels the pixels from position to limit, the position is not changed
+     * @throws IOException if the tile could not be written
+     */
+    public void put(String key, int level, int column, int row, int format, int width, int height, ByteBuffer pixels) throws IOException {
+        String name = fileName(key, level, column, row);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(format).putInt(width).putInt(height).putInt(pixels.remaining());
+        header.flip();
+        ByteBuffer data = pixels.duplicate();
+
+        // Written to a temporary file first, so that readers never see half a tile.
+        File temp = File.createTempFile(name, ".tmp", directory);
+        FileOutputStream outputStream = null;
+        boolean written = false;
+        try {
+            outputStream = new FileOutputStream(temp);
+            FileChannel channel = outputStream.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            written = true;
+        } finally {
+            close(outputStream);
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        synchronized (this) {
+            File file = new File(directory, name);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not write " + file);
+            }
+            Long previous = entries.put(name, file.length());
+            if (previous != null) {
+                size -= previous;
+            }
+            size += file.length();
+            trim();
+        }
+    }
+
+    /**
+     * Deletes all tiles.
+     */
+    public synchronized void clear() {
+        for (String name : entries.keySet()) {
+            new File(directory, name).delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return number of bytes of all cached tiles
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of cached tiles
+     */
+    public synchronized int getTileCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return digest to be fed with the content of an image, to compute its key
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-1.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param digest digest fed with the whole content of the image
+     * @return key of the image
+     */
+    public static String contentKey(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Computes the key of an image.
+     * @param inputStream stream of the image, will be read completely, but not closed
+     * @return key of the image
+     */
+    public static String contentKey(InputStream inputStream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = inputStream.read(buffer, 0, buffer.length)) >= 0) {
+            digest.update(buffer, 0, n);
+        }
+        return contentKey(digest);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+        }
+        new File(directory, name).delete();
+    }
+
+    private static String fileName(String key, int level, int column, int row) {
+        return key + "-" + level + "-" + column + "-" + row + SUFFIX;
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing to be done.
+            }
+        }
+    }
+
+    /**
+     * A tile read from the cache.
+     */
+    public static class CachedTile {
+
+        private final int format;
+        private final int width;
+        private final int height;
+        private final ByteBuffer pixels;
+
+        CachedTile(int format, int width, int height, ByteBuffer pixels) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the pixels, mapped from the file, read only
+         */
+        public ByteBuffer getPixels() {
+            return pixels;
+        }
+    }
+}
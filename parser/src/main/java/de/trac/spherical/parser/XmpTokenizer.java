@@ -0,0 +1,634 @@
+package de.trac.spherical.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import static de.trac.spherical.parser.PhotoSphereMetadata.CAPTURE_SOFTWARE;
+import static de.trac.spherical.parser.PhotoSphereMetadata.CROPPED_AREA_IMAGE_HEIGHT_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.CROPPED_AREA_IMAGE_WIDTH_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.CROPPED_AREA_LEFT_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.CROPPED_AREA_TOP_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.EXPOSURE_LOCK_USED;
+import static de.trac.spherical.parser.PhotoSphereMetadata.FIRST_PHOTO_DATE;
+import static de.trac.spherical.parser.PhotoSphereMetadata.FULL_PANO_HEIGHT_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.FULL_PANO_WIDTH_PIXELS;
+import static de.trac.spherical.parser.PhotoSphereMetadata.INITIAL_CAMERA_DOLLY;
+import static de.trac.spherical.parser.PhotoSphereMetadata.INITIAL_HORIZONTAL_POV_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.INITIAL_VIEW_HEADING_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.INITIAL_VIEW_PITCH_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.INITIAL_VIEW_ROLL_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.LAST_PHOTO_DATE;
+import static de.trac.spherical.parser.PhotoSphereMetadata.POSE_HEADING_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.POSE_PITCH_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.POSE_ROLL_DEGREES;
+import static de.trac.spherical.parser.PhotoSphereMetadata.PROJECTION_TYPE;
+import static de.trac.spherical.parser.PhotoSphereMetadata.ProjectionType;
+import static de.trac.spherical.parser.PhotoSphereMetadata.SOURCE_PHOTOS_COUNT;
+import static de.trac.spherical.parser.PhotoSphereMetadata.STITCHING_SOFTWARE;
+import static de.trac.spherical.parser.PhotoSphereMetadata.USE_PANORAMA_VIEWER;
+
+/**
+ * Single pass tokenizer, which picks all GPano properties out of a raw XMP packet.
+ * Both the attribute form (GPano:Foo="value") and the element form
+ * (&lt;GPano:Foo&gt;value&lt;/GPano:Foo&gt;) are understood. Values are parsed straight
+ * from the byte ranges they occupy, only the software names become Strings.
+ * If a property occurs more than once, the first occurrence wins.
+ */
+class XmpTokenizer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] PREFIX = new byte[] {'G', 'P', 'a', 'n', 'o', ':'};
+
+    private static final byte[] TRUE = new byte[] {'t', 'r', 'u', 'e'};
+
+    // Indices into NAMES.
+    private static final int USE_PANORAMA_VIEWER_FIELD = 0;
+    private static final int CAPTURE_SOFTWARE_FIELD = 1;
+    private static final int STITCHING_SOFTWARE_FIELD = 2;
+    private static final int PROJECTION_TYPE_FIELD = 3;
+    private static final int POSE_HEADING_DEGREES_FIELD = 4;
+    private static final int POSE_PITCH_DEGREES_FIELD = 5;
+    private static final int POSE_ROLL_DEGREES_FIELD = 6;
+    private static final int INITIAL_VIEW_HEADING_DEGREES_FIELD = 7;
+    private static final int INITIAL_VIEW_PITCH_DEGREES_FIELD = 8;
+    private static final int INITIAL_VIEW_ROLL_DEGREES_FIELD = 9;
+    private static final int INITIAL_HORIZONTAL_POV_DEGREES_FIELD = 10;
+    private static final int FIRST_PHOTO_DATE_FIELD = 11;
+    private static final int LAST_PHOTO_DATE_FIELD = 12;
+    private static final int SOURCE_PHOTOS_COUNT_FIELD = 13;
+    private static final int EXPOSURE_LOCK_USED_FIELD = 14;
+    private static final int CROPPED_AREA_IMAGE_WIDTH_PIXELS_FIELD = 15;
+    private static final int CROPPED_AREA_IMAGE_HEIGHT_PIXELS_FIELD = 16;
+    private static final int FULL_PANO_WIDTH_PIXELS_FIELD = 17;
+    private static final int FULL_PANO_HEIGHT_PIXELS_FIELD = 18;
+    private static final int CROPPED_AREA_LEFT_PIXELS_FIELD = 19;
+    private static final int CROPPED_AREA_TOP_PIXELS_FIELD = 20;
+    private static final int INITIAL_CAMERA_DOLLY_FIELD = 21;
+
+    // Property names without the GPano: prefix.
+    private static final byte[][] NAMES = new byte[][] {
+            name(USE_PANORAMA_VIEWER),
+            name(CAPTURE_SOFTWARE),
+            name(STITCHING_SOFTWARE),
+            name(PROJECTION_TYPE),
+            name(POSE_HEADING_DEGREES),
+            name(POSE_PITCH_DEGREES),
+            name(POSE_ROLL_DEGREES),
+            name(INITIAL_VIEW_HEADING_DEGREES),
+            name(INITIAL_VIEW_PITCH_DEGREES),
+            name(INITIAL_VIEW_ROLL_DEGREES),
+            name(INITIAL_HORIZONTAL_POV_DEGREES),
+            name(FIRST_PHOTO_DATE),
+            name(LAST_PHOTO_DATE),
+            name(SOURCE_PHOTOS_COUNT),
+            name(EXPOSURE_LOCK_USED),
+            name(CROPPED_AREA_IMAGE_WIDTH_PIXELS),
+            name(CROPPED_AREA_IMAGE_HEIGHT_PIXELS),
+            name(FULL_PANO_WIDTH_PIXELS),
+            name(FULL_PANO_HEIGHT_PIXELS),
+            name(CROPPED_AREA_LEFT_PIXELS),
+            name(CROPPED_AREA_TOP_PIXELS),
+            name(INITIAL_CAMERA_DOLLY)
+    };
+
+    private static final double[] POWERS_OF_TEN = new double[] {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Returned by findValue, if there is no such property.
+    static final long NO_VALUE = -1;
+
+    // Returned by parseDateMillis, if the value is no valid date.
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private XmpTokenizer() {
+    }
+
+    /**
+     * Scan the XMP packet once and store every GPano property found in meta.
+     * Properties that are not present keep the default value of meta.
+     * @param xmp buffer holding the XMP packet, which is accessed by absolute index only
+     * @param off start of the packet within xmp
+     * @param len length of the packet
+     * @param meta metadata to be filled
+     * @param seen bit mask of properties, which have already been assigned and must be kept.
+     * @return bit mask of all properties assigned so far.
+     */
+    static int tokenize(ByteBuffer xmp, int off, int len, PhotoSphereMetadata meta, int seen) {
+        final int end = off + len;
+        int i = off;
+
+        while ((i = indexOf(xmp, PREFIX, i, end)) >= 0) {
+            final int nameStart = i + PREFIX.length;
+            final int nameEnd = nameEnd(xmp, nameStart, end);
+            final long range = valueRange(xmp, off, i, nameEnd, end);
+            i = nameEnd;
+            if (range == NO_VALUE) {
+                continue;
+            }
+
+            final int field = lookup(xmp, nameStart, nameEnd);
+            if (field < 0 || (seen & (1 << field)) != 0) {
+                continue;
+            }
+            seen |= 1 << field;
+            assign(meta, field, xmp, (int) (range >>> 32), (int) range);
+        }
+        return seen;
+    }
+
+    /**
+     * Find the value of the first occurrence of an arbitrary property.
+     * @param qualifiedName property name including namespace prefix, like xmpNote:HasExtendedXMP
+     * @return value range packed as (start << 32 | end), or {@link #NO_VALUE}.
+     */
+    static long findValue(ByteBuffer xmp, int off, int len, byte[] qualifiedName) {
+        final int end = off + len;
+        int i = off;
+
+        while ((i = indexOf(xmp, qualifiedName, i, end)) >= 0) {
+            final int nameEnd = i + qualifiedName.length;
+            if (nameEnd < end && isNameChar(xmp.get(nameEnd))) {
+                // Only a prefix of a longer name.
+                i = nameEnd;
+                continue;
+            }
+            final long range = valueRange(xmp, off, i, nameEnd, end);
+            if (range != NO_VALUE) {
+                return range;
+            }
+            i = nameEnd;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Locate the value of a property, either GPano:Foo="value" or &lt;GPano:Foo&gt;value&lt;/GPano:Foo&gt;.
+     * @param off start of the packet
+     * @param nameStart start of the qualified property name
+     * @param nameEnd end of the qualified property name
+     * @param end end of the packet
+     * @return whitespace trimmed value range packed as (start << 32 | end), or {@link #NO_VALUE}
+     * for closing tags, empty elements and malformed properties.
+     */
+    private static long valueRange(ByteBuffer xmp, int off, int nameStart, int nameEnd, int end) {
+        final byte before = nameStart > off ? xmp.get(nameStart - 1) : (byte) ' ';
+        if (before == '/') {
+            // Closing tag of the element form.
+            return NO_VALUE;
+        }
+
+        int valueStart;
+        int valueEnd;
+        if (before == '<') {
+            int j = nameEnd;
+            while (j < end && xmp.get(j) != '>') {
+                j++;
+            }
+            if (j >= end || xmp.get(j - 1) == '/') {
+                // Truncated or empty element.
+                return NO_VALUE;
+            }
+            valueStart = j + 1;
+            valueEnd = valueStart;
+            while (valueEnd < end && xmp.get(valueEnd) != '<') {
+                valueEnd++;
+            }
+        } else {
+            int j = skipWhitespace(xmp, nameEnd, end);
+            if (j >= end || xmp.get(j) != '=') {
+                return NO_VALUE;
+            }
+            j = skipWhitespace(xmp, j + 1, end);
+            if (j >= end) {
+                return NO_VALUE;
+            }
+            final byte quote = xmp.get(j);
+            if (quote != '"' && quote != '\'') {
+                return NO_VALUE;
+            }
+            valueStart = j + 1;
+            valueEnd = valueStart;
+            while (valueEnd < end && xmp.get(valueEnd) != quote) {
+                valueEnd++;
+            }
+            if (valueEnd >= end) {
+                return NO_VALUE;
+            }
+        }
+
+        // Trim whitespace around the value, the element form is often pretty printed.
+        while (valueStart < valueEnd && isWhitespace(xmp.get(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(xmp.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+        return ((long) valueStart << 32) | valueEnd;
+    }
+
+    private static void assign(PhotoSphereMetadata meta, int field, ByteBuffer b, int start, int end) {
+        switch (field) {
+            case USE_PANORAMA_VIEWER_FIELD:
+                meta.setUsePanoramaViewer(parseBoolean(b, start, end));
+                break;
+            case CAPTURE_SOFTWARE_FIELD:
+                meta.setCaptureSoftware(string(b, start, end));
+                break;
+            case STITCHING_SOFTWARE_FIELD:
+                meta.setStitchingSoftware(string(b, start, end));
+                break;
+            case PROJECTION_TYPE_FIELD:
+                meta.setProjectionType(ProjectionType.equirectangular);
+                break;
+            case POSE_HEADING_DEGREES_FIELD:
+                meta.setPoseHeadingDegrees(boxed(parseFloat(b, start, end, Float.NaN)));
+                break;
+            case POSE_PITCH_DEGREES_FIELD:
+                meta.setPosePitchDegrees(parseFloat(b, start, end, 0f));
+                break;
+            case POSE_ROLL_DEGREES_FIELD:
+                meta.setPoseRollDegrees(parseFloat(b, start, end, 0f));
+                break;
+            case INITIAL_VIEW_HEADING_DEGREES_FIELD:
+                meta.setInitialViewHeadingDegrees((int) parseLong(b, start, end, 0));
+                break;
+            case INITIAL_VIEW_PITCH_DEGREES_FIELD:
+                meta.setInitialViewPitchDegrees((int) parseLong(b, start, end, 0));
+                break;
+            case INITIAL_VIEW_ROLL_DEGREES_FIELD:
+                meta.setInitialViewRollDegrees((int) parseLong(b, start, end, 0));
+                break;
+            case INITIAL_HORIZONTAL_POV_DEGREES_FIELD:
+                meta.setInitialHorizontalFOVDegrees(boxed(parseFloat(b, start, end, Float.NaN)));
+                break;
+            case FIRST_PHOTO_DATE_FIELD:
+                meta.setFirstPhotoDate(parseDate(b, start, end));
+                break;
+            case LAST_PHOTO_DATE_FIELD:
+                meta.setLastPhotoDate(parseDate(b, start, end));
+                break;
+            case SOURCE_PHOTOS_COUNT_FIELD:
+                meta.setSourcePhotosCount(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case EXPOSURE_LOCK_USED_FIELD:
+                meta.setExposureLockUsed(parseBoolean(b, start, end));
+                break;
+            case CROPPED_AREA_IMAGE_WIDTH_PIXELS_FIELD:
+                meta.setCroppedAreaImageWidthPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case CROPPED_AREA_IMAGE_HEIGHT_PIXELS_FIELD:
+                meta.setCroppedAreaImageHeightPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case FULL_PANO_WIDTH_PIXELS_FIELD:
+                meta.setFullPanoWidthPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case FULL_PANO_HEIGHT_PIXELS_FIELD:
+                meta.setFullPanoHeightPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case CROPPED_AREA_LEFT_PIXELS_FIELD:
+                meta.setCroppedAreaLeftPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case CROPPED_AREA_TOP_PIXELS_FIELD:
+                meta.setCroppedAreaTopPixels(boxed(parseLong(b, start, end, Long.MIN_VALUE)));
+                break;
+            case INITIAL_CAMERA_DOLLY_FIELD:
+                meta.setInitialCameraDolly(parseFloat(b, start, end, 0f));
+                break;
+        }
+    }
+
+    /**
+     * Parse a decimal integer. A fractional part is truncated.
+     * @return parsed value or defaultValue, if the range holds no valid integer.
+     */
+    static long parseLong(ByteBuffer b, int start, int end, long defaultValue) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b.get(i) == '-' || b.get(i) == '+')) {
+            negative = b.get(i) == '-';
+            i++;
+        }
+        if (i >= end || !isDigit(b.get(i))) {
+            return defaultValue;
+        }
+        long value = 0;
+        while (i < end && isDigit(b.get(i))) {
+            value = value * 10 + (b.get(i++) - '0');
+            if (value > Integer.MAX_VALUE) {
+                return defaultValue;
+            }
+        }
+        if (i < end && b.get(i) == '.') {
+            i++;
+            while (i < end && isDigit(b.get(i))) {
+                i++;
+            }
+        }
+        if (i != end) {
+            return defaultValue;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal floating point number with optional exponent.
+     * @return parsed value or defaultValue, if the range holds no valid number.
+     */
+    static float parseFloat(ByteBuffer b, int start, int end, float defaultValue) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b.get(i) == '-' || b.get(i) == '+')) {
+            negative = b.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (i < end && isDigit(b.get(i))) {
+            if (mantissa < 100000000000000000L) {
+                mantissa = mantissa * 10 + (b.get(i) - '0');
+            } else {
+                exponent++;
+            }
+            digits++;
+            i++;
+        }
+        if (i < end && b.get(i) == '.') {
+            i++;
+            while (i < end && isDigit(b.get(i))) {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (b.get(i) - '0');
+                    exponent--;
+                }
+                digits++;
+                i++;
+            }
+        }
+        if (digits == 0) {
+            return defaultValue;
+        }
+        if (i < end && (b.get(i) == 'e' || b.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (b.get(i) == '-' || b.get(i) == '+')) {
+                negativeExponent = b.get(i) == '-';
+                i++;
+            }
+            if (i >= end) {
+                return defaultValue;
+            }
+            int e = 0;
+            while (i < end && isDigit(b.get(i))) {
+                e = Math.min(e * 10 + (b.get(i++) - '0'), 1000);
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end) {
+            return defaultValue;
+        }
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    static boolean parseBoolean(ByteBuffer b, int start, int end) {
+        if (end - start != TRUE.length) {
+            return false;
+        }
+        for (int i = 0; i < TRUE.length; i++) {
+            if ((b.get(start + i) | 0x20) != TRUE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Date parseDate(ByteBuffer b, int start, int end) {
+        long millis = parseDateMillis(b, start, end);
+        return millis != NO_DATE ? new Date(millis) : null;
+    }
+
+    /**
+     * Parse an XMP date without creating any objects. Accepted are the ISO 8601 subsets
+     * YYYY, YYYY-MM, YYYY-MM-DD, YYYY-MM-DDThh:mmTZD, YYYY-MM-DDThh:mm:ssTZD and
+     * YYYY-MM-DDThh:mm:ss.sTZD with any number of fraction digits. TZD is Z, +hh:mm or -hh:mm
+     * and is optional, dates without one are taken as UTC.
+     * @return milliseconds since the epoch or {@link #NO_DATE}, if the range holds no valid date.
+     */
+    static long parseDateMillis(ByteBuffer b, int start, int end) {
+        int i = start;
+        int year = digits(b, i, end, 4);
+        if (year < 0) {
+            return NO_DATE;
+        }
+        i += 4;
+        int month = 1;
+        int day = 1;
+        int hour = 0;
+        int minute = 0;
+        int second = 0;
+        int millis = 0;
+        int offset = 0;
+
+        if (i < end) {
+            month = separated(b, i, end, '-');
+            if (month < 1 || month > 12) {
+                return NO_DATE;
+            }
+            i += 3;
+        }
+        if (i < end) {
+            day = separated(b, i, end, '-');
+            if (day < 1 || day > daysInMonth(year, month)) {
+                return NO_DATE;
+            }
+            i += 3;
+        }
+        if (i < end) {
+            hour = separated(b, i, end, 'T');
+            minute = separated(b, i + 3, end, ':');
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+                return NO_DATE;
+            }
+            i += 6;
+
+            if (i < end && b.get(i) == ':') {
+                second = separated(b, i, end, ':');
+                if (second < 0 || second > 59) {
+                    return NO_DATE;
+                }
+                i += 3;
+
+                if (i < end && b.get(i) == '.') {
+                    i++;
+                    int scale = 100;
+                    if (i >= end || !isDigit(b.get(i))) {
+                        return NO_DATE;
+                    }
+                    while (i < end && isDigit(b.get(i))) {
+                        millis += (b.get(i++) - '0') * scale;
+                        scale /= 10;
+                    }
+                }
+            }
+
+            if (i < end) {
+                byte tzd = b.get(i);
+                if (tzd == 'Z') {
+                    i++;
+                } else if (tzd == '+' || tzd == '-') {
+                    int tzHour = digits(b, i + 1, end, 2);
+                    int tzMinute = separated(b, i + 3, end, ':');
+                    if (tzHour < 0 || tzHour > 23 || tzMinute < 0 || tzMinute > 59) {
+                        return NO_DATE;
+                    }
+                    offset = (tzHour * 60 + tzMinute) * (tzd == '+' ? 1 : -1);
+                    i += 6;
+                }
+            }
+        }
+        if (i != end) {
+            return NO_DATE;
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return (((days * 24 + hour) * 60 + minute - offset) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * Number of days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * @return value of a separator followed by two digits, or -1.
+     */
+    private static int separated(ByteBuffer b, int i, int end, char separator) {
+        if (i >= end || b.get(i) != separator) {
+            return -1;
+        }
+        return digits(b, i + 1, end, 2);
+    }
+
+    /**
+     * @return value of exactly count digits, or -1.
+     */
+    private static int digits(ByteBuffer b, int i, int end, int count) {
+        if (i + count > end) {
+            return -1;
+        }
+        int value = 0;
+        for (int j = i; j < i + count; j++) {
+            byte c = b.get(j);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static String string(ByteBuffer b, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = b.get(start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static Float boxed(float value) {
+        return Float.isNaN(value) ? null : value;
+    }
+
+    private static Integer boxed(long value) {
+        return value == Long.MIN_VALUE ? null : (int) value;
+    }
+
+    private static int lookup(ByteBuffer b, int start, int end) {
+        final int len = end - start;
+        for (int field = 0; field < NAMES.length; field++) {
+            final byte[] name = NAMES[field];
+            if (name.length != len) {
+                continue;
+            }
+            int i = 0;
+            while (i < len && name[i] == b.get(start + i)) {
+                i++;
+            }
+            if (i == len) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer b, byte[] pattern, int from, int end) {
+        final int last = end - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (b.get(i) != pattern[0]) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (b.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int nameEnd(ByteBuffer b, int i, int end) {
+        while (i < end && isNameChar(b.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(ByteBuffer b, int i, int end) {
+        while (i < end && isWhitespace(b.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || isDigit(b) || b == '_' || b == '-';
+    }
+
+    private static byte[] name(String key) {
+        return key.substring(PREFIX.length).getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,44 @@
+package de.trac.spherical.parser;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ByteBufferInputStream}.
+ */
+public class ByteBufferInputStreamTest {
+
+    @Test
+    public void readsFromBufferPosition() throws Exception {
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(10);
+
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+        assertEquals(290, in.available());
+        assertEquals(10, in.read());
+        assertEquals(100, in.skip(100));
+        assertEquals(111, in.read());
+
+        in.mark(0);
+        byte[] b = new byte[500];
+        assertEquals(188, in.read(b, 0, b.length));
+        assertEquals(112, b[0] & 0xFF);
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(b, 0, 1));
+        assertEquals(0, in.skip(1));
+
+        in.reset();
+        assertEquals(112, in.read());
+
+        // The buffer itself is left alone.
+        assertEquals(10, buffer.position());
+        assertEquals(300, buffer.limit());
+    }
+}
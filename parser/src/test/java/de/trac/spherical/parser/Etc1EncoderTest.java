@@ -0,0 +1,120 @@
+package de.trac.spherical.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link Etc1Encoder}, decoding the result again.
+ */
+public class Etc1EncoderTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void solidColor() throws Exception {
+        int[] pixels = new int[8 * 8];
+        Arrays.fill(pixels, 0xFF336699);
+        ByteBuffer data = new Etc1Encoder(executor, 4).encode(pixels, 0, 8, 8, 8);
+        assertEquals(4 * Etc1Encoder.BLOCK_SIZE, data.remaining());
+        // Within the precision of the base color and the smallest modifier.
+        double psnr = psnr(pixels, Etc1Encoder.decode(data, 8, 8));
+        assertTrue("PSNR " + psnr, psnr > 35);
+    }
+
+    @Test
+    public void photo() throws Exception {
+        int width = 203;
+        int height = 101;
+        int[] pixels = image(width, height);
+        ByteBuffer data = new Etc1Encoder(executor, 4).encode(pixels, 0, width, width, height);
+        assertEquals(Etc1Encoder.getEncodedSize(width, height), data.remaining());
+        assertEquals(51 * 26 * 8, data.remaining());
+
+        double psnr = psnr(pixels, Etc1Encoder.decode(data, width, height));
+        assertTrue("PSNR " + psnr, psnr > 30);
+    }
+
+    @Test
+    public void sameResultOnOneThread() throws Exception {
+        int[] pixels = image(64, 48);
+        ByteBuffer parallel = new Etc1Encoder(executor, 4).encode(pixels, 0, 64, 64, 48);
+        ByteBuffer single = new Etc1Encoder(executor, 1).encode(pixels, 0, 64, 64, 48);
+        assertEquals(single, parallel);
+    }
+
+    @Test
+    public void bands() throws Exception {
+        int[] pixels = image(40, 30);
+        Etc1Encoder encoder = new Etc1Encoder(executor, 2);
+        ByteBuffer whole = encoder.encode(pixels, 0, 40, 40, 30);
+
+        ByteBuffer banded = ByteBuffer.allocate(Etc1Encoder.getEncodedSize(40, 30));
+        encoder.encode(pixels, 0, 40, 40, 16, banded);
+        encoder.encode(pixels, 16 * 40, 40, 40, 14, banded);
+        assertFalse(banded.hasRemaining());
+        banded.flip();
+        assertEquals(whole, banded);
+    }
+
+    @Test
+    public void blockLayout() {
+        // Differential mode, flipped, tables 1 and 7, base colors (8, 16, 24) and (7, 15, 23)
+        // in 5 bits, all pixel indices 1 (+b) except the top left one with 3 (-b).
+        long bits = (8L << 59) | (7L << 56) | (16L << 51) | (7L << 48) | (24L << 43) | (7L << 40)
+                | (1L << 37) | (7L << 34) | (1L << 33) | (1L << 32) | (1L << 16) | 0xFFFFL;
+        int[] out = new int[16];
+        Etc1Encoder.decodeBlock(bits, out);
+        assertEquals(rgb(66 - 17, 132 - 17, 198 - 17), out[0]);
+        assertEquals(rgb(66 + 17, 132 + 17, 198 + 17), out[1]);
+        assertEquals(rgb(57 + 183, 123 + 183, 189 + 183), out[15]);
+    }
+
+    private static int rgb(int r, int g, int b) {
+        return 0xFF000000 | Math.min(255, Math.max(0, r)) << 16 | Math.min(255, Math.max(0, g)) << 8
+                | Math.min(255, Math.max(0, b));
+    }
+
+    private static int[] image(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Smooth gradients with some texture, like sky and ground.
+                int r = (int) (128 + 100 * Math.sin(x / 23.0) * Math.cos(y / 17.0));
+                int g = (int) (128 + 60 * Math.cos((x + y) / 31.0));
+                int b = 255 * y / height;
+                pixels[y * width + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static double psnr(int[] expected, int[] actual) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int d = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                error += d * d;
+            }
+        }
+        double mse = error / (3.0 * expected.length);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+}
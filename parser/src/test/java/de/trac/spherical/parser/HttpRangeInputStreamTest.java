@@ -0,0 +1,199 @@
+package de.trac.spherical.parser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link HttpRangeInputStream} against a stand-in HTTP server.
+ */
+public class HttpRangeInputStreamTest {
+
+    private static final String XMP =
+            "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description " +
+            "GPano:FullPanoWidthPixels=\"8192\"/></rdf:RDF></x:xmpmeta>";
+
+    private HttpServer server;
+    private FileHandler handler;
+    private byte[] file;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] data = new byte[300000];
+        new Random(42).nextBytes(data);
+        file = new PhotoSphereParserTest.JpegBuilder()
+                .xmp(XMP)
+                .sos()
+                .segment(0xE0, data, data.length)
+                .build();
+
+        handler = new FileHandler();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", handler);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void headerFirst() throws Exception {
+        HttpRangeInputStream in = new HttpRangeInputStream(url());
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(in);
+        assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+        // Classified from the header request alone.
+        assertEquals(Collections.singletonList("bytes=0-65535"), handler.ranges);
+        assertEquals(file.length, in.getLength());
+
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        copy(in, rest);
+        in.close();
+        assertEquals("bytes=65536-", handler.ranges.get(1));
+        assertEquals(2, handler.ranges.size());
+    }
+
+    @Test
+    public void wholeFile() throws Exception {
+        assertArrayEquals(file, readFully(new HttpRangeInputStream(url())));
+    }
+
+    @Test
+    public void resumeAfterBrokenTransfer() throws Exception {
+        handler.breakAfter = 100000;
+        HttpRangeInputStream in = new HttpRangeInputStream(url(), 1000, 4096, 3);
+        assertArrayEquals(file, readFully(in));
+        // Header and rest of the file, resumed every 100000 bytes.
+        assertEquals(2 + (file.length - 1001) / 100000, handler.ranges.size());
+        assertEquals("bytes=101000-", handler.ranges.get(2));
+        assertEquals("bytes=201000-", handler.ranges.get(3));
+        assertEquals("\"v1\"", handler.ifRange);
+    }
+
+    @Test
+    public void noRangeSupport() throws Exception {
+        handler.ranges = null;
+        assertArrayEquals(file, readFully(new HttpRangeInputStream(url())));
+    }
+
+    @Test(expected = IOException.class)
+    public void fileChanged() throws Exception {
+        handler.breakAfter = 100000;
+        HttpRangeInputStream in = new HttpRangeInputStream(url(), 1000, 4096, 3);
+        assertEquals(50000, readFully(in, 50000));
+        handler.etag = "\"v2\"";
+        readFully(in);
+    }
+
+    @Test
+    public void contentRange() {
+        assertArrayEquals(new long[] {0, 65535, 1234567}, HttpRangeInputStream.parseContentRange("bytes 0-65535/1234567"));
+        assertArrayEquals(new long[] {100, 199, -1}, HttpRangeInputStream.parseContentRange("bytes 100-199/*"));
+        assertNull(HttpRangeInputStream.parseContentRange("bytes */1234"));
+        assertNull(HttpRangeInputStream.parseContentRange(null));
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/sphere.jpg");
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(in, out);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static int readFully(InputStream in, int len) throws IOException {
+        byte[] b = new byte[len];
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] b = new byte[8192];
+        int n;
+        while ((n = in.read(b, 0, b.length)) >= 0) {
+            out.write(b, 0, n);
+        }
+    }
+
+    /**
+     * Serves the file with support for Range and If-Range, like a static file server.
+     */
+    private class FileHandler implements HttpHandler {
+
+        // Range headers received, null to ignore them.
+        volatile List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+        volatile String ifRange;
+        volatile String etag = "\"v1\"";
+
+        // Bytes sent before the connection is dropped, 0 to send everything.
+        volatile int breakAfter = 0;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String condition = exchange.getRequestHeaders().getFirst("If-Range");
+            if (condition != null) {
+                ifRange = condition;
+            }
+            exchange.getResponseHeaders().set("ETag", etag);
+
+            int first = 0;
+            int last = file.length - 1;
+            boolean partial = ranges != null && range != null && (condition == null || condition.equals(etag));
+            if (ranges != null && range != null) {
+                ranges.add(range);
+            }
+            if (partial) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                first = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    last = Math.min(last, Integer.parseInt(bounds[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + file.length);
+                exchange.sendResponseHeaders(206, last - first + 1);
+            } else {
+                exchange.sendResponseHeaders(200, file.length);
+            }
+
+            OutputStream out = exchange.getResponseBody();
+            int len = last - first + 1;
+            if (breakAfter > 0 && len > breakAfter) {
+                out.write(file, first, breakAfter);
+                out.flush();
+                // Drop the connection halfway.
+                exchange.close();
+                return;
+            }
+            out.write(file, first, len);
+            out.close();
+        }
+    }
+}
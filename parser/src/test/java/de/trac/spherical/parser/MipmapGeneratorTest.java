@@ -0,0 +1,141 @@
+package de.trac.spherical.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link MipmapGenerator}.
+ */
+public class MipmapGeneratorTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void levelSizes() {
+        assertEquals(1, MipmapGenerator.getLevelCount(1, 1));
+        assertEquals(13, MipmapGenerator.getLevelCount(4096, 2048));
+        assertEquals(12, MipmapGenerator.getLevelCount(3000, 1500));
+        assertEquals(1500, MipmapGenerator.getLevelSize(3000, 1));
+        assertEquals(187, MipmapGenerator.getLevelSize(1500, 3));
+        assertEquals(1, MipmapGenerator.getLevelSize(1500, 11));
+    }
+
+    @Test
+    public void solidColor() throws Exception {
+        int[] pixels = new int[7 * 5];
+        Arrays.fill(pixels, 0xFF336699);
+        int[] level = new MipmapGenerator(executor, 4).downsample(pixels, 7, 5, true);
+        assertEquals(3 * 2, level.length);
+        for (int pixel : level) {
+            assertEquals(0xFF336699, pixel);
+        }
+    }
+
+    @Test
+    public void evenSizeIsFilteredByTent() throws Exception {
+        // A single bright column is spread 3 to 1 over the pixels next to it.
+        int[] pixels = new int[8 * 2];
+        Arrays.fill(pixels, 0xFF000000);
+        pixels[2] = 0xFF000080;
+        pixels[8 + 2] = 0xFF000080;
+        int[] level = new MipmapGenerator(executor, 1).downsample(pixels, 8, 2, false);
+        assertEquals(4, level.length);
+        assertEquals(0xFF000010, level[0]);
+        assertEquals(0xFF000030, level[1]);
+        assertEquals(0xFF000000, level[2]);
+    }
+
+    @Test
+    public void edgesWrapAroundForSpheres() throws Exception {
+        int[] pixels = new int[8];
+        Arrays.fill(pixels, 0xFF000000);
+        pixels[7] = 0xFF0000F0;
+        int[] wrapped = new MipmapGenerator(executor, 1).downsample(pixels, 8, 1, true);
+        int[] clamped = new MipmapGenerator(executor, 1).downsample(pixels, 8, 1, false);
+        // The last pixel reaches the first one across the seam only.
+        assertEquals(0xFF00001E, wrapped[0]);
+        assertEquals(0xFF000000, clamped[0]);
+        assertEquals(0xFF00005A, wrapped[3]);
+        assertEquals(0xFF000078, clamped[3]);
+    }
+
+    @Test
+    public void sameResultOnOneThread() throws Exception {
+        int[] pixels = image(203, 101);
+        int[] parallel = new MipmapGenerator(executor, 4).downsample(pixels, 203, 101, true);
+        int[] single = new MipmapGenerator(executor, 1).downsample(pixels, 203, 101, true);
+        assertArrayEquals(single, parallel);
+    }
+
+    @Test
+    public void bandsMatchWholeLevel() throws Exception {
+        int width = 64;
+        int height = 45;
+        int[] pixels = image(width, height);
+        MipmapGenerator generator = new MipmapGenerator(executor, 4);
+        int[] whole = generator.downsample(pixels, width, height, false);
+
+        int outWidth = MipmapGenerator.getLevelSize(width, 1);
+        int outHeight = MipmapGenerator.getLevelSize(height, 1);
+        int[] banded = new int[outWidth * outHeight];
+        for (int outTop = 0; outTop < outHeight; outTop += 5) {
+            int outRows = Math.min(5, outHeight - outTop);
+            int top = MipmapGenerator.getFirstSourceRow(outTop, height);
+            int rows = MipmapGenerator.getLastSourceRow(outTop + outRows - 1, height) - top + 1;
+            int[] band = Arrays.copyOfRange(pixels, top * width, (top + rows) * width);
+            generator.downsample(band, 0, width, width, height, top, rows, false, banded, outTop, outRows);
+        }
+        assertArrayEquals(whole, banded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bandTooShort() throws Exception {
+        int[] pixels = image(16, 16);
+        new MipmapGenerator(executor, 1).downsample(pixels, 0, 16, 16, 16, 0, 4, false, new int[8 * 2], 0, 2);
+    }
+
+    @Test
+    public void downToOnePixel() throws Exception {
+        MipmapGenerator generator = new MipmapGenerator(executor, 4);
+        int width = 13;
+        int height = 3;
+        int[] level = image(width, height);
+        for (int i = 1; i < MipmapGenerator.getLevelCount(13, 3); i++) {
+            level = generator.downsample(level, width, height, true);
+            width = MipmapGenerator.getLevelSize(width, 1);
+            height = MipmapGenerator.getLevelSize(height, 1);
+            assertEquals(width * height, level.length);
+        }
+        assertEquals(1, level.length);
+    }
+
+    private static int[] image(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255) / width;
+                int g = (y * 255) / height;
+                int b = ((x ^ y) * 7) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+}
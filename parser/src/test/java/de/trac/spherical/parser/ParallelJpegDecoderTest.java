@@ -0,0 +1,114 @@
+package de.trac.spherical.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ParallelJpegDecoder}, comparing against a full decode by ImageIO.
+ */
+public class ParallelJpegDecoderTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void restartIntervals() throws Exception {
+        byte[] jpeg = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_INT_RGB), false, 7);
+        DecodedImage image = new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(jpeg));
+        assertSimilar(ImageIO.read(new ByteArrayInputStream(jpeg)), image);
+    }
+
+    @Test
+    public void grayscale() throws Exception {
+        byte[] jpeg = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_BYTE_GRAY), false, 5);
+        DecodedImage image = new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(jpeg));
+        assertSimilar(ImageIO.read(new ByteArrayInputStream(jpeg)), image);
+    }
+
+    @Test
+    public void sameResultOnOneThread() throws Exception {
+        byte[] jpeg = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_INT_RGB), false, 3);
+        DecodedImage parallel = new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(jpeg));
+        DecodedImage single = new ParallelJpegDecoder(executor, 1).decode(ByteBuffer.wrap(jpeg));
+        assertArrayEquals(single.getPixels(), parallel.getPixels());
+    }
+
+    @Test
+    public void fallBackWithoutRestartIntervals() throws Exception {
+        byte[] baseline = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_INT_RGB), false, 0);
+        assertNull(new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(baseline)));
+
+        byte[] progressive = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_INT_RGB), true, 0);
+        assertNull(new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(progressive)));
+    }
+
+    @Test
+    public void refusedSizeIsNotDecoded() throws Exception {
+        byte[] jpeg = PreviewDecoderTest.encode(PreviewDecoderTest.image(BufferedImage.TYPE_INT_RGB), false, 7);
+        final BufferedImage expected = ImageIO.read(new ByteArrayInputStream(jpeg));
+        boolean decoded = new ParallelJpegDecoder(executor, 4).decode(ByteBuffer.wrap(jpeg),
+                new ParallelJpegDecoder.Target() {
+                    @Override
+                    public boolean accept(int width, int height) {
+                        assertEquals(expected.getWidth(), width);
+                        assertEquals(expected.getHeight(), height);
+                        return false;
+                    }
+
+                    @Override
+                    public void start(int width, int height) {
+                        fail("Started although the size has been refused");
+                    }
+
+                    @Override
+                    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+                        fail("Pixels delivered although the size has been refused");
+                    }
+                });
+        assertFalse(decoded);
+    }
+
+    private static void assertSimilar(BufferedImage expected, DecodedImage actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+
+        // getRGB() would convert from linear gray.
+        boolean gray = expected.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        double error = 0;
+        int[] pixels = actual.getPixels();
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                int e = gray ? expected.getRaster().getSample(x, y, 0) * 0x010101 : expected.getRGB(x, y);
+                int a = pixels[y * actual.getWidth() + x];
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int d = ((e >> shift) & 0xFF) - ((a >> shift) & 0xFF);
+                    error += d * d;
+                }
+            }
+        }
+        double mse = error / (3.0 * actual.getWidth() * actual.getHeight());
+        double psnr = 10 * Math.log10(255 * 255 / mse);
+        assertTrue("PSNR " + psnr, psnr > 35);
+    }
+}
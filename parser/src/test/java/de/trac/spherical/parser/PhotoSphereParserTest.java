@@ -0,0 +1,391 @@
+package de.trac.spherical.parser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PhotoSphereParser}.
+ */
+public class PhotoSphereParserTest {
+
+    private static final String XMP_NAMESPACE = "http://ns.adobe.com/xap/1.0/";
+
+    private static final String XMP_EXTENSION_NAMESPACE = "http://ns.adobe.com/xmp/extension/";
+
+    private static final String XMP =
+            "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description " +
+            "GPano:ProjectionType=\"equirectangular\" " +
+            "GPano:FullPanoWidthPixels=\"8192\" " +
+            "GPano:FullPanoHeightPixels=\"4096\"/></rdf:RDF></x:xmpmeta>";
+
+    @Test
+    public void xmpDirectlyAfterExif() throws Exception {
+        byte[] jpeg = new JpegBuilder()
+                .segment(0xE1, "Exif\0\0".getBytes(), 300)
+                .xmp(XMP)
+                .sos()
+                .build();
+        assertEquals(XMP, PhotoSphereParser.getXMLContent(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void xmpAfterJfifIccAndComment() throws Exception {
+        byte[] jpeg = new JpegBuilder()
+                .segment(0xE0, "JFIF\0".getBytes(), 16)
+                .segment(0xE2, "ICC_PROFILE\0".getBytes(), 3000)
+                .segment(0xFE, "comment".getBytes(), 0)
+                .segment(0xE1, "Exif\0\0".getBytes(), 200)
+                .xmp(XMP)
+                .sos()
+                .build();
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg));
+        assertNotNull(meta);
+        assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+        assertEquals(Integer.valueOf(4096), meta.getFullPanoHeightPixels());
+    }
+
+    @Test
+    public void noXmpBeforeImageData() throws Exception {
+        byte[] jpeg = new JpegBuilder()
+                .segment(0xE0, "JFIF\0".getBytes(), 16)
+                .sos()
+                .xmp(XMP)
+                .build();
+        assertNull(PhotoSphereParser.getXMLContent(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void noJpeg() throws Exception {
+        byte[] png = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0};
+        assertNull(PhotoSphereParser.getXMLContent(new ByteArrayInputStream(png)));
+    }
+
+    @Test
+    public void attributeForm() {
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(
+                "<rdf:Description xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\"\n" +
+                "  GPano:UsePanoramaViewer=\"False\"\n" +
+                "  GPano:CaptureSoftware=\"Photo Sphere\"\n" +
+                "  GPano:PoseHeadingDegrees = '-12.5'\n" +
+                "  GPano:InitialViewHeadingDegrees=\"90\"\n" +
+                "  GPano:InitialHorizontalFOVDegrees=\"7.5e1\"\n" +
+                "  GPano:CroppedAreaLeftPixels=\"0\"\n" +
+                "  GPano:CroppedAreaLeftPixels=\"42\"/>");
+        assertFalse(meta.isUsePanoramaViewer());
+        assertEquals("Photo Sphere", meta.getCaptureSoftware());
+        assertEquals(-12.5f, meta.getPoseHeadingDegrees(), 0f);
+        assertEquals(90, meta.getInitialViewHeadingDegrees());
+        assertEquals(75f, meta.getInitialHorizontalFOVDegrees(), 0f);
+        assertEquals(Integer.valueOf(0), meta.getCroppedAreaLeftPixels());
+        assertNull(meta.getStitchingSoftware());
+        assertNull(meta.getFullPanoWidthPixels());
+    }
+
+    @Test
+    public void elementForm() {
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(
+                "<rdf:Description>\n" +
+                "  <GPano:ExposureLockUsed>True</GPano:ExposureLockUsed>\n" +
+                "  <GPano:StitchingSoftware/>\n" +
+                "  <GPano:FullPanoWidthPixels>\n    4096\n  </GPano:FullPanoWidthPixels>\n" +
+                "  <GPano:PosePitchDegrees>1.25</GPano:PosePitchDegrees>\n" +
+                "</rdf:Description>");
+        assertTrue(meta.isExposureLockUsed());
+        assertNull(meta.getStitchingSoftware());
+        assertEquals(Integer.valueOf(4096), meta.getFullPanoWidthPixels());
+        assertEquals(1.25f, meta.getPosePitchDegrees(), 0f);
+    }
+
+    @Test
+    public void malformedNumbersKeepDefaults() {
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(
+                "GPano:SourcePhotosCount=\"many\" GPano:InitialCameraDolly=\"\" " +
+                "GPano:FullPanoHeightPixels=\"2048.0\"");
+        assertNull(meta.getSourcePhotosCount());
+        assertEquals(0f, meta.getInitialCameraDolly(), 0f);
+        assertEquals(Integer.valueOf(2048), meta.getFullPanoHeightPixels());
+    }
+
+    @Test
+    public void photoDates() {
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(
+                "GPano:FirstPhotoDate=\"2017-09-19T12:30:15.250Z\" " +
+                "GPano:LastPhotoDate=\"2017-09-19T14:31:00+02:00\"");
+        assertEquals(1505824215250L, meta.getFirstPhotoDate().getTime());
+        assertEquals(1505824260000L, meta.getLastPhotoDate().getTime());
+
+        meta = PhotoSphereParser.parse("GPano:FirstPhotoDate=\"2017-02-30T00:00:00Z\"");
+        assertNull(meta.getFirstPhotoDate());
+    }
+
+    @Test
+    public void reusedInstance() throws Exception {
+        String extended = "<rdf:Description GPano:PoseHeadingDegrees=\"42.5\"/>";
+        byte[] jpeg = extendedJpeg(extended, md5(extended), true);
+        PhotoSphereParser parser = new PhotoSphereParser();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(42.5f, parser.read(new ByteArrayInputStream(jpeg), true).getPoseHeadingDegrees(), 0f);
+            assertNull(parser.read(ByteBuffer.wrap(jpeg), false).getPoseHeadingDegrees());
+        }
+    }
+
+    @Test
+    public void directByteBuffer() throws Exception {
+        byte[] jpeg = new JpegBuilder()
+                .segment(0xE0, "JFIF\0".getBytes(), 16)
+                .xmp(XMP)
+                .sos()
+                .build();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length + 3);
+        buffer.put(new byte[] {1, 2, 3}).put(jpeg).position(3);
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(buffer);
+        assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void fileChannel() throws Exception {
+        String extended = "<rdf:Description GPano:PoseHeadingDegrees=\"42.5\"/>";
+        File file = File.createTempFile("sphere", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(extendedJpeg(extended, md5(extended), false));
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                PhotoSphereMetadata meta = PhotoSphereParser.parse(raf.getChannel(), true);
+                assertEquals(Integer.valueOf(4096), meta.getFullPanoHeightPixels());
+                assertEquals(42.5f, meta.getPoseHeadingDegrees(), 0f);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void extendedXmpIsSkippedByDefault() throws Exception {
+        String extended = "<rdf:Description GPano:PoseHeadingDegrees=\"42.5\"/>";
+        byte[] jpeg = extendedJpeg(extended, md5(extended), false);
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg));
+        assertNull(meta.getPoseHeadingDegrees());
+    }
+
+    @Test
+    public void fileChannelHeaderBeyondFirstWindow() throws Exception {
+        JpegBuilder builder = new JpegBuilder();
+        for (int i = 0; i < 3; i++) {
+            builder.segment(0xE2, "ICC_PROFILE\0".getBytes(), 60000);
+        }
+        byte[] header = builder.xmp(XMP).sos().build();
+        File file = File.createTempFile("sphere", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(header);
+            // Image data, which is not mapped.
+            out.write(new byte[1 << 20]);
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                PhotoSphereMetadata meta = PhotoSphereParser.parse(raf.getChannel());
+                assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void extendedXmpIsReassembled() throws Exception {
+        String extended = "<rdf:Description GPano:PoseHeadingDegrees=\"42.5\" " +
+                "GPano:FullPanoWidthPixels=\"1\"/>";
+        for (boolean extendedFirst : new boolean[] {false, true}) {
+            byte[] jpeg = extendedJpeg(extended, md5(extended), extendedFirst);
+            PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg), true);
+            assertEquals(42.5f, meta.getPoseHeadingDegrees(), 0f);
+            // The main packet takes precedence.
+            assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+            assertEquals(extended, PhotoSphereParser.getExtendedXMLContent(new ByteArrayInputStream(jpeg)));
+        }
+    }
+
+    @Test
+    public void repeatedExtendedXmpChunkIsCountedOnce() throws Exception {
+        String extended = "<rdf:Description GPano:InitialViewPitchDegrees=\"-17\"/>";
+        String guid = md5(extended);
+        String main = XMP.replace("<rdf:Description ",
+                "<rdf:Description xmpNote:HasExtendedXMP=\"" + guid + "\" ");
+        byte[] data = extended.getBytes();
+        int split = data.length / 2;
+        // The repeated second half is as long as the whole packet, but leaves the first half open.
+        byte[] jpeg = new JpegBuilder().xmp(main)
+                .extendedXmp(guid, data, split, data.length - split)
+                .extendedXmp(guid, data, split, data.length - split)
+                .extendedXmp(guid, data, 0, split)
+                .sos().build();
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg), true);
+        assertEquals(-17, meta.getInitialViewPitchDegrees());
+        assertEquals(extended, PhotoSphereParser.getExtendedXMLContent(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void corruptExtendedXmpIsIgnored() throws Exception {
+        String extended = "<rdf:Description GPano:PoseHeadingDegrees=\"42.5\"/>";
+        byte[] jpeg = extendedJpeg(extended, md5("something else"), false);
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(new ByteArrayInputStream(jpeg), true);
+        assertNull(meta.getPoseHeadingDegrees());
+        assertNull(PhotoSphereParser.getExtendedXMLContent(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void exifThumbnail() throws Exception {
+        byte[] thumbnail = new JpegBuilder().segment(0xDB, new byte[0], 65).sos().build();
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            for (boolean exifFirst : new boolean[] {true, false}) {
+                JpegBuilder builder = new JpegBuilder();
+                if (!exifFirst) {
+                    builder.xmp(XMP);
+                }
+                builder.segment(0xE1, exif(thumbnail, littleEndian), 0);
+                if (exifFirst) {
+                    builder.xmp(XMP);
+                }
+                byte[] jpeg = builder.sos().build();
+
+                PhotoSphereParser parser = new PhotoSphereParser();
+                assertEquals(Integer.valueOf(8192), parser.read(new ByteArrayInputStream(jpeg), false).getFullPanoWidthPixels());
+                assertNull(parser.getThumbnail());
+
+                parser.setReadThumbnail(true);
+                PhotoSphereMetadata meta = parser.read(new ByteArrayInputStream(jpeg), false);
+                assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+                assertArrayEquals(thumbnail, parser.getThumbnail());
+                assertEquals(Integer.valueOf(8192), parser.read(ByteBuffer.wrap(jpeg), false).getFullPanoWidthPixels());
+                assertArrayEquals(thumbnail, parser.getThumbnail());
+            }
+        }
+    }
+
+    /**
+     * Build an EXIF payload with an empty IFD0 and the thumbnail referenced by IFD1.
+     */
+    private static byte[] exif(byte[] thumbnail, boolean littleEndian) {
+        ByteBuffer b = ByteBuffer.allocate(6 + 8 + 6 + 2 + 2 * 12 + 4 + thumbnail.length);
+        b.put("Exif\0\0".getBytes());
+        b.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        b.put(littleEndian ? (byte) 'I' : (byte) 'M').put(littleEndian ? (byte) 'I' : (byte) 'M');
+        b.putShort((short) 42).putInt(8);
+        // IFD0 without entries, pointing to IFD1
+        b.putShort((short) 0).putInt(14);
+        // IFD1 at 14: JPEGInterchangeFormat as LONG, JPEGInterchangeFormatLength as SHORT
+        b.putShort((short) 2);
+        b.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(14 + 2 + 24 + 4);
+        b.putShort((short) 0x0202).putShort((short) 3).putInt(1).putShort((short) thumbnail.length).putShort((short) 0);
+        b.putInt(0);
+        b.put(thumbnail);
+        return b.array();
+    }
+
+    /**
+     * Build a JPEG header whose Extended XMP packet is split into two chunks, stored in reverse order.
+     */
+    private static byte[] extendedJpeg(String extended, String guid, boolean extendedFirst) throws IOException {
+        String main = XMP.replace("<rdf:Description ",
+                "<rdf:Description xmpNote:HasExtendedXMP=\"" + guid + "\" ");
+        byte[] data = extended.getBytes();
+        int split = data.length / 2;
+        JpegBuilder builder = new JpegBuilder().segment(0xE1, "Exif\0\0".getBytes(), 100);
+        if (!extendedFirst) {
+            builder.xmp(main);
+        }
+        builder.extendedXmp(guid, data, split, data.length - split)
+                .segment(0xE2, "ICC_PROFILE\0".getBytes(), 10)
+                .extendedXmp(guid, data, 0, split);
+        if (extendedFirst) {
+            builder.xmp(main);
+        }
+        return builder.sos().build();
+    }
+
+    private static String md5(String s) throws Exception {
+        byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes());
+        return String.format("%032X", new BigInteger(1, digest));
+    }
+
+    /**
+     * Assembles minimal JPEG headers for testing.
+     */
+    static class JpegBuilder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        JpegBuilder() {
+            out.write(0xFF);
+            out.write(0xD8);
+        }
+
+        JpegBuilder segment(int marker, byte[] payload, int padding) {
+            int len = payload.length + padding + 2;
+            out.write(0xFF);
+            out.write(marker);
+            out.write(len >> 8);
+            out.write(len & 0xFF);
+            out.write(payload, 0, payload.length);
+            for (int i = 0; i < padding; i++) {
+                out.write(0);
+            }
+            return this;
+        }
+
+        JpegBuilder xmp(String xmp) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(XMP_NAMESPACE.getBytes());
+            payload.write(0);
+            payload.write(xmp.getBytes());
+            return segment(0xE1, payload.toByteArray(), 0);
+        }
+
+        JpegBuilder extendedXmp(String guid, byte[] data, int offset, int length) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(XMP_EXTENSION_NAMESPACE.getBytes());
+            payload.write(0);
+            payload.write(guid.getBytes());
+            writeInt(payload, data.length);
+            writeInt(payload, offset);
+            payload.write(data, offset, length);
+            return segment(0xE1, payload.toByteArray(), 0);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 24);
+            out.write((value >>> 16) & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+            out.write(value & 0xFF);
+        }
+
+        JpegBuilder sos() {
+            return segment(0xDA, new byte[] {1, 1, 0, 0, 63, 0}, 0);
+        }
+
+        byte[] build() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package de.trac.spherical.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PhotoSphereWriter}.
+ */
+public class PhotoSphereWriterTest {
+
+    private static final String XMP =
+            "<?xpacket begin=\"\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n" +
+            "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description rdf:about=\"\"\n" +
+            "    xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\"\n" +
+            "    GPano:CaptureSoftware=\"Photo Sphere\"\n" +
+            "    GPano:FullPanoWidthPixels=\"8192\"/>\n" +
+            "  <rdf:Description rdf:about=\"\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"/>\n" +
+            "</rdf:RDF></x:xmpmeta>\n";
+
+    private static final String TRAILER = "<?xpacket end=\"w\"?>";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("sphere", ".jpg");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void inPlaceWhenPaddingSuffices() throws Exception {
+        byte[] jpeg = jpeg(XMP + spaces(200) + TRAILER);
+        write(jpeg);
+
+        PhotoSphereMetadata meta = parse();
+        meta.setFullPanoWidthPixels(10000);
+        meta.setInitialViewHeadingDegrees(90);
+        meta.setCaptureSoftware("A & B");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            assertTrue(PhotoSphereWriter.writeInPlace(raf.getChannel(), meta));
+        } finally {
+            raf.close();
+        }
+
+        byte[] written = read();
+        assertEquals(jpeg.length, written.length);
+        assertTail(jpeg, written);
+        meta = parse();
+        assertEquals(Integer.valueOf(10000), meta.getFullPanoWidthPixels());
+        assertEquals(90, meta.getInitialViewHeadingDegrees());
+        assertTrue(new String(written, "UTF-8").contains("GPano:CaptureSoftware=\"A &amp; B\""));
+    }
+
+    @Test
+    public void unchangedMetadataIsNotWritten() throws Exception {
+        byte[] jpeg = jpeg(XMP + TRAILER);
+        write(jpeg);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            assertTrue(PhotoSphereWriter.writeInPlace(raf.getChannel(), parse()));
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(jpeg, read());
+    }
+
+    @Test
+    public void copiedWhenPacketGrows() throws Exception {
+        byte[] jpeg = jpeg(XMP + TRAILER);
+        write(jpeg);
+
+        PhotoSphereMetadata meta = parse();
+        meta.setPoseHeadingDegrees(12.5f);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            assertFalse(PhotoSphereWriter.writeInPlace(raf.getChannel(), meta));
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(jpeg, read());
+
+        PhotoSphereWriter.write(file, meta);
+        byte[] written = read();
+        assertTrue(written.length > jpeg.length);
+        assertTail(jpeg, written);
+        assertEquals(12.5f, parse().getPoseHeadingDegrees(), 0f);
+        assertEquals(Integer.valueOf(8192), parse().getFullPanoWidthPixels());
+
+        // The copy got padding, so the next edit happens in place.
+        meta.setPoseHeadingDegrees(100.25f);
+        PhotoSphereWriter.write(file, meta);
+        assertEquals(written.length, read().length);
+        assertEquals(100.25f, parse().getPoseHeadingDegrees(), 0f);
+    }
+
+    @Test
+    public void packetAddedToFileWithoutXmp() throws Exception {
+        byte[] jpeg = new PhotoSphereParserTest.JpegBuilder()
+                .segment(0xE0, "JFIF\0".getBytes(), 10)
+                .segment(0xE1, "Exif\0\0".getBytes(), 100)
+                .segment(0xDB, new byte[0], 65)
+                .sos()
+                .segment(0xE0, new byte[0], 5000)
+                .build();
+        write(jpeg);
+
+        PhotoSphereMetadata meta = new PhotoSphereMetadata();
+        meta.setFullPanoWidthPixels(4096);
+        meta.setFullPanoHeightPixels(2048);
+        PhotoSphereWriter.write(file, meta);
+
+        meta = parse();
+        assertEquals(Integer.valueOf(4096), meta.getFullPanoWidthPixels());
+        assertEquals(Integer.valueOf(2048), meta.getFullPanoHeightPixels());
+        assertTail(jpeg, read());
+    }
+
+    private static byte[] jpeg(String xmp) throws IOException {
+        return new PhotoSphereParserTest.JpegBuilder()
+                .segment(0xE1, "Exif\0\0".getBytes(), 100)
+                .xmp(xmp)
+                .segment(0xDB, new byte[0], 65)
+                .sos()
+                .segment(0xE0, new byte[0], 5000)
+                .build();
+    }
+
+    private static String spaces(int n) {
+        char[] c = new char[n];
+        Arrays.fill(c, ' ');
+        return new String(c);
+    }
+
+    /**
+     * Everything from the quantization table on must be untouched.
+     */
+    private static void assertTail(byte[] expected, byte[] actual) {
+        int tail = 65 + 4 + 6 + 4 + 5000 + 4;
+        assertArrayEquals(Arrays.copyOfRange(expected, expected.length - tail, expected.length),
+                Arrays.copyOfRange(actual, actual.length - tail, actual.length));
+    }
+
+    private PhotoSphereMetadata parse() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return PhotoSphereParser.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package de.trac.spherical.parser;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PreviewDecoder}, comparing against a full decode by ImageIO.
+ */
+public class PreviewDecoderTest {
+
+    // Odd size, so that the last MCU row and column are padded.
+    private static final int WIDTH = 331;
+    private static final int HEIGHT = 203;
+
+    @Test
+    public void baseline() throws Exception {
+        byte[] jpeg = encode(image(BufferedImage.TYPE_INT_RGB), false, 0);
+        assertSimilar(jpeg, PreviewDecoder.decode(new BufferedInputStream(new ByteArrayInputStream(jpeg))));
+    }
+
+    @Test
+    public void progressive() throws Exception {
+        byte[] jpeg = encode(image(BufferedImage.TYPE_INT_RGB), true, 0);
+        assertSimilar(jpeg, PreviewDecoder.decode(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    public void restartIntervals() throws Exception {
+        byte[] jpeg = encode(image(BufferedImage.TYPE_INT_RGB), false, 7);
+        assertTrue(contains(jpeg, (byte) 0xFF, (byte) 0xDD));
+        assertSimilar(jpeg, PreviewDecoder.decode(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    public void grayscale() throws Exception {
+        byte[] jpeg = encode(image(BufferedImage.TYPE_BYTE_GRAY), true, 0);
+        assertSimilar(jpeg, PreviewDecoder.decode(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    public void truncatedProgressive() throws Exception {
+        byte[] jpeg = encode(image(BufferedImage.TYPE_INT_RGB), true, 0);
+        // The DC scans come first, so the preview survives losing the second half of the file.
+        byte[] half = Arrays.copyOf(jpeg, jpeg.length / 2);
+        assertSimilar(jpeg, PreviewDecoder.decode(ByteBuffer.wrap(half)));
+    }
+
+    @Test
+    public void progressiveOnly() throws Exception {
+        byte[] baseline = encode(image(BufferedImage.TYPE_INT_RGB), false, 0);
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(baseline));
+        assertNull(PreviewDecoder.decode(in, true));
+        // Nothing but the header has been read.
+        assertTrue(in.getRecordedLength() < baseline.length / 2);
+
+        byte[] progressive = encode(image(BufferedImage.TYPE_INT_RGB), true, 0);
+        assertSimilar(progressive, PreviewDecoder.decode(
+                new BufferedInputStream(new ByteArrayInputStream(progressive)), true));
+    }
+
+    @Test
+    public void notJpeg() throws Exception {
+        assertNull(PreviewDecoder.decode(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})));
+    }
+
+    static BufferedImage image(int type) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = 128 + (int) (100 * Math.sin(x / 53.0));
+                int g = 128 + (int) (100 * Math.cos(y / 41.0));
+                int b = (x + y) * 255 / (WIDTH + HEIGHT);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    static byte[] encode(BufferedImage image, boolean progressive, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval > 0) {
+            String format = metadata.getNativeMetadataFormatName();
+            Node tree = metadata.getAsTree(format);
+            Element dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            Node markers = tree.getLastChild();
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, tree);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    /**
+     * Compare the preview against the 8x8 block averages of the full image.
+     */
+    private static void assertSimilar(byte[] jpeg, DecodedImage preview) throws IOException {
+        BufferedImage full = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(preview);
+        assertEquals((WIDTH + 7) / 8, preview.getWidth());
+        assertEquals((HEIGHT + 7) / 8, preview.getHeight());
+
+        // getRGB() would convert from linear gray.
+        boolean gray = full.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        double error = 0;
+        int[] pixels = preview.getPixels();
+        for (int by = 0; by < preview.getHeight(); by++) {
+            for (int bx = 0; bx < preview.getWidth(); bx++) {
+                int[] sum = new int[3];
+                int n = 0;
+                for (int y = by * 8; y < Math.min(by * 8 + 8, HEIGHT); y++) {
+                    for (int x = bx * 8; x < Math.min(bx * 8 + 8, WIDTH); x++) {
+                        int rgb = gray ? full.getRaster().getSample(x, y, 0) * 0x010101 : full.getRGB(x, y);
+                        sum[0] += (rgb >> 16) & 0xFF;
+                        sum[1] += (rgb >> 8) & 0xFF;
+                        sum[2] += rgb & 0xFF;
+                        n++;
+                    }
+                }
+                int p = pixels[by * preview.getWidth() + bx];
+                for (int c = 0; c < 3; c++) {
+                    double d = sum[c] / (double) n - ((p >> (16 - 8 * c)) & 0xFF);
+                    error += d * d;
+                }
+            }
+        }
+        double mse = error / (3.0 * preview.getWidth() * preview.getHeight());
+        double psnr = 10 * Math.log10(255 * 255 / mse);
+        assertTrue("PSNR " + psnr, psnr > 30);
+    }
+
+    private static boolean contains(byte[] data, byte a, byte b) {
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == a && data[i + 1] == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package de.trac.spherical.parser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ReplayInputStream}.
+ */
+public class ReplayInputStreamTest {
+
+    private static final String XMP =
+            "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description " +
+            "GPano:FullPanoWidthPixels=\"8192\"/></rdf:RDF></x:xmpmeta>";
+
+    @Test
+    public void parseThenReplayWholeFile() throws Exception {
+        byte[] jpeg = new PhotoSphereParserTest.JpegBuilder()
+                .segment(0xE1, "Exif\0\0".getBytes(), 40000)
+                .xmp(XMP)
+                .sos()
+                .segment(0xE0, new byte[0], 60000)
+                .build();
+
+        ReplayInputStream in = new ReplayInputStream(new ShortReadStream(new ByteArrayInputStream(jpeg)));
+        PhotoSphereMetadata meta = PhotoSphereParser.parse(in);
+        assertEquals(Integer.valueOf(8192), meta.getFullPanoWidthPixels());
+        // The parser stops right after the XMP segment.
+        assertTrue(in.getRecordedLength() < 50000);
+
+        in.rewind();
+        assertArrayEquals(jpeg, readFully(in));
+    }
+
+    @Test
+    public void skipWhileReplaying() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(data));
+        assertEquals(100, in.skip(100));
+        assertEquals(100, in.read());
+        in.rewind();
+
+        assertEquals(0, in.read());
+        assertEquals(100, in.skip(500));
+        assertEquals(101, in.read());
+        assertEquals(1, in.skip(1));
+        assertEquals(103, in.read());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rewindOnlyOnce() {
+        ReplayInputStream in = new ReplayInputStream(new ByteArrayInputStream(new byte[1]));
+        in.rewind();
+        in.rewind();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[1234];
+        int n;
+        while ((n = in.read(b, 0, b.length)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns fewer bytes than requested, like many content provider streams do.
+     */
+    private static class ShortReadStream extends FilterInputStream {
+
+        ShortReadStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 777));
+        }
+    }
+}
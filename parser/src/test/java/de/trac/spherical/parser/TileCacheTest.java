@@ -0,0 +1,98 @@
+package de.trac.spherical.parser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link TileCache}.
+ */
+public class TileCacheTest {
+
+    private static final String KEY = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        TileCache cache = new TileCache(folder.getRoot(), 1 << 20);
+        ByteBuffer pixels = pixels(16, 8, 1);
+        cache.put(KEY, 2, 3, 4, TileCache.FORMAT_RGBA_8888, 16, 8, pixels);
+        assertEquals(0, pixels.position());
+
+        TileCache.CachedTile tile = cache.get(KEY, 2, 3, 4);
+        assertNotNull(tile);
+        assertEquals(TileCache.FORMAT_RGBA_8888, tile.getFormat());
+        assertEquals(16, tile.getWidth());
+        assertEquals(8, tile.getHeight());
+        assertEquals(pixels, tile.getPixels());
+
+        assertNull(cache.get(KEY, 2, 4, 3));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void persistent() throws Exception {
+        new TileCache(folder.getRoot(), 1 << 20).put(KEY, 0, 0, 0, TileCache.FORMAT_RGB_565, 4, 4, pixels(4, 4, 2));
+
+        TileCache cache = new TileCache(folder.getRoot(), 1 << 20);
+        assertEquals(1, cache.getTileCount());
+        assertEquals(pixels(4, 4, 2), cache.get(KEY, 0, 0, 0).getPixels());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        // Room for two tiles of 1024 bytes and their headers.
+        TileCache cache = new TileCache(folder.getRoot(), 2100);
+        cache.put(KEY, 1, 0, 0, TileCache.FORMAT_RGBA_8888, 16, 16, pixels(16, 16, 1));
+        cache.put(KEY, 1, 1, 0, TileCache.FORMAT_RGBA_8888, 16, 16, pixels(16, 16, 2));
+        assertNotNull(cache.get(KEY, 1, 0, 0));
+
+        cache.put(KEY, 1, 2, 0, TileCache.FORMAT_RGBA_8888, 16, 16, pixels(16, 16, 3));
+        assertEquals(2, cache.getTileCount());
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertNotNull(cache.get(KEY, 1, 0, 0));
+        assertNull(cache.get(KEY, 1, 1, 0));
+        assertNotNull(cache.get(KEY, 1, 2, 0));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void damagedTile() throws Exception {
+        TileCache cache = new TileCache(folder.getRoot(), 1 << 20);
+        cache.put(KEY, 0, 0, 0, TileCache.FORMAT_RGBA_8888, 16, 16, pixels(16, 16, 1));
+
+        File file = folder.getRoot().listFiles()[0];
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(100);
+        truncated.close();
+
+        assertNull(cache.get(KEY, 0, 0, 0));
+        assertEquals(0, cache.getTileCount());
+        assertEquals(0, cache.getSize());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void contentKey() throws Exception {
+        String key = TileCache.contentKey(new ByteArrayInputStream("abc".getBytes("US-ASCII")));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", key);
+    }
+
+    private static ByteBuffer pixels(int width, int height, int seed) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+        for (int i = 0; i < pixels.capacity(); i++) {
+            pixels.put(i, (byte) (i * seed));
+        }
+        return pixels;
+    }
+}
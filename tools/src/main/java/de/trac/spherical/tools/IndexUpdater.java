@@ -0,0 +1,125 @@
+package de.trac.spherical.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+
+/**
+ * Incrementally refreshes a {@link MetadataIndex}. Files whose size and modification time match
+ * the previous index are taken over from it, only new and changed files are parsed again.
+ * Entries of files, which no longer exist, are dropped.
+ */
+public class IndexUpdater implements Indexer.Filter, Indexer.Listener {
+
+    private final MetadataIndex previous;
+    private final int previousSize;
+
+    // Entries of the previous index, which are still up to date. Only touched by the walking thread.
+    private final BitSet kept = new BitSet();
+
+    private final Queue<MetadataIndex.Entry> parsed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param previous previous index or null, if there is none.
+     */
+    public IndexUpdater(MetadataIndex previous) {
+        this.previous = previous;
+        this.previousSize = previous == null ? 0 : previous.size();
+    }
+
+    /**
+     * Refresh the index file for all JPEG files below root. The file is only rewritten,
+     * if anything has changed.
+     * @return the updater, which holds the statistics of the run.
+     */
+    public static IndexUpdater update(Path indexFile, Path root, Indexer indexer) throws IOException, InterruptedException {
+        MetadataIndex previous = Files.exists(indexFile) ? MetadataIndex.open(indexFile) : null;
+        try {
+            IndexUpdater updater = new IndexUpdater(previous);
+            indexer.index(root.toAbsolutePath().normalize(), updater, updater);
+            if (updater.isModified()) {
+                // The previous index is still mapped, so it has to replace its own file.
+                if (previous != null) {
+                    previous.replace(updater.getEntries());
+                } else {
+                    MetadataIndex.write(indexFile, updater.getEntries());
+                }
+            }
+            return updater;
+        } finally {
+            if (previous != null) {
+                previous.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean accept(Path file, long size, long lastModified) {
+        if (previous == null) {
+            return true;
+        }
+        int i = previous.find(file.toString());
+        if (previous.isUpToDate(i, size, lastModified)) {
+            kept.set(i);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onIndexed(Path file, long size, long lastModified, PhotoSphereMetadata metadata) {
+        parsed.add(new MetadataIndex.Entry(file.toString(), size, lastModified, metadata));
+    }
+
+    @Override
+    public void onFailed(Path file, long size, long lastModified, IOException e) {
+        // Not indexed, so it will be tried again next time.
+    }
+
+    /**
+     * @return true, if the index differs from the previous one.
+     */
+    public boolean isModified() {
+        return previous == null || !parsed.isEmpty() || kept.cardinality() != previousSize;
+    }
+
+    /**
+     * @return number of entries taken over from the previous index.
+     */
+    public int getUnchanged() {
+        return kept.cardinality();
+    }
+
+    /**
+     * @return number of entries of the previous index, which have been changed or removed.
+     */
+    public int getStale() {
+        return previousSize - kept.cardinality();
+    }
+
+    /**
+     * @return number of files, which have been parsed.
+     */
+    public int getParsed() {
+        return parsed.size();
+    }
+
+    /**
+     * @return all entries of the refreshed index.
+     */
+    public List<MetadataIndex.Entry> getEntries() {
+        List<MetadataIndex.Entry> entries = new ArrayList<>(kept.cardinality() + parsed.size());
+        for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+            entries.add(previous.getEntry(i));
+        }
+        entries.addAll(parsed);
+        return entries;
+    }
+}
@@ -0,0 +1,271 @@
+package de.trac.spherical.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+import de.trac.spherical.parser.PhotoSphereParser;
+
+/**
+ * Headless tool, which walks a directory tree and runs the {@link PhotoSphereParser} over every
+ * JPEG file on a bounded pool of worker threads.
+ */
+public class Indexer {
+
+    /**
+     * Receives the results of an indexing run. Methods are called from the worker threads.
+     */
+    public interface Listener {
+
+        /**
+         * @param metadata metadata or null, if the file is no photo sphere.
+         */
+        void onIndexed(Path file, long size, long lastModified, PhotoSphereMetadata metadata);
+
+        void onFailed(Path file, long size, long lastModified, IOException e);
+    }
+
+    /**
+     * Decides, which files need to be parsed at all.
+     */
+    public interface Filter {
+
+        boolean accept(Path file, long size, long lastModified);
+    }
+
+    // Only the header is read, so a small buffer is enough.
+    private static final int BUFFER_SIZE = 4096;
+
+    // Number of queued files per worker thread, before the walking thread parses files itself.
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private final int threads;
+    private final boolean readExtendedXMP;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder spheres = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * @param threads number of worker threads.
+     * @param readExtendedXMP see {@link PhotoSphereParser#parse(InputStream, boolean)}.
+     */
+    public Indexer(int threads, boolean readExtendedXMP) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        this.readExtendedXMP = readExtendedXMP;
+    }
+
+    /**
+     * Index all JPEG files below root. Returns once every file has been handed to the listener.
+     */
+    public void index(Path root, Listener listener) throws IOException, InterruptedException {
+        index(root, null, listener);
+    }
+
+    /**
+     * Index all JPEG files below root, which are accepted by the filter.
+     * Returns once every accepted file has been handed to the listener.
+     * @param filter filter or null, to index every file.
+     */
+    public void index(Path root, final Filter filter, final Listener listener) throws IOException, InterruptedException {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || !isJpeg(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final long size = attrs.size();
+                    final long lastModified = attrs.lastModifiedTime().toMillis();
+                    if (filter == null || filter.accept(file, size, lastModified)) {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                parse(file, size, lastModified, listener);
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failures.increment();
+                    listener.onFailed(file, -1, -1, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void parse(Path file, long size, long lastModified, Listener listener) {
+        PhotoSphereMetadata metadata;
+        try (InputStream in = new BufferedInputStream(new CountingInputStream(Files.newInputStream(file)), BUFFER_SIZE)) {
+            metadata = PhotoSphereParser.parse(in, readExtendedXMP);
+        } catch (IOException e) {
+            failures.increment();
+            listener.onFailed(file, size, lastModified, e);
+            return;
+        }
+        files.increment();
+        if (metadata != null) {
+            spheres.increment();
+        }
+        listener.onIndexed(file, size, lastModified, metadata);
+    }
+
+    private static boolean isJpeg(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    /**
+     * @return number of files parsed successfully.
+     */
+    public long getFiles() {
+        return files.sum();
+    }
+
+    /**
+     * @return number of files, which turned out to be photo spheres.
+     */
+    public long getSpheres() {
+        return spheres.sum();
+    }
+
+    /**
+     * @return number of files, which could not be read.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return number of bytes actually read from storage. Skipped segments are not counted.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Counts the bytes read by the parser.
+     */
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int i = super.read(b, off, len);
+            if (i > 0) {
+                bytesRead.add(i);
+            }
+            return i;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        boolean extended = false;
+        Path index = null;
+        Path root = null;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-x":
+                    extended = true;
+                    break;
+                case "-i":
+                    index = Paths.get(args[++i]);
+                    break;
+                default:
+                    if (root == null) {
+                        root = Paths.get(args[i]);
+                    } else {
+                        output = Paths.get(args[i]);
+                    }
+            }
+        }
+
+        if (root == null) {
+            System.err.println("Usage: indexer [-t threads] [-x] [-i index] <directory> [output.tsv]");
+            System.err.println("  -t  number of worker threads (default: 2 per core)");
+            System.err.println("  -x  also read GPano properties from Extended XMP");
+            System.err.println("  -i  refresh the binary index file instead of writing records");
+            System.exit(1);
+        }
+
+        Indexer indexer = new Indexer(threads, extended);
+        if (index != null) {
+            long start = System.nanoTime();
+            IndexUpdater updater = IndexUpdater.update(index, root, indexer);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println(String.format(Locale.ROOT,
+                    "Refreshed %s in %.2f s: %d unchanged, %d stale, %d parsed (%d spheres, %d failed)",
+                    index, seconds, updater.getUnchanged(), updater.getStale(), updater.getParsed(),
+                    indexer.getSpheres(), indexer.getFailures()));
+            return;
+        }
+
+        Writer writer = new BufferedWriter(output == null
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(output, StandardCharsets.UTF_8));
+        TsvWriter tsv = new TsvWriter(writer);
+
+        long start = System.nanoTime();
+        indexer.index(root, tsv);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        tsv.close();
+
+        double megabytes = indexer.getBytesRead() / (1024.0 * 1024.0);
+        System.err.println(String.format(Locale.ROOT,
+                "Indexed %d files (%d spheres, %d failed) in %.2f s using %d threads",
+                indexer.getFiles(), indexer.getSpheres(), indexer.getFailures(), seconds, threads));
+        System.err.println(String.format(Locale.ROOT,
+                "%.0f files/s, %.2f MB read, %.2f MB/s",
+                indexer.getFiles() / seconds, megabytes, megabytes / seconds));
+    }
+}
@@ -0,0 +1,561 @@
+package de.trac.spherical.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+
+/**
+ * Compact on-disk index of {@link PhotoSphereMetadata}, keyed by path.
+ *
+ * The file is read through a memory mapped buffer, which is released by {@link #close()}. Entries are sorted by the UTF-8 bytes of
+ * their path and every property is stored in its own fixed-width column, so single entries
+ * or single properties can be looked up without deserializing anything else.
+ *
+ * Layout (big endian, every section aligned to 8 bytes):
+ * int      magic 'SPHX'
+ * int      version
+ * int      number of entries n
+ * int      number of strings s
+ * int[n+1] path offsets into the path data
+ * columns  n values per column, see COLUMN_WIDTHS
+ * byte[]   path data (UTF-8)
+ * int[s+1] string offsets into the string data
+ * byte[]   string data (UTF-8), software names are stored once and referenced by index
+ *
+ * Absent (null) properties are stored as NaN or MIN_VALUE, absent strings as -1.
+ */
+public class MetadataIndex implements Closeable {
+
+    private static final int MAGIC = 0x53504858; // SPHX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // Column indices.
+    private static final int SIZE = 0;
+    private static final int LAST_MODIFIED = 1;
+    private static final int FLAGS = 2;
+    private static final int CAPTURE_SOFTWARE = 3;
+    private static final int STITCHING_SOFTWARE = 4;
+    private static final int PROJECTION_TYPE = 5;
+    private static final int POSE_HEADING_DEGREES = 6;
+    private static final int POSE_PITCH_DEGREES = 7;
+    private static final int POSE_ROLL_DEGREES = 8;
+    private static final int INITIAL_VIEW_HEADING_DEGREES = 9;
+    private static final int INITIAL_VIEW_PITCH_DEGREES = 10;
+    private static final int INITIAL_VIEW_ROLL_DEGREES = 11;
+    private static final int INITIAL_HORIZONTAL_FOV_DEGREES = 12;
+    private static final int FIRST_PHOTO_DATE = 13;
+    private static final int LAST_PHOTO_DATE = 14;
+    private static final int SOURCE_PHOTOS_COUNT = 15;
+    private static final int CROPPED_AREA_IMAGE_WIDTH_PIXELS = 16;
+    private static final int CROPPED_AREA_IMAGE_HEIGHT_PIXELS = 17;
+    private static final int FULL_PANO_WIDTH_PIXELS = 18;
+    private static final int FULL_PANO_HEIGHT_PIXELS = 19;
+    private static final int CROPPED_AREA_LEFT_PIXELS = 20;
+    private static final int CROPPED_AREA_TOP_PIXELS = 21;
+    private static final int INITIAL_CAMERA_DOLLY = 22;
+
+    private static final int[] COLUMN_WIDTHS = new int[] {
+            8, 8, 1, 4, 4, 1, 4, 4, 4, 4, 4, 4, 4, 8, 8, 4, 4, 4, 4, 4, 4, 4, 4
+    };
+
+    // Bits of the FLAGS column.
+    private static final int FLAG_SPHERE = 1;
+    private static final int FLAG_USE_PANORAMA_VIEWER = 2;
+    private static final int FLAG_EXPOSURE_LOCK_USED = 4;
+
+    private static final int NO_STRING = -1;
+
+    private final Path file;
+
+    private ByteBuffer buffer;
+    private int count;
+    private int stringCount;
+    private int pathOffsetsStart;
+    private final int[] columnStarts = new int[COLUMN_WIDTHS.length];
+    private int pathDataStart;
+    private int stringOffsetsStart;
+    private int stringDataStart;
+
+    private MetadataIndex(Path file) throws IOException {
+        this.file = file;
+        map();
+    }
+
+    /**
+     * Map the index file and read its header.
+     */
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a metadata index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported index version " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        stringCount = buffer.getInt(12);
+
+        int offset = HEADER_SIZE;
+        pathOffsetsStart = offset;
+        offset = align(offset + (count + 1) * 4);
+        for (int column = 0; column < COLUMN_WIDTHS.length; column++) {
+            columnStarts[column] = offset;
+            offset = align(offset + count * COLUMN_WIDTHS[column]);
+        }
+        pathDataStart = offset;
+        offset = align(offset + buffer.getInt(pathOffsetsStart + count * 4));
+        stringOffsetsStart = offset;
+        stringDataStart = align(offset + (stringCount + 1) * 4);
+
+        if (stringDataStart + stringOffset(stringCount) > buffer.capacity()) {
+            throw new IOException("Truncated metadata index");
+        }
+    }
+
+    /**
+     * Map an index file into memory. Nothing but the header is read.
+     */
+    public static MetadataIndex open(Path file) throws IOException {
+        return new MetadataIndex(file);
+    }
+
+    /**
+     * Replace the index file by one holding the given entries and map it in place of the old
+     * one. The old mapping is released before the file is moved, as a mapped file can not be
+     * replaced on Windows.
+     * @param entries entries to be written, which may have been taken from this index.
+     */
+    public void replace(List<Entry> entries) throws IOException {
+        close();
+        write(file, entries);
+        map();
+    }
+
+    /**
+     * Release the mapping. The index must not be used afterwards, unless it is replaced.
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            unmap(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Unmap a buffer right away instead of on garbage collection, where the JDK allows it.
+     * Otherwise the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        if (!(buffer instanceof MappedByteBuffer)) {
+            return;
+        }
+        try {
+            // Java 9 and later.
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available, try the Java 8 way.
+        }
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector.
+        }
+    }
+
+    /**
+     * @return number of entries.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Binary search for the entry of the given path.
+     * @return index of the entry or -1, if the path is not indexed.
+     */
+    public int find(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePath(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public String getPath(int i) {
+        int start = pathOffset(i);
+        return string(pathDataStart + start, pathOffset(i + 1) - start);
+    }
+
+    public long getSize(int i) {
+        return buffer.getLong(columnStarts[SIZE] + i * 8);
+    }
+
+    public long getLastModified(int i) {
+        return buffer.getLong(columnStarts[LAST_MODIFIED] + i * 8);
+    }
+
+    public boolean isSphere(int i) {
+        return (flags(i) & FLAG_SPHERE) != 0;
+    }
+
+    /**
+     * @return true, if the entry exists and is still up to date regarding size and modification time.
+     */
+    public boolean isUpToDate(int i, long size, long lastModified) {
+        return i >= 0 && getSize(i) == size && getLastModified(i) == lastModified;
+    }
+
+    /**
+     * Deserialize the metadata of a single entry.
+     * @return metadata or null, if the file is no photo sphere.
+     */
+    public PhotoSphereMetadata getMetadata(int i) {
+        int flags = flags(i);
+        if ((flags & FLAG_SPHERE) == 0) {
+            return null;
+        }
+        PhotoSphereMetadata m = new PhotoSphereMetadata();
+        m.setUsePanoramaViewer((flags & FLAG_USE_PANORAMA_VIEWER) != 0);
+        m.setExposureLockUsed((flags & FLAG_EXPOSURE_LOCK_USED) != 0);
+        m.setCaptureSoftware(getString(getInt(CAPTURE_SOFTWARE, i)));
+        m.setStitchingSoftware(getString(getInt(STITCHING_SOFTWARE, i)));
+        m.setProjectionType(PhotoSphereMetadata.ProjectionType.values()[buffer.get(columnStarts[PROJECTION_TYPE] + i)]);
+        m.setPoseHeadingDegrees(boxed(getFloat(POSE_HEADING_DEGREES, i)));
+        m.setPosePitchDegrees(getFloat(POSE_PITCH_DEGREES, i));
+        m.setPoseRollDegrees(getFloat(POSE_ROLL_DEGREES, i));
+        m.setInitialViewHeadingDegrees(getInt(INITIAL_VIEW_HEADING_DEGREES, i));
+        m.setInitialViewPitchDegrees(getInt(INITIAL_VIEW_PITCH_DEGREES, i));
+        m.setInitialViewRollDegrees(getInt(INITIAL_VIEW_ROLL_DEGREES, i));
+        m.setInitialHorizontalFOVDegrees(boxed(getFloat(INITIAL_HORIZONTAL_FOV_DEGREES, i)));
+        m.setFirstPhotoDate(date(getLong(FIRST_PHOTO_DATE, i)));
+        m.setLastPhotoDate(date(getLong(LAST_PHOTO_DATE, i)));
+        m.setSourcePhotosCount(boxed(getInt(SOURCE_PHOTOS_COUNT, i)));
+        m.setCroppedAreaImageWidthPixels(boxed(getInt(CROPPED_AREA_IMAGE_WIDTH_PIXELS, i)));
+        m.setCroppedAreaImageHeightPixels(boxed(getInt(CROPPED_AREA_IMAGE_HEIGHT_PIXELS, i)));
+        m.setFullPanoWidthPixels(boxed(getInt(FULL_PANO_WIDTH_PIXELS, i)));
+        m.setFullPanoHeightPixels(boxed(getInt(FULL_PANO_HEIGHT_PIXELS, i)));
+        m.setCroppedAreaLeftPixels(boxed(getInt(CROPPED_AREA_LEFT_PIXELS, i)));
+        m.setCroppedAreaTopPixels(boxed(getInt(CROPPED_AREA_TOP_PIXELS, i)));
+        m.setInitialCameraDolly(getFloat(INITIAL_CAMERA_DOLLY, i));
+        return m;
+    }
+
+    /**
+     * @return the entry at index i.
+     */
+    public Entry getEntry(int i) {
+        return new Entry(getPath(i), getSize(i), getLastModified(i), getMetadata(i));
+    }
+
+    private int flags(int i) {
+        return buffer.get(columnStarts[FLAGS] + i);
+    }
+
+    private int getInt(int column, int i) {
+        return buffer.getInt(columnStarts[column] + i * 4);
+    }
+
+    private float getFloat(int column, int i) {
+        return buffer.getFloat(columnStarts[column] + i * 4);
+    }
+
+    private long getLong(int column, int i) {
+        return buffer.getLong(columnStarts[column] + i * 8);
+    }
+
+    private String getString(int id) {
+        if (id == NO_STRING) {
+            return null;
+        }
+        int start = stringOffset(id);
+        return string(stringDataStart + start, stringOffset(id + 1) - start);
+    }
+
+    private int pathOffset(int i) {
+        return buffer.getInt(pathOffsetsStart + i * 4);
+    }
+
+    private int stringOffset(int id) {
+        return buffer.getInt(stringOffsetsStart + id * 4);
+    }
+
+    private String string(int start, int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = buffer.get(start + i);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private int comparePath(int i, byte[] key) {
+        int start = pathDataStart + pathOffset(i);
+        int length = pathOffset(i + 1) - pathOffset(i);
+        int n = Math.min(length, key.length);
+        for (int j = 0; j < n; j++) {
+            int cmp = (buffer.get(start + j) & 0xFF) - (key[j] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Write an index file. The file is written next to the target and moved into place,
+     * so readers never see a partially written index.
+     * @param entries entries to be written, in any order.
+     */
+    public static void write(Path file, List<Entry> entries) throws IOException {
+        final int n = entries.size();
+
+        // Sort by UTF-8 bytes, which is the order used for lookups.
+        List<byte[]> paths = new ArrayList<>(n);
+        List<Entry> sorted = new ArrayList<>(entries);
+        final Map<Entry, byte[]> encoded = new HashMap<>(n * 2);
+        for (Entry entry : sorted) {
+            encoded.put(entry, entry.path.getBytes(StandardCharsets.UTF_8));
+        }
+        Collections.sort(sorted, (a, b) -> compare(encoded.get(a), encoded.get(b)));
+
+        // Deduplicate software names.
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int pathDataLength = 0;
+        for (Entry entry : sorted) {
+            byte[] path = encoded.get(entry);
+            paths.add(path);
+            pathDataLength += path.length;
+            if (entry.metadata != null) {
+                stringId(entry.metadata.getCaptureSoftware(), stringIds, strings);
+                stringId(entry.metadata.getStitchingSoftware(), stringIds, strings);
+            }
+        }
+        int stringDataLength = 0;
+        for (byte[] s : strings) {
+            stringDataLength += s.length;
+        }
+
+        // Compute section sizes.
+        int size = align(HEADER_SIZE + (n + 1) * 4);
+        int[] columnStarts = new int[COLUMN_WIDTHS.length];
+        for (int column = 0; column < COLUMN_WIDTHS.length; column++) {
+            columnStarts[column] = size;
+            size = align(size + n * COLUMN_WIDTHS[column]);
+        }
+        int pathDataStart = size;
+        size = align(size + pathDataLength);
+        int stringOffsetsStart = size;
+        size = align(size + (strings.size() + 1) * 4);
+        int stringDataStart = size;
+        size += stringDataLength;
+
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(0, MAGIC);
+        b.putInt(4, VERSION);
+        b.putInt(8, n);
+        b.putInt(12, strings.size());
+
+        int pathOffset = 0;
+        for (int i = 0; i < n; i++) {
+            Entry entry = sorted.get(i);
+            PhotoSphereMetadata m = entry.metadata;
+            byte[] path = paths.get(i);
+
+            b.putInt(HEADER_SIZE + i * 4, pathOffset);
+            for (int j = 0; j < path.length; j++) {
+                b.put(pathDataStart + pathOffset + j, path[j]);
+            }
+            pathOffset += path.length;
+
+            b.putLong(columnStarts[SIZE] + i * 8, entry.size);
+            b.putLong(columnStarts[LAST_MODIFIED] + i * 8, entry.lastModified);
+
+            if (m == null) {
+                b.put(columnStarts[FLAGS] + i, (byte) 0);
+                b.putInt(columnStarts[CAPTURE_SOFTWARE] + i * 4, NO_STRING);
+                b.putInt(columnStarts[STITCHING_SOFTWARE] + i * 4, NO_STRING);
+                continue;
+            }
+
+            int flags = FLAG_SPHERE;
+            if (m.isUsePanoramaViewer()) {
+                flags |= FLAG_USE_PANORAMA_VIEWER;
+            }
+            if (m.isExposureLockUsed()) {
+                flags |= FLAG_EXPOSURE_LOCK_USED;
+            }
+            b.put(columnStarts[FLAGS] + i, (byte) flags);
+            b.putInt(columnStarts[CAPTURE_SOFTWARE] + i * 4, stringId(m.getCaptureSoftware(), stringIds, strings));
+            b.putInt(columnStarts[STITCHING_SOFTWARE] + i * 4, stringId(m.getStitchingSoftware(), stringIds, strings));
+            b.put(columnStarts[PROJECTION_TYPE] + i, (byte) m.getProjectionType().ordinal());
+            b.putFloat(columnStarts[POSE_HEADING_DEGREES] + i * 4, unboxed(m.getPoseHeadingDegrees()));
+            b.putFloat(columnStarts[POSE_PITCH_DEGREES] + i * 4, m.getPosePitchDegrees());
+            b.putFloat(columnStarts[POSE_ROLL_DEGREES] + i * 4, m.getPoseRollDegrees());
+            b.putInt(columnStarts[INITIAL_VIEW_HEADING_DEGREES] + i * 4, m.getInitialViewHeadingDegrees());
+            b.putInt(columnStarts[INITIAL_VIEW_PITCH_DEGREES] + i * 4, m.getInitialViewPitchDegrees());
+            b.putInt(columnStarts[INITIAL_VIEW_ROLL_DEGREES] + i * 4, m.getInitialViewRollDegrees());
+            b.putFloat(columnStarts[INITIAL_HORIZONTAL_FOV_DEGREES] + i * 4, unboxed(m.getInitialHorizontalFOVDegrees()));
+            b.putLong(columnStarts[FIRST_PHOTO_DATE] + i * 8, unboxed(m.getFirstPhotoDate()));
+            b.putLong(columnStarts[LAST_PHOTO_DATE] + i * 8, unboxed(m.getLastPhotoDate()));
+            b.putInt(columnStarts[SOURCE_PHOTOS_COUNT] + i * 4, unboxed(m.getSourcePhotosCount()));
+            b.putInt(columnStarts[CROPPED_AREA_IMAGE_WIDTH_PIXELS] + i * 4, unboxed(m.getCroppedAreaImageWidthPixels()));
+            b.putInt(columnStarts[CROPPED_AREA_IMAGE_HEIGHT_PIXELS] + i * 4, unboxed(m.getCroppedAreaImageHeightPixels()));
+            b.putInt(columnStarts[FULL_PANO_WIDTH_PIXELS] + i * 4, unboxed(m.getFullPanoWidthPixels()));
+            b.putInt(columnStarts[FULL_PANO_HEIGHT_PIXELS] + i * 4, unboxed(m.getFullPanoHeightPixels()));
+            b.putInt(columnStarts[CROPPED_AREA_LEFT_PIXELS] + i * 4, unboxed(m.getCroppedAreaLeftPixels()));
+            b.putInt(columnStarts[CROPPED_AREA_TOP_PIXELS] + i * 4, unboxed(m.getCroppedAreaTopPixels()));
+            b.putFloat(columnStarts[INITIAL_CAMERA_DOLLY] + i * 4, m.getInitialCameraDolly());
+        }
+        b.putInt(HEADER_SIZE + n * 4, pathOffset);
+
+        int stringOffset = 0;
+        for (int id = 0; id < strings.size(); id++) {
+            byte[] s = strings.get(id);
+            b.putInt(stringOffsetsStart + id * 4, stringOffset);
+            for (int j = 0; j < s.length; j++) {
+                b.put(stringDataStart + stringOffset + j, s[j]);
+            }
+            stringOffset += s.length;
+        }
+        b.putInt(stringOffsetsStart + strings.size() * 4, stringOffset);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int stringId(String s, Map<String, Integer> ids, List<byte[]> strings) {
+        if (s == null) {
+            return NO_STRING;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private static Float boxed(float value) {
+        return Float.isNaN(value) ? null : value;
+    }
+
+    private static Integer boxed(int value) {
+        return value == Integer.MIN_VALUE ? null : value;
+    }
+
+    private static Date date(long value) {
+        return value == Long.MIN_VALUE ? null : new Date(value);
+    }
+
+    private static float unboxed(Float value) {
+        return value == null ? Float.NaN : value;
+    }
+
+    private static int unboxed(Integer value) {
+        return value == null ? Integer.MIN_VALUE : value;
+    }
+
+    private static long unboxed(Date value) {
+        return value == null ? Long.MIN_VALUE : value.getTime();
+    }
+
+    /**
+     * A single indexed file.
+     */
+    public static class Entry {
+
+        final String path;
+        final long size;
+        final long lastModified;
+        final PhotoSphereMetadata metadata;
+
+        /**
+         * @param metadata metadata or null, if the file is no photo sphere.
+         */
+        public Entry(String path, long size, long lastModified, PhotoSphereMetadata metadata) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.metadata = metadata;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public PhotoSphereMetadata getMetadata() {
+            return metadata;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.trac.spherical.tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Date;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+
+/**
+ * Writes one tab separated record per indexed file.
+ * Properties of files, which are no photo spheres, are left empty.
+ */
+public class TsvWriter implements Indexer.Listener {
+
+    private static final String[] COLUMNS = new String[] {
+            "path", "size", "mtime", "sphere",
+            "usePanoramaViewer", "captureSoftware", "stitchingSoftware", "projectionType",
+            "poseHeadingDegrees", "posePitchDegrees", "poseRollDegrees",
+            "initialViewHeadingDegrees", "initialViewPitchDegrees", "initialViewRollDegrees",
+            "initialHorizontalFOVDegrees", "firstPhotoDate", "lastPhotoDate", "sourcePhotosCount",
+            "exposureLockUsed", "croppedAreaImageWidthPixels", "croppedAreaImageHeightPixels",
+            "fullPanoWidthPixels", "fullPanoHeightPixels", "croppedAreaLeftPixels",
+            "croppedAreaTopPixels", "initialCameraDolly", "error"
+    };
+
+    private final Writer writer;
+
+    public TsvWriter(Writer writer) throws IOException {
+        this.writer = writer;
+        StringBuilder sb = new StringBuilder();
+        for (String column : COLUMNS) {
+            sb.append(column).append('\t');
+        }
+        sb.setLength(sb.length() - 1);
+        writer.write(sb.append('\n').toString());
+    }
+
+    @Override
+    public void onIndexed(Path file, long size, long lastModified, PhotoSphereMetadata m) {
+        StringBuilder sb = new StringBuilder(256);
+        field(sb, file);
+        field(sb, size);
+        field(sb, lastModified);
+        field(sb, m != null);
+        if (m != null) {
+            field(sb, m.isUsePanoramaViewer());
+            field(sb, m.getCaptureSoftware());
+            field(sb, m.getStitchingSoftware());
+            field(sb, m.getProjectionType());
+            field(sb, m.getPoseHeadingDegrees());
+            field(sb, m.getPosePitchDegrees());
+            field(sb, m.getPoseRollDegrees());
+            field(sb, m.getInitialViewHeadingDegrees());
+            field(sb, m.getInitialViewPitchDegrees());
+            field(sb, m.getInitialViewRollDegrees());
+            field(sb, m.getInitialHorizontalFOVDegrees());
+            field(sb, m.getFirstPhotoDate());
+            field(sb, m.getLastPhotoDate());
+            field(sb, m.getSourcePhotosCount());
+            field(sb, m.isExposureLockUsed());
+            field(sb, m.getCroppedAreaImageWidthPixels());
+            field(sb, m.getCroppedAreaImageHeightPixels());
+            field(sb, m.getFullPanoWidthPixels());
+            field(sb, m.getFullPanoHeightPixels());
+            field(sb, m.getCroppedAreaLeftPixels());
+            field(sb, m.getCroppedAreaTopPixels());
+            field(sb, m.getInitialCameraDolly());
+        } else {
+            for (int i = 4; i < COLUMNS.length - 1; i++) {
+                sb.append('\t');
+            }
+        }
+        write(sb);
+    }
+
+    @Override
+    public void onFailed(Path file, long size, long lastModified, IOException e) {
+        StringBuilder sb = new StringBuilder(256);
+        field(sb, file);
+        field(sb, size);
+        field(sb, lastModified);
+        for (int i = 3; i < COLUMNS.length - 1; i++) {
+            sb.append('\t');
+        }
+        sb.append(escape(String.valueOf(e.getMessage())));
+        write(sb);
+    }
+
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+    private void write(StringBuilder sb) {
+        sb.append('\n');
+        try {
+            synchronized (writer) {
+                writer.write(sb.toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void field(StringBuilder sb, Object value) {
+        if (value instanceof Date) {
+            sb.append(((Date) value).getTime());
+        } else if (value != null) {
+            sb.append(escape(value.toString()));
+        }
+        sb.append('\t');
+    }
+
+    private static String escape(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
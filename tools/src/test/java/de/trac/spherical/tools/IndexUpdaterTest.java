@@ -0,0 +1,106 @@
+package de.trac.spherical.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link IndexUpdater}.
+ */
+public class IndexUpdaterTest {
+
+    private Path directory;
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("photos");
+        indexFile = Files.createTempFile("index", ".bin");
+        Files.delete(indexFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(indexFile);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void onlyChangedFilesAreParsed() throws Exception {
+        Path unchanged = write("unchanged.jpg", 8192);
+        Path changed = write("changed.jpg", 4096);
+        Path deleted = write("deleted.jpg", 2048);
+
+        Indexer indexer = new Indexer(2, false);
+        IndexUpdater updater = IndexUpdater.update(indexFile, directory, indexer);
+        assertEquals(3, updater.getParsed());
+        assertEquals(0, updater.getUnchanged());
+        assertEquals(3, indexer.getFiles());
+
+        write("changed.jpg", 6000);
+        FileTime modified = Files.getLastModifiedTime(changed);
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(modified.toMillis() + 10000));
+        Files.delete(deleted);
+
+        indexer = new Indexer(2, false);
+        updater = IndexUpdater.update(indexFile, directory, indexer);
+        // Only the changed file has been read.
+        assertEquals(1, indexer.getFiles());
+        assertEquals(1, updater.getParsed());
+        assertEquals(1, updater.getUnchanged());
+        assertEquals(2, updater.getStale());
+
+        MetadataIndex index = MetadataIndex.open(indexFile);
+        try {
+            assertEquals(2, index.size());
+            assertEquals(Integer.valueOf(8192),
+                    index.getMetadata(index.find(unchanged.toString())).getFullPanoWidthPixels());
+            assertEquals(Integer.valueOf(6000),
+                    index.getMetadata(index.find(changed.toString())).getFullPanoWidthPixels());
+            assertEquals(-1, index.find(deleted.toString()));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void unmodifiedIndexIsNotRewritten() throws Exception {
+        write("sphere.jpg", 8192);
+        IndexUpdater.update(indexFile, directory, new Indexer(1, false));
+        FileTime written = FileTime.fromMillis(1000);
+        Files.setLastModifiedTime(indexFile, written);
+
+        IndexUpdater updater = IndexUpdater.update(indexFile, directory, new Indexer(1, false));
+        assertFalse(updater.isModified());
+        assertEquals(written, Files.getLastModifiedTime(indexFile));
+    }
+
+    /**
+     * Write a minimal JPEG header with a photo sphere XMP packet.
+     */
+    private Path write(String name, int width) throws IOException {
+        String xmp = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description " +
+                "GPano:ProjectionType=\"equirectangular\" " +
+                "GPano:FullPanoWidthPixels=\"" + width + "\"/></rdf:RDF></x:xmpmeta>";
+        byte[] payload = ("http://ns.adobe.com/xap/1.0/\0" + xmp).getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1});
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xFF);
+        out.write(payload);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9});
+        return Files.write(directory.resolve(name), out.toByteArray());
+    }
+}
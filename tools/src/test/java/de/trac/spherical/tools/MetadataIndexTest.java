@@ -0,0 +1,104 @@
+package de.trac.spherical.tools;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.trac.spherical.parser.PhotoSphereMetadata;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests for {@link MetadataIndex}.
+ */
+public class MetadataIndexTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        PhotoSphereMetadata sphere = new PhotoSphereMetadata();
+        sphere.setCaptureSoftware("Photo Sphere");
+        sphere.setPoseHeadingDegrees(12.5f);
+        sphere.setInitialViewPitchDegrees(-10);
+        sphere.setFirstPhotoDate(new Date(1500000000000L));
+        sphere.setFullPanoWidthPixels(8192);
+        sphere.setExposureLockUsed(true);
+
+        PhotoSphereMetadata other = new PhotoSphereMetadata();
+        other.setCaptureSoftware("Photo Sphere");
+        other.setStitchingSoftware("Hugin");
+        other.setUsePanoramaViewer(false);
+
+        List<MetadataIndex.Entry> entries = new ArrayList<>();
+        entries.add(new MetadataIndex.Entry("/photos/b.jpg", 1000, 2000, sphere));
+        entries.add(new MetadataIndex.Entry("/photos/a.jpg", 3000, 4000, null));
+        entries.add(new MetadataIndex.Entry("/photos/\u00fcber.jpg", 5000, 6000, other));
+
+        Path file = Files.createTempFile("index", ".bin");
+        try {
+            MetadataIndex.write(file, entries);
+            MetadataIndex index = MetadataIndex.open(file);
+            assertEquals(3, index.size());
+            assertEquals(-1, index.find("/photos/c.jpg"));
+
+            int a = index.find("/photos/a.jpg");
+            assertEquals(0, a);
+            assertFalse(index.isSphere(a));
+            assertNull(index.getMetadata(a));
+            assertTrue(index.isUpToDate(a, 3000, 4000));
+            assertFalse(index.isUpToDate(a, 3000, 4001));
+
+            PhotoSphereMetadata m = index.getMetadata(index.find("/photos/b.jpg"));
+            assertEquals("Photo Sphere", m.getCaptureSoftware());
+            assertNull(m.getStitchingSoftware());
+            assertEquals(12.5f, m.getPoseHeadingDegrees(), 0f);
+            assertEquals(-10, m.getInitialViewPitchDegrees());
+            assertEquals(new Date(1500000000000L), m.getFirstPhotoDate());
+            assertNull(m.getLastPhotoDate());
+            assertEquals(Integer.valueOf(8192), m.getFullPanoWidthPixels());
+            assertNull(m.getFullPanoHeightPixels());
+            assertNull(m.getInitialHorizontalFOVDegrees());
+            assertTrue(m.isExposureLockUsed());
+            assertTrue(m.isUsePanoramaViewer());
+
+            int u = index.find("/photos/\u00fcber.jpg");
+            assertEquals("/photos/\u00fcber.jpg", index.getPath(u));
+            m = index.getMetadata(u);
+            assertEquals("Photo Sphere", m.getCaptureSoftware());
+            assertEquals("Hugin", m.getStitchingSoftware());
+            assertFalse(m.isUsePanoramaViewer());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void replaceWhileMapped() throws Exception {
+        List<MetadataIndex.Entry> entries = new ArrayList<>();
+        entries.add(new MetadataIndex.Entry("/photos/a.jpg", 1000, 2000, null));
+
+        Path file = Files.createTempFile("index", ".bin");
+        try {
+            MetadataIndex.write(file, entries);
+            MetadataIndex index = MetadataIndex.open(file);
+            try {
+                List<MetadataIndex.Entry> updated = new ArrayList<>();
+                updated.add(index.getEntry(index.find("/photos/a.jpg")));
+                updated.add(new MetadataIndex.Entry("/photos/b.jpg", 3000, 4000, new PhotoSphereMetadata()));
+                index.replace(updated);
+
+                assertEquals(2, index.size());
+                assertTrue(index.isUpToDate(index.find("/photos/a.jpg"), 1000, 2000));
+                assertTrue(index.isSphere(index.find("/photos/b.jpg")));
+                assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+            } finally {
+                index.close();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}